@@ -0,0 +1,484 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Compact alternative to the text protocol.
+ *
+ * <p>A TCP client switches a connection to binary by sending the text request {@link #HANDSHAKE}
+ * and waiting for the same string back; servers that do not answer are spoken to in text.
+ * After that every request is {@code [u32 length][u8 opcode][fields]} and every reply is
+ * {@code [u32 length][u8 status][fields]}, where a field is {@code [u16 length][UTF-8 bytes]} and
+ * fields run to the end of the frame. UDP datagrams carry the same body behind {@link #UDP_MAGIC}
+ * instead of a length, which no text command can start with.
+ *
+ * <p>Either kind of UDP request may be wrapped in {@code [u8 RELIABLE_MAGIC][u64 request ID]};
+ * the server then answers with the same header in front of its usual reply and keeps the reply
+ * for retransmissions of that ID (see {@link ReliableUdpClient}). A UDP request the server has no
+ * room for is answered with {@link #STATUS_BUSY} without being executed. A request that fails
+ * inside the server is answered with {@link #STATUS_SERVER_ERROR}.
+ *
+ * <p>Batch replies ({@link #OP_MGET}, {@link #OP_MPUT}, {@link #OP_MDELETE}) carry one field per
+ * key in request order; the first character of each field is that key's status code and the rest
+ * is the value for MGET hits.
+ *
+ * <p>{@link #OP_SCAN} takes the words of a text SCAN request after the command as its fields and
+ * answers with the next cursor followed by the page's keys (see {@link KeyScan}).
+ *
+ * <p>An {@link #OP_PUT} may carry a third field, the key's time to live in milliseconds;
+ * {@link #OP_EXPIRE} takes a key and a time to live in milliseconds and answers
+ * {@link #STATUS_NOT_FOUND} if the key is absent.
+ *
+ * <p>{@link #OP_TRACKING} with the field {@code ON} or {@code OFF} turns client tracking on or off
+ * for a TCP connection. While it is on, the server remembers the keys the connection GETs and,
+ * when one of them is next written, sends an unsolicited frame {@code [u32 length][u8
+ * PUSH_INVALIDATE][keys]} between replies; a push without keys means the client may have missed
+ * some and must drop everything it cached (see {@link InvalidationTracker}, {@link NearCache}).
+ */
+public final class BinaryProtocol {
+    public static final String HANDSHAKE = "PROTOCOL BINARY";
+    public static final byte UDP_MAGIC = (byte) 0xB7;
+    public static final byte RELIABLE_MAGIC = (byte) 0xB8;
+    public static final int RELIABLE_HEADER = 9;
+    public static final int MAX_FRAME = 1 << 24;
+
+    public static final byte OP_PUT = 1;
+    public static final byte OP_GET = 2;
+    public static final byte OP_DELETE = 3;
+    public static final byte OP_KEYS = 4;
+    public static final byte OP_STAT = 5;
+    public static final byte OP_QUIT = 6;
+    public static final byte OP_MGET = 7;
+    public static final byte OP_MPUT = 8;
+    public static final byte OP_MDELETE = 9;
+    public static final byte OP_SCAN = 10;
+    public static final byte OP_EXPIRE = 11;
+    public static final byte OP_TRACKING = 12;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_NOT_FOUND = 1;
+    public static final byte STATUS_EXISTS = 2;
+    public static final byte STATUS_INVALID_KEY = 3;
+    public static final byte STATUS_TOO_LONG = 4;
+    public static final byte STATUS_BAD_REQUEST = 5;
+    public static final byte STATUS_READ_ONLY = 6;
+    public static final byte STATUS_BUSY = 7;
+    public static final byte STATUS_SERVER_ERROR = 8;
+    public static final byte PUSH_INVALIDATE = 64;
+
+    private static final String[] NO_FIELDS = new String[0];
+
+    private BinaryProtocol() {
+    }
+
+    public static final class Message {
+        public final byte code;
+        public final String[] fields;
+
+        public Message(byte code, String... fields) {
+            this.code = code;
+            this.fields = fields;
+        }
+
+        public String field(int index) {
+            return index < fields.length ? fields[index] : null;
+        }
+    }
+
+    public static Message execute(KeyValueStore store, Message request, Supplier<String> statistics) {
+        String key = request.field(0);
+        switch (request.code) {
+            case OP_PUT: {
+                String value = request.field(1);
+                if (key == null || value == null) {
+                    return new Message(STATUS_BAD_REQUEST);
+                }
+                byte status = checkPut(key, value);
+                if (status != STATUS_OK) {
+                    return new Message(status);
+                }
+                if (request.fields.length > 2) {
+                    long ttlMillis = parseTtl(request.field(2));
+                    if (ttlMillis <= 0) {
+                        return new Message(STATUS_BAD_REQUEST);
+                    }
+                    return new Message(store.putIfAbsent(key, value, ttlMillis) ? STATUS_OK : STATUS_EXISTS);
+                }
+                return new Message(store.putIfAbsent(key, value) ? STATUS_OK : STATUS_EXISTS);
+            }
+            case OP_GET: {
+                if (key == null) {
+                    return new Message(STATUS_BAD_REQUEST);
+                }
+                String value = store.get(key);
+                return value == null ? new Message(STATUS_NOT_FOUND) : new Message(STATUS_OK, value);
+            }
+            case OP_DELETE:
+                if (key == null) {
+                    return new Message(STATUS_BAD_REQUEST);
+                }
+                return new Message(store.remove(key) ? STATUS_OK : STATUS_NOT_FOUND);
+            case OP_KEYS: {
+                List<String> keys = store.keys();
+                return keys.isEmpty() ? new Message(STATUS_NOT_FOUND) : new Message(STATUS_OK, keys.toArray(NO_FIELDS));
+            }
+            case OP_STAT:
+                return new Message(STATUS_OK, statistics.get());
+            case OP_QUIT:
+                return new Message(STATUS_OK);
+            case OP_MGET: {
+                if (request.fields.length == 0) {
+                    return new Message(STATUS_BAD_REQUEST);
+                }
+                String[] values = store.getAll(request.fields);
+                String[] results = new String[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    results[i] = values[i] == null ? batchResult(STATUS_NOT_FOUND, "") : batchResult(STATUS_OK, values[i]);
+                }
+                return new Message(STATUS_OK, results);
+            }
+            case OP_MPUT:
+                if (request.fields.length == 0 || request.fields.length % 2 != 0) {
+                    return new Message(STATUS_BAD_REQUEST);
+                }
+                return new Message(STATUS_OK, multiPut(store, request.fields));
+            case OP_MDELETE: {
+                if (request.fields.length == 0) {
+                    return new Message(STATUS_BAD_REQUEST);
+                }
+                boolean[] removed = store.removeAll(request.fields);
+                String[] results = new String[removed.length];
+                for (int i = 0; i < removed.length; i++) {
+                    results[i] = batchResult(removed[i] ? STATUS_OK : STATUS_NOT_FOUND, "");
+                }
+                return new Message(STATUS_OK, results);
+            }
+            case OP_SCAN: {
+                KeyScan.Request scan = KeyScan.Request.parse(request.fields);
+                if (scan == null) {
+                    return new Message(STATUS_BAD_REQUEST);
+                }
+                return scanReply(scan.execute(store));
+            }
+            case OP_EXPIRE: {
+                long ttlMillis = parseTtl(request.field(1));
+                if (key == null || ttlMillis <= 0) {
+                    return new Message(STATUS_BAD_REQUEST);
+                }
+                return new Message(store.expire(key, ttlMillis) ? STATUS_OK : STATUS_NOT_FOUND);
+            }
+            default:
+                return new Message(STATUS_BAD_REQUEST);
+        }
+    }
+
+    /** The first field is the next cursor, the rest are the page's keys. */
+    public static Message scanReply(KeyScan.Page page) {
+        String[] fields = new String[page.keys.size() + 1];
+        fields[0] = Long.toUnsignedString(page.cursor);
+        for (int i = 0; i < page.keys.size(); i++) {
+            fields[i + 1] = page.keys.get(i);
+        }
+        return new Message(STATUS_OK, fields);
+    }
+
+    /**
+     * Validates and stores alternating key/value pairs; pairs that fail validation are reported
+     * without touching the store, the rest go to the store as one batch.
+     *
+     * @return one {@link #batchResult} per pair
+     */
+    public static String[] multiPut(KeyValueStore store, String[] keysAndValues) {
+        int pairs = keysAndValues.length / 2;
+        byte[] statuses = new byte[pairs];
+        int valid = 0;
+        for (int i = 0; i < pairs; i++) {
+            statuses[i] = checkPut(keysAndValues[2 * i], keysAndValues[2 * i + 1]);
+            if (statuses[i] == STATUS_OK) {
+                valid++;
+            }
+        }
+        String[] keys = new String[valid];
+        String[] values = new String[valid];
+        for (int i = 0, j = 0; i < pairs; i++) {
+            if (statuses[i] == STATUS_OK) {
+                keys[j] = keysAndValues[2 * i];
+                values[j++] = keysAndValues[2 * i + 1];
+            }
+        }
+        boolean[] stored = store.putAllIfAbsent(keys, values);
+        String[] results = new String[pairs];
+        for (int i = 0, j = 0; i < pairs; i++) {
+            if (statuses[i] == STATUS_OK && !stored[j++]) {
+                statuses[i] = STATUS_EXISTS;
+            }
+            results[i] = batchResult(statuses[i], "");
+        }
+        return results;
+    }
+
+    /** @return the time to live in {@code field}, or -1 if it is missing or not a number */
+    public static long parseTtl(String field) {
+        if (field == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the text protocol's {@code EX <seconds>} or {@code PX <milliseconds>}.
+     *
+     * @return the time to live in milliseconds, or -1 if the words are malformed or not positive
+     */
+    public static long parseTextTtl(String unit, String amount) {
+        long ttl = parseTtl(amount);
+        if (ttl <= 0) {
+            return -1;
+        } else if ("EX".equalsIgnoreCase(unit)) {
+            return ttl > Long.MAX_VALUE / 1000 ? -1 : ttl * 1000;
+        } else if ("PX".equalsIgnoreCase(unit)) {
+            return ttl;
+        }
+        return -1;
+    }
+
+    public static byte checkPut(String key, String value) {
+        if (!isValidKey(key)) {
+            return STATUS_INVALID_KEY;
+        } else if (key.length() > 10 || value.length() > 10) {
+            return STATUS_TOO_LONG;
+        }
+        return STATUS_OK;
+    }
+
+    public static String batchResult(byte status, String value) {
+        return (char) status + value;
+    }
+
+    public static byte batchStatus(String result) {
+        return (byte) result.charAt(0);
+    }
+
+    public static String batchValue(String result) {
+        return result.substring(1);
+    }
+
+    public static boolean isValidKey(String key) {
+        if (key.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static byte[] encodeBody(Message message) {
+        byte[][] fields = new byte[message.fields.length][];
+        int length = 1;
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = message.fields[i].getBytes(StandardCharsets.UTF_8);
+            if (fields[i].length > 0xFFFF) {
+                throw new IllegalArgumentException("Field of " + fields[i].length + " bytes exceeds the 65535 byte limit");
+            }
+            length += 2 + fields[i].length;
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        body.put(message.code);
+        for (byte[] field : fields) {
+            body.putShort((short) field.length);
+            body.put(field);
+        }
+        return body.array();
+    }
+
+    public static Message decodeBody(ByteBuffer buffer, int length) throws IOException {
+        if (length < 1) {
+            throw new IOException("Empty binary frame");
+        }
+        int end = buffer.position() + length;
+        byte code = buffer.get();
+        int count = 0;
+        for (int position = buffer.position(); position < end; count++) {
+            if (end - position < 2) {
+                throw new IOException("Truncated field header in binary frame");
+            }
+            position += 2 + (buffer.getShort(position) & 0xFFFF);
+            if (position > end) {
+                throw new IOException("Truncated field in binary frame");
+            }
+        }
+        String[] fields = count == 0 ? NO_FIELDS : new String[count];
+        for (int i = 0; i < count; i++) {
+            int fieldLength = buffer.getShort() & 0xFFFF;
+            if (buffer.hasArray()) {
+                fields[i] = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), fieldLength, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + fieldLength);
+            } else {
+                byte[] field = new byte[fieldLength];
+                buffer.get(field);
+                fields[i] = new String(field, StandardCharsets.UTF_8);
+            }
+        }
+        return new Message(code, fields);
+    }
+
+    public static void writeFrame(DataOutputStream out, Message message) throws IOException {
+        byte[] body = encodeBody(message);
+        out.writeInt(body.length);
+        out.write(body);
+    }
+
+    public static Message readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_FRAME) {
+            throw new IOException("Invalid binary frame length: " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decodeBody(ByteBuffer.wrap(body), length);
+    }
+
+    public static byte[] encodeDatagram(Message message) {
+        byte[] body = encodeBody(message);
+        byte[] datagram = new byte[body.length + 1];
+        datagram[0] = UDP_MAGIC;
+        System.arraycopy(body, 0, datagram, 1, body.length);
+        return datagram;
+    }
+
+    public static Message decodeDatagram(byte[] data, int offset, int length) throws IOException {
+        if (length < 2 || data[offset] != UDP_MAGIC) {
+            throw new IOException("Not a binary datagram");
+        }
+        return decodeBody(ByteBuffer.wrap(data, offset + 1, length - 1), length - 1);
+    }
+
+    /**
+     * Decodes a datagram from {@code buffer}'s position to its limit; direct buffers are read
+     * without copying the whole datagram first.
+     */
+    public static Message decodeDatagram(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        if (length < 2 || buffer.get(buffer.position()) != UDP_MAGIC) {
+            throw new IOException("Not a binary datagram");
+        }
+        buffer.position(buffer.position() + 1);
+        return decodeBody(buffer, length - 1);
+    }
+
+    /**
+     * Writes {@code message} as a datagram into {@code buffer} without intermediate arrays.
+     *
+     * @throws java.nio.BufferOverflowException if it does not fit
+     */
+    public static void encodeDatagram(Message message, ByteBuffer buffer) {
+        buffer.put(UDP_MAGIC).put(message.code);
+        for (String field : message.fields) {
+            int length = Utf8.encodedLength(field);
+            if (length > 0xFFFF) {
+                throw new IllegalArgumentException("Field of " + length + " bytes exceeds the 65535 byte limit");
+            }
+            buffer.putShort((short) length);
+            Utf8.put(buffer, field);
+        }
+    }
+
+    public static String commandName(byte opcode) {
+        switch (opcode) {
+            case OP_PUT:
+                return "PUT";
+            case OP_GET:
+                return "GET";
+            case OP_DELETE:
+                return "DELETE";
+            case OP_KEYS:
+                return "KEYS";
+            case OP_STAT:
+                return "STAT";
+            case OP_QUIT:
+                return "QUIT";
+            case OP_MGET:
+                return "MGET";
+            case OP_MPUT:
+                return "MPUT";
+            case OP_MDELETE:
+                return "MDELETE";
+            case OP_SCAN:
+                return "SCAN";
+            case OP_EXPIRE:
+                return "EXPIRE";
+            case OP_TRACKING:
+                return "TRACKING";
+            default:
+                return "OP_" + (opcode & 0xFF);
+        }
+    }
+
+    public static String statusName(byte status) {
+        switch (status) {
+            case STATUS_OK:
+                return "OK";
+            case STATUS_NOT_FOUND:
+                return "NOT_FOUND";
+            case STATUS_EXISTS:
+                return "EXISTS";
+            case STATUS_INVALID_KEY:
+                return "INVALID_KEY";
+            case STATUS_TOO_LONG:
+                return "TOO_LONG";
+            case STATUS_BAD_REQUEST:
+                return "BAD_REQUEST";
+            case STATUS_READ_ONLY:
+                return "READ_ONLY";
+            case STATUS_BUSY:
+                return "BUSY";
+            case STATUS_SERVER_ERROR:
+                return "SERVER_ERROR";
+            case PUSH_INVALIDATE:
+                return "INVALIDATE";
+            default:
+                return "STATUS_" + (status & 0xFF);
+        }
+    }
+
+    public static String formatBatch(String[] keys, Message reply) {
+        if (reply.code != STATUS_OK) {
+            return format(reply);
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < reply.fields.length; i++) {
+            byte status = batchStatus(reply.fields[i]);
+            String value = batchValue(reply.fields[i]);
+            text.append(status == STATUS_OK ? "\u001B[32m" : "\u001B[31m").append(keys[i]).append(' ').append(statusName(status));
+            if (!value.isEmpty()) {
+                text.append(' ').append(value);
+            }
+            text.append("\u001B[0m");
+            if (i < reply.fields.length - 1) {
+                text.append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    public static String format(Message reply) {
+        StringBuilder text = new StringBuilder(reply.code == STATUS_OK ? "\u001B[32m" : "\u001B[31m");
+        text.append(statusName(reply.code));
+        for (String field : reply.fields) {
+            text.append(' ').append(field);
+        }
+        return text.append("\u001B[0m").toString();
+    }
+}
@@ -0,0 +1,528 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Keeps another store within {@code --max-entries} keys or an estimated {@code --max-memory}
+ * bytes, evicting with W-TinyLFU (Einziger, Friedman and Manes): new keys enter a small LRU
+ * window, and a key leaving the window only displaces the least recently used key of the main
+ * space if a {@link FrequencySketch} says it has been used more often recently. The main space is
+ * a segmented LRU whose protected segment holds keys read again after admission. One-off keys
+ * therefore pass through the window without pushing popular keys out, which plain LRU does.
+ *
+ * <p>The policy is guarded by one eviction lock, but GETs never wait for it: they append the key
+ * to a striped, lossy read buffer and replay the buffer under the lock only when it is free.
+ * Writes are recorded by a {@link MutationListener} on the delegate, under the key's lock, so the
+ * policy sees every key's writes in order whichever layer made them; so are replays and a mapped
+ * snapshot's background load, through {@link MutationListener#onApplyPut}. Keys recovered before
+ * the store was built are added by {@link #start} on a daemon thread, so startup does not wait
+ * for a snapshot to load. Victims are chosen under the lock and removed from the delegate by the
+ * writing thread afterwards, through {@link KeyValueStore#removeIf}, so the write-ahead log and
+ * followers see a DELETE, and a victim written again in between keeps its new value.
+ *
+ * <p>{@code --eviction-window} is the window's share of the budget in percent (default 1); 100
+ * turns the policy into plain LRU.
+ */
+public final class BoundedKeyValueStore implements KeyValueStore {
+    /**
+     * Estimated heap bytes of one entry besides its characters: the engine's map entry and two
+     * compact strings, plus this policy's node and map entry.
+     */
+    static final int ENTRY_BYTES = 200;
+
+    private static final int READ_BUFFERS = Math.max(4, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1);
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final int DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+    private static final byte WINDOW = 0;
+    private static final byte PROBATION = 1;
+    private static final byte PROTECTED = 2;
+
+    private final KeyValueStore delegate;
+    private final boolean weighBytes;
+    private final long maximum;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final FrequencySketch sketch;
+    private final AccessQueue window = new AccessQueue();
+    private final AccessQueue probation = new AccessQueue();
+    private final AccessQueue protectedQueue = new AccessQueue();
+    private long windowWeight;
+    private long protectedWeight;
+    private volatile long totalWeight;
+
+    private final ReadBuffer[] readBuffers = new ReadBuffer[READ_BUFFERS];
+    private final ConcurrentLinkedQueue<String> victims = new ConcurrentLinkedQueue<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param weighBytes whether {@code maximum} is in estimated bytes rather than entries
+     * @param windowPercent the window's share of {@code maximum}
+     */
+    public BoundedKeyValueStore(KeyValueStore delegate, long maximum, boolean weighBytes, int windowPercent) {
+        this.delegate = delegate;
+        this.weighBytes = weighBytes;
+        this.maximum = Math.max(1, maximum);
+        this.windowMaximum = Math.max(1, this.maximum * Math.max(0, Math.min(100, windowPercent)) / 100);
+        this.protectedMaximum = (this.maximum - Math.min(this.maximum, windowMaximum)) * 80 / 100;
+        this.sketch = new FrequencySketch(weighBytes ? this.maximum / ENTRY_BYTES : this.maximum);
+        for (int i = 0; i < READ_BUFFERS; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+        delegate.addMutationListener(new PolicyListener());
+    }
+
+    /** @return whether {@code --max-entries} or {@code --max-memory} is set */
+    public static boolean isConfigured(ServerOptions options) {
+        return options.has("max-entries") || options.has("max-memory");
+    }
+
+    public static BoundedKeyValueStore fromOptions(KeyValueStore delegate, ServerOptions options) {
+        if (options.has("max-entries") && options.has("max-memory")) {
+            throw new IllegalArgumentException("Set either --max-entries or --max-memory, not both");
+        }
+        boolean weighBytes = options.has("max-memory");
+        long maximum = weighBytes ? options.getLong("max-memory", 0) : options.getLong("max-entries", 0);
+        if (maximum <= 0) {
+            throw new IllegalArgumentException("The store budget must be positive, got " + maximum);
+        }
+        BoundedKeyValueStore store = new BoundedKeyValueStore(delegate, maximum, weighBytes, options.getInt("eviction-window", 1));
+        store.start();
+        return store;
+    }
+
+    /**
+     * Adds the keys already in the delegate to the policy on a daemon thread, then removes any
+     * victims. The delegate visits each key under its lock and the listener is registered
+     * first, so a key written or removed meanwhile is seen in order.
+     */
+    public void start() {
+        Thread seeder = new Thread(() -> {
+            delegate.forEach(this::onSeed);
+            evictPending();
+        }, "eviction-seeder");
+        seeder.setDaemon(true);
+        seeder.start();
+    }
+
+    /** Reports {@code storeHits}, {@code storeMisses}, {@code evictions} and the budget in use as {@code storeWeight}. */
+    @Override
+    public void registerMetrics(Metrics metrics) {
+        delegate.registerMetrics(metrics);
+        metrics.gauge("storeHits", hits::sum);
+        metrics.gauge("storeMisses", misses::sum);
+        metrics.gauge("evictions", evictions::sum);
+        metrics.gauge("storeWeight", this::weight);
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /** @return the budget in use, in entries or estimated bytes */
+    public long weight() {
+        return totalWeight;
+    }
+
+    private long weigh(String key, String value) {
+        return weighBytes ? ENTRY_BYTES + key.length() + value.length() : 1;
+    }
+
+    /** Adds a written key to the window, or updates its weight if the policy already has it, and evicts. */
+    private void onWrite(String key, String value) {
+        evictionLock.lock();
+        try {
+            record(key, value);
+            evict();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /** Adds a key recovered from disk, unless a write or replay has added it already; it starts in the window like a new one. */
+    private void onSeed(String key, String value) {
+        evictionLock.lock();
+        try {
+            if (!nodes.containsKey(key)) {
+                record(key, value);
+                evict();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private boolean tracked(String key) {
+        evictionLock.lock();
+        try {
+            return nodes.containsKey(key);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void forget(String key) {
+        evictionLock.lock();
+        try {
+            Node node = nodes.remove(key);
+            if (node != null) {
+                unlink(node);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // ---- Policy; the methods below up to evictPending run under the eviction lock ----
+
+    private void record(String key, String value) {
+        sketch.increment(key.hashCode());
+        long weight = weigh(key, value);
+        Node node = nodes.get(key);
+        if (node != null) {
+            // Replaced by applyPut; keep the key's position and update its weight.
+            adjust(node, weight - node.weight);
+            node.weight = weight;
+            return;
+        }
+        node = new Node(key, weight);
+        nodes.put(key, node);
+        window.addLast(node);
+        windowWeight += weight;
+        totalWeight += weight;
+    }
+
+    private void adjust(Node node, long delta) {
+        if (node.queue == WINDOW) {
+            windowWeight += delta;
+        } else if (node.queue == PROTECTED) {
+            protectedWeight += delta;
+        }
+        totalWeight += delta;
+    }
+
+    private void unlink(Node node) {
+        queueOf(node).remove(node);
+        adjust(node, -node.weight);
+    }
+
+    private AccessQueue queueOf(Node node) {
+        return node.queue == WINDOW ? window : node.queue == PROBATION ? probation : protectedQueue;
+    }
+
+    private void onRead(String key) {
+        sketch.increment(key.hashCode());
+        Node node = nodes.get(key);
+        if (node == null) {
+            return;
+        }
+        if (node.queue == PROBATION) {
+            probation.remove(node);
+            node.queue = PROTECTED;
+            protectedQueue.addLast(node);
+            protectedWeight += node.weight;
+            while (protectedWeight > protectedMaximum && protectedQueue.first() != node) {
+                Node demoted = protectedQueue.first();
+                protectedQueue.remove(demoted);
+                protectedWeight -= demoted.weight;
+                demoted.queue = PROBATION;
+                probation.addLast(demoted);
+            }
+        } else {
+            AccessQueue queue = queueOf(node);
+            queue.remove(node);
+            queue.addLast(node);
+        }
+    }
+
+    /**
+     * Moves keys that overflow the window into the main space, each either displacing the main
+     * space's least recently used key or being evicted itself, whichever the sketch says is used
+     * less; then evicts from the cold end until the budget holds.
+     */
+    private void evict() {
+        while (windowWeight > windowMaximum) {
+            Node candidate = window.first();
+            window.remove(candidate);
+            windowWeight -= candidate.weight;
+            candidate.queue = PROBATION;
+            probation.addLast(candidate);
+            if (totalWeight <= maximum) {
+                continue;
+            }
+            Node victim = probation.first() != candidate ? probation.first() : protectedQueue.first();
+            if (victim != null && sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                evictNode(victim);
+            } else {
+                evictNode(candidate);
+            }
+        }
+        while (totalWeight > maximum) {
+            Node victim = probation.first() != null ? probation.first() : protectedQueue.first() != null ? protectedQueue.first() : window.first();
+            evictNode(victim);
+        }
+    }
+
+    private void evictNode(Node node) {
+        nodes.remove(node.key);
+        unlink(node);
+        victims.add(node.key);
+    }
+
+    private void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            buffer.drainTo(this);
+        }
+    }
+
+    // ---- End of the policy ----
+
+    /**
+     * Removes the keys the policy has evicted; called by writers after they release their locks.
+     * A victim written again since it was chosen is back in the policy and is kept.
+     */
+    private void evictPending() {
+        String key;
+        while ((key = victims.poll()) != null) {
+            String victim = key;
+            if (delegate.removeIf(victim, () -> !tracked(victim))) {
+                evictions.increment();
+            }
+        }
+    }
+
+    private void recordRead(String key) {
+        ReadBuffer buffer = readBuffers[(int) (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L >>> 32) & (READ_BUFFERS - 1)];
+        if (buffer.offer(key) >= DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        String value = delegate.get(key);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+            recordRead(key);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        boolean stored = delegate.putIfAbsent(key, value);
+        evictPending();
+        return stored;
+    }
+
+    @Override
+    public boolean setDeadline(String key, long deadlineMillis) {
+        return delegate.setDeadline(key, deadlineMillis);
+    }
+
+    @Override
+    public boolean remove(String key) {
+        return delegate.remove(key);
+    }
+
+    @Override
+    public String[] getAll(String[] keys) {
+        String[] values = delegate.getAll(keys);
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] == null) {
+                misses.increment();
+            } else {
+                hits.increment();
+                recordRead(keys[i]);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public boolean[] putAllIfAbsent(String[] keys, String[] values) {
+        boolean[] stored = delegate.putAllIfAbsent(keys, values);
+        evictPending();
+        return stored;
+    }
+
+    @Override
+    public boolean[] removeAll(String[] keys) {
+        return delegate.removeAll(keys);
+    }
+
+    @Override
+    public List<String> keys() {
+        return delegate.keys();
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        delegate.forEach(action);
+    }
+
+    @Override
+    public KeyScan.Page scan(long cursor, int count) {
+        return delegate.scan(cursor, count);
+    }
+
+    @Override
+    public void addMutationListener(MutationListener listener) {
+        delegate.addMutationListener(listener);
+    }
+
+    @Override
+    public void applyPut(String key, String value) {
+        delegate.applyPut(key, value);
+        evictPending();
+    }
+
+    @Override
+    public void applyRemove(String key) {
+        delegate.applyRemove(key);
+    }
+
+    @Override
+    public void applyDeadline(String key, long deadlineMillis) {
+        delegate.applyDeadline(key, deadlineMillis);
+    }
+
+    @Override
+    public void forEachDeadline(ObjLongConsumer<String> action) {
+        delegate.forEachDeadline(action);
+    }
+
+    /** Runs under the delegate's lock for the key, so it only updates the policy; victims are removed later. */
+    private final class PolicyListener implements MutationListener {
+        @Override
+        public void onPut(String key, String value) {
+            onWrite(key, value);
+        }
+
+        @Override
+        public void onRemove(String key) {
+            forget(key);
+        }
+
+        @Override
+        public void onApplyPut(String key, String value) {
+            onWrite(key, value);
+        }
+
+        @Override
+        public void onApplyRemove(String key) {
+            forget(key);
+        }
+    }
+
+    private static final class Node {
+        final String key;
+        long weight;
+        byte queue = WINDOW;
+        Node previous;
+        Node next;
+
+        Node(String key, long weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    /** Doubly linked list from least to most recently used. */
+    private static final class AccessQueue {
+        private final Node head = new Node(null, 0);
+
+        AccessQueue() {
+            head.previous = head;
+            head.next = head;
+        }
+
+        Node first() {
+            return head.next == head ? null : head.next;
+        }
+
+        void addLast(Node node) {
+            node.previous = head.previous;
+            node.next = head;
+            head.previous.next = node;
+            head.previous = node;
+        }
+
+        void remove(Node node) {
+            node.previous.next = node.next;
+            node.next.previous = node.previous;
+            node.previous = null;
+            node.next = null;
+        }
+    }
+
+    /**
+     * A ring of keys read but not yet applied to the policy. Readers claim a slot with one CAS and
+     * drop the key when the ring is full or the CAS loses, since a missed read only makes the
+     * policy slightly less accurate; the drainer runs under the eviction lock.
+     */
+    private static final class ReadBuffer {
+        private final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head;
+
+        /** @return the number of keys waiting, for deciding whether to drain */
+        long offer(String key) {
+            long t = tail.get();
+            long pending = t - head;
+            if (pending < READ_BUFFER_SIZE && tail.compareAndSet(t, t + 1)) {
+                slots.lazySet((int) (t & (READ_BUFFER_SIZE - 1)), key);
+                return pending + 1;
+            }
+            return pending;
+        }
+
+        void drainTo(BoundedKeyValueStore store) {
+            long h = head;
+            long t = tail.get();
+            while (h < t) {
+                int index = (int) (h & (READ_BUFFER_SIZE - 1));
+                String key = slots.get(index);
+                if (key == null) {
+                    // Claimed but not written yet; pick it up next time.
+                    break;
+                }
+                slots.lazySet(index, null);
+                store.onRead(key);
+                h++;
+            }
+            head = h;
+        }
+    }
+}
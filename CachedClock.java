@@ -0,0 +1,39 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Formats {@code [yyyy-MM-dd HH:mm:ss.SSS]} timestamps at most once per millisecond and shares
+ * the result between threads; callers within the same millisecond get the same string.
+ */
+public final class CachedClock {
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static volatile Stamp current = new Stamp(Long.MIN_VALUE, "");
+
+    private CachedClock() {
+    }
+
+    public static String timestamp() {
+        return timestamp(System.currentTimeMillis());
+    }
+
+    public static String timestamp(long millis) {
+        Stamp stamp = current;
+        if (stamp.millis != millis) {
+            stamp = new Stamp(millis, "[" + FORMAT.format(Instant.ofEpochMilli(millis)) + "]");
+            current = stamp;
+        }
+        return stamp.text;
+    }
+
+    private static final class Stamp {
+        final long millis;
+        final String text;
+
+        Stamp(long millis, String text) {
+            this.millis = millis;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+public enum Command {
+    PUT(BinaryProtocol.OP_PUT),
+    GET(BinaryProtocol.OP_GET),
+    DELETE(BinaryProtocol.OP_DELETE),
+    KEYS(BinaryProtocol.OP_KEYS),
+    STAT(BinaryProtocol.OP_STAT),
+    QUIT(BinaryProtocol.OP_QUIT),
+    MGET(BinaryProtocol.OP_MGET),
+    MPUT(BinaryProtocol.OP_MPUT),
+    MDELETE(BinaryProtocol.OP_MDELETE),
+    SCAN(BinaryProtocol.OP_SCAN),
+    EXPIRE(BinaryProtocol.OP_EXPIRE),
+    TRACKING(BinaryProtocol.OP_TRACKING),
+    UNKNOWN((byte) 0);
+
+    private static final Command[] BY_OPCODE = new Command[256];
+
+    static {
+        for (Command command : values()) {
+            if (command != UNKNOWN) {
+                BY_OPCODE[command.opcode & 0xFF] = command;
+            }
+        }
+    }
+
+    public final byte opcode;
+
+    Command(byte opcode) {
+        this.opcode = opcode;
+    }
+
+    /** @return whether the command changes the store, which a read-only replica refuses */
+    public boolean isWrite() {
+        return this == PUT || this == DELETE || this == MPUT || this == MDELETE || this == EXPIRE;
+    }
+
+    public static Command fromOpcode(byte opcode) {
+        Command command = BY_OPCODE[opcode & 0xFF];
+        return command != null ? command : UNKNOWN;
+    }
+
+    public static Command fromName(String name) {
+        switch (name) {
+            case "PUT":
+                return PUT;
+            case "GET":
+                return GET;
+            case "DELETE":
+                return DELETE;
+            case "KEYS":
+                return KEYS;
+            case "STAT":
+                return STAT;
+            case "QUIT":
+                return QUIT;
+            case "MGET":
+                return MGET;
+            case "MPUT":
+                return MPUT;
+            case "MDELETE":
+                return MDELETE;
+            case "SCAN":
+                return SCAN;
+            case "EXPIRE":
+                return EXPIRE;
+            default:
+                return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable consistent-hash ring. Each node is placed at {@code virtualNodes} points derived from
+ * its name, and a key belongs to the first point at or after the key's hash. Adding or removing a
+ * node therefore only moves the keys between its points and their predecessors, about
+ * {@code 1 / nodes} of all keys, and virtual nodes keep the shares even.
+ *
+ * <p>{@link #with} and {@link #without} return new rings, so a lookup never sees a ring while it
+ * is being changed.
+ */
+public final class ConsistentHashRing<T> {
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final int virtualNodes;
+    private final List<String> names;
+    private final List<T> nodes;
+    private final long[] points;
+    private final int[] owners;
+
+    public ConsistentHashRing(int virtualNodes) {
+        this(virtualNodes, Collections.emptyList(), Collections.emptyList());
+    }
+
+    private ConsistentHashRing(int virtualNodes, List<String> names, List<T> nodes) {
+        this.virtualNodes = virtualNodes;
+        this.names = names;
+        this.nodes = nodes;
+        long[] hashes = new long[names.size() * virtualNodes];
+        Integer[] order = new Integer[hashes.length];
+        for (int point = 0; point < hashes.length; point++) {
+            hashes[point] = hash(names.get(point / virtualNodes) + "#" + point % virtualNodes);
+            order[point] = point;
+        }
+        Arrays.sort(order, (a, b) -> Long.compareUnsigned(hashes[a], hashes[b]));
+        this.points = new long[hashes.length];
+        this.owners = new int[hashes.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = order[i] / virtualNodes;
+        }
+    }
+
+    /** @return a ring that also contains {@code node} under {@code name}, replacing a node of that name */
+    public ConsistentHashRing<T> with(String name, T node) {
+        List<String> newNames = new ArrayList<>(names);
+        List<T> newNodes = new ArrayList<>(nodes);
+        int existing = newNames.indexOf(name);
+        if (existing >= 0) {
+            newNodes.set(existing, node);
+        } else {
+            newNames.add(name);
+            newNodes.add(node);
+        }
+        return new ConsistentHashRing<>(virtualNodes, newNames, newNodes);
+    }
+
+    public ConsistentHashRing<T> without(String name) {
+        List<String> newNames = new ArrayList<>(names);
+        List<T> newNodes = new ArrayList<>(nodes);
+        int existing = newNames.indexOf(name);
+        if (existing >= 0) {
+            newNames.remove(existing);
+            newNodes.remove(existing);
+        }
+        return new ConsistentHashRing<>(virtualNodes, newNames, newNodes);
+    }
+
+    /** @throws IllegalStateException if the ring is empty */
+    public T nodeFor(String key) {
+        if (points.length == 0) {
+            throw new IllegalStateException("No nodes in the ring");
+        }
+        long hash = hash(key);
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Long.compareUnsigned(points[middle], hash) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return nodes.get(owners[low == points.length ? 0 : low]);
+    }
+
+    public T node(String name) {
+        int index = names.indexOf(name);
+        return index < 0 ? null : nodes.get(index);
+    }
+
+    public List<T> nodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /** FNV-1a over the UTF-16 code units, finished with MurmurHash3's 64-bit mixer. */
+    static long hash(String value) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays Zipfian key traces against a {@link BoundedKeyValueStore} and reports hit rates for
+ * W-TinyLFU ({@code --eviction-window=1}) and plain LRU ({@code --eviction-window=100}) at
+ * several budgets. Every request is a GET, followed by a PUT of the key on a miss, as an
+ * application using the store as a cache would do.
+ *
+ * <pre>java EvictionBenchmark --keys=1000000 --requests=5000000 --sizes=1,5,10 --thetas=0.8,0.99 --threads=4</pre>
+ *
+ * {@code --requests} is per thread and {@code --sizes} are budgets in percent of the key space, in
+ * entries. Output is CSV; the first {@code --warmup} requests of each thread (default a fifth)
+ * fill the store and are not counted.
+ */
+public final class EvictionBenchmark {
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = new ServerOptions(args);
+        Log.configure(options);
+        int keys = options.getInt("keys", 1_000_000);
+        int requests = options.getInt("requests", 5_000_000);
+        int threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+        int warmup = options.getInt("warmup", requests / 5);
+        System.out.println("policy,theta,size_percent,entries,hit_rate,evictions,ops_per_sec");
+        for (String theta : options.getString("thetas", "0.8,0.99").split(",")) {
+            ZipfianGenerator generator = new ZipfianGenerator(keys, Double.parseDouble(theta), true);
+            for (String size : options.getString("sizes", "1,5,10").split(",")) {
+                long entries = Math.max(1, (long) (keys * Double.parseDouble(size) / 100));
+                for (String policy : new String[] {"tinylfu", "lru"}) {
+                    BoundedKeyValueStore store = new BoundedKeyValueStore(new StripedKeyValueStore(StripedKeyValueStore.defaultStripeCount()),
+                            entries, false, "lru".equals(policy) ? 100 : 1);
+                    Result result = replay(store, generator, requests, warmup, threads);
+                    System.out.printf("%s,%s,%s,%d,%.4f,%d,%.0f%n", policy, theta, size, entries,
+                            (double) result.hits / Math.max(1, result.hits + result.misses), store.evictions(), result.opsPerSecond);
+                }
+            }
+        }
+    }
+
+    private static final class Result {
+        final long hits;
+        final long misses;
+        final double opsPerSecond;
+
+        Result(long hits, long misses, double opsPerSecond) {
+            this.hits = hits;
+            this.misses = misses;
+            this.opsPerSecond = opsPerSecond;
+        }
+    }
+
+    /** Counts hits, misses and requests per second over the measured part of every thread's trace. */
+    private static Result replay(BoundedKeyValueStore store, ZipfianGenerator generator, int requests, int warmup, int threads)
+            throws InterruptedException {
+        long[] measuredNanos = new long[threads];
+        long[] hitsAtStart = new long[1];
+        long[] missesAtStart = new long[1];
+        Object warm = new Object();
+        int[] warmed = new int[1];
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < warmup; i++) {
+                    request(store, generator.next());
+                }
+                synchronized (warm) {
+                    // Counters restart once every thread has warmed up, so the hit rate covers a full store.
+                    if (++warmed[0] == threads) {
+                        hitsAtStart[0] = store.hits();
+                        missesAtStart[0] = store.misses();
+                        warm.notifyAll();
+                    }
+                    while (warmed[0] < threads) {
+                        try {
+                            warm.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                long start = System.nanoTime();
+                for (int i = warmup; i < requests; i++) {
+                    request(store, generator.next());
+                }
+                measuredNanos[index] = System.nanoTime() - start;
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long slowest = 1;
+        for (int t = 0; t < threads; t++) {
+            workers.get(t).join();
+            slowest = Math.max(slowest, measuredNanos[t]);
+        }
+        return new Result(store.hits() - hitsAtStart[0], store.misses() - missesAtStart[0],
+                (double) threads * (requests - warmup) * 1_000_000_000L / slowest);
+    }
+
+    private static void request(KeyValueStore store, int item) {
+        String key = "k" + item;
+        if (store.get(key) == null) {
+            store.putIfAbsent(key, "v" + item);
+        }
+    }
+}
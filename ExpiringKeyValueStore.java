@@ -0,0 +1,449 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Adds per-key time to live to another store. A key stored with a TTL, or given one by
+ * {@link #expire}, gets a {@link TimingWheel.Timer}; a daemon thread advances the wheel every
+ * {@code --expiry-tick} milliseconds and removes the keys whose timers fire, so expiry costs O(1)
+ * per key and never scans the store. Reads check the key's deadline as well, which hides an
+ * expired key between its deadline and the next tick. KEYS, SCAN and snapshots sent to followers
+ * skip such keys; {@link #size()} may still count them.
+ *
+ * <p>Each deadline is also passed down with {@link KeyValueStore#setDeadline} as epoch
+ * milliseconds, so a {@link PersistentKeyValueStore} logs it and keeps it in its snapshots and a
+ * {@link ReplicationPrimary} sends it to followers. On startup the timers are re-armed from the
+ * recovered deadlines, and a follower arms a timer for each deadline it applies; a deadline that
+ * passed in the meantime hides the key at once and removes it on the next tick. Expiry removes
+ * keys through the delegate's normal {@link #remove}, so the log and followers also see an
+ * ordinary DELETE.
+ *
+ * <p>Writes to a key are serialized by one of 256 locks so that a firing timer cannot remove a
+ * value written after the deadline it was set for.
+ */
+public final class ExpiringKeyValueStore implements KeyValueStore {
+    private static final int LOCKS = 256;
+
+    private final KeyValueStore delegate;
+    private final TimingWheel wheel;
+    private final long tickMillis;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCKS];
+    private final ConcurrentHashMap<String, TimingWheel.Timer> timers = new ConcurrentHashMap<>();
+    private final LongAdder expiredByWheel = new LongAdder();
+    private final LongAdder expiredOnAccess = new LongAdder();
+
+    public ExpiringKeyValueStore(KeyValueStore delegate, long tickMillis) {
+        this.delegate = delegate;
+        this.tickMillis = Math.max(1, tickMillis);
+        this.wheel = new TimingWheel(TimeUnit.MILLISECONDS.toNanos(this.tickMillis), System.nanoTime());
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        delegate.addMutationListener(new TimerListener());
+        delegate.forEachDeadline(this::restoreTimer);
+    }
+
+    /** Wraps {@code delegate} and starts the wheel; {@code --expiry-tick} sets its resolution (default 10 ms). */
+    public static ExpiringKeyValueStore fromOptions(KeyValueStore delegate, ServerOptions options) {
+        ExpiringKeyValueStore store = new ExpiringKeyValueStore(delegate, options.getLong("expiry-tick", 10));
+        store.start();
+        return store;
+    }
+
+    /** Advances the wheel on a daemon thread. */
+    public void start() {
+        Thread ticker = new Thread(this::tick, "expiry-wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Reports {@code expiredKeys} (removed by the wheel or found expired when the key was next
+     * accessed), {@code expiredOnAccess} and {@code expiringKeys} (keys with a pending TTL).
+     */
+    @Override
+    public void registerMetrics(Metrics metrics) {
+        delegate.registerMetrics(metrics);
+        metrics.gauge("expiredKeys", this::expiredKeys);
+        metrics.gauge("expiredOnAccess", expiredOnAccess::sum);
+        metrics.gauge("expiringKeys", this::expiringKeys);
+    }
+
+    public long expiredKeys() {
+        return expiredByWheel.sum() + expiredOnAccess.sum();
+    }
+
+    /** @return the keys with a pending TTL */
+    public int expiringKeys() {
+        return timers.size();
+    }
+
+    private void tick() {
+        List<TimingWheel.Timer> fired = new ArrayList<>();
+        while (true) {
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            wheel.advance(System.nanoTime(), fired);
+            for (TimingWheel.Timer timer : fired) {
+                ReentrantLock lock = lockFor(timer.key);
+                lock.lock();
+                try {
+                    if (timers.get(timer.key) != timer) {
+                        continue;
+                    }
+                    if (!timer.isDue(System.nanoTime())) {
+                        // Parked beyond the wheel's range; wait another round.
+                        wheel.schedule(timer);
+                    } else {
+                        timers.remove(timer.key);
+                        try {
+                            if (removeExpired(timer)) {
+                                expiredByWheel.increment();
+                            }
+                        } catch (RuntimeException e) {
+                            Log.error(" Expiring ", timer.key, " failed: ", e);
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            fired.clear();
+        }
+    }
+
+    private ReentrantLock lockFor(String key) {
+        int h = key.hashCode();
+        return locks[(h ^ (h >>> 16)) & (LOCKS - 1)];
+    }
+
+    private ReentrantLock[] lockAll(String[] keys) {
+        int[] indexes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            int h = keys[i].hashCode();
+            indexes[i] = (h ^ (h >>> 16)) & (LOCKS - 1);
+        }
+        int[] distinct = Arrays.stream(indexes).sorted().distinct().toArray();
+        ReentrantLock[] held = new ReentrantLock[distinct.length];
+        for (int i = 0; i < distinct.length; i++) {
+            held[i] = locks[distinct[i]];
+            held[i].lock();
+        }
+        return held;
+    }
+
+    private static void unlockAll(ReentrantLock[] held) {
+        for (int i = held.length - 1; i >= 0; i--) {
+            held[i].unlock();
+        }
+    }
+
+    /** @return whether the key has a TTL that has run out; checked without the key's lock */
+    private boolean isExpired(String key) {
+        if (timers.isEmpty()) {
+            return false;
+        }
+        TimingWheel.Timer timer = timers.get(key);
+        return timer != null && timer.isDue(System.nanoTime());
+    }
+
+    /** Caller holds the key's lock. Removes the key if its TTL has run out. */
+    private void expireIfDue(String key) {
+        TimingWheel.Timer timer = timers.get(key);
+        if (timer != null && timer.isDue(System.nanoTime())) {
+            timers.remove(key);
+            wheel.cancel(timer);
+            if (removeExpired(timer)) {
+                expiredOnAccess.increment();
+            }
+        }
+    }
+
+    /**
+     * Caller holds the key's lock and has taken out its due timer. If the delegate refuses the
+     * removal (a failed write-ahead log) the timer goes back, unscheduled, so reads keep hiding the
+     * key and the next access tries again.
+     */
+    private boolean removeExpired(TimingWheel.Timer timer) {
+        try {
+            return delegate.remove(timer.key);
+        } catch (RuntimeException e) {
+            timers.put(timer.key, timer);
+            throw e;
+        }
+    }
+
+    /** Caller holds the key's lock, or is removing the key below this layer. */
+    private void clearTimer(String key) {
+        TimingWheel.Timer timer = timers.remove(key);
+        if (timer != null) {
+            wheel.cancel(timer);
+        }
+    }
+
+    /** Caller holds the key's lock. */
+    private void setTimer(String key, long ttlMillis) {
+        schedule(key, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+    }
+
+    /** Arms a timer for a recovered or replicated deadline; see {@link #clearTimer} for the locking. */
+    private void restoreTimer(String key, long deadlineMillis) {
+        schedule(key, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis - System.currentTimeMillis()));
+    }
+
+    private void schedule(String key, long deadlineNanos) {
+        TimingWheel.Timer timer = new TimingWheel.Timer(key, deadlineNanos);
+        TimingWheel.Timer previous = timers.put(key, timer);
+        if (previous != null) {
+            wheel.cancel(previous);
+        }
+        wheel.schedule(timer);
+    }
+
+    /** Removes an expired key on the reading thread rather than waiting for the wheel. */
+    private void expireNow(String key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            expireIfDue(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        if (isExpired(key)) {
+            expireNow(key);
+            return null;
+        }
+        return delegate.get(key);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            expireIfDue(key);
+            if (!delegate.putIfAbsent(key, value)) {
+                return false;
+            }
+            clearTimer(key);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value, long ttlMillis) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            expireIfDue(key);
+            if (!delegate.putIfAbsent(key, value)) {
+                return false;
+            }
+            setTimer(key, ttlMillis);
+            delegate.setDeadline(key, System.currentTimeMillis() + ttlMillis);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean expire(String key, long ttlMillis) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            expireIfDue(key);
+            if (!delegate.setDeadline(key, System.currentTimeMillis() + ttlMillis)) {
+                return false;
+            }
+            setTimer(key, ttlMillis);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            expireIfDue(key);
+            clearTimer(key);
+            return delegate.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String[] getAll(String[] keys) {
+        String[] values = delegate.getAll(keys);
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null && isExpired(keys[i])) {
+                expireNow(keys[i]);
+                values[i] = null;
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public boolean[] putAllIfAbsent(String[] keys, String[] values) {
+        ReentrantLock[] held = lockAll(keys);
+        try {
+            for (String key : keys) {
+                expireIfDue(key);
+            }
+            boolean[] stored = delegate.putAllIfAbsent(keys, values);
+            for (int i = 0; i < keys.length; i++) {
+                if (stored[i]) {
+                    clearTimer(keys[i]);
+                }
+            }
+            return stored;
+        } finally {
+            unlockAll(held);
+        }
+    }
+
+    @Override
+    public boolean[] removeAll(String[] keys) {
+        ReentrantLock[] held = lockAll(keys);
+        try {
+            for (String key : keys) {
+                expireIfDue(key);
+                clearTimer(key);
+            }
+            return delegate.removeAll(keys);
+        } finally {
+            unlockAll(held);
+        }
+    }
+
+    @Override
+    public List<String> keys() {
+        List<String> keys = delegate.keys();
+        if (!timers.isEmpty()) {
+            keys.removeIf(this::isExpired);
+        }
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        if (timers.isEmpty()) {
+            delegate.forEach(action);
+            return;
+        }
+        delegate.forEach((key, value) -> {
+            if (!isExpired(key)) {
+                action.accept(key, value);
+            }
+        });
+    }
+
+    @Override
+    public KeyScan.Page scan(long cursor, int count) {
+        KeyScan.Page page = delegate.scan(cursor, count);
+        if (!timers.isEmpty()) {
+            page.keys.removeIf(this::isExpired);
+        }
+        return page;
+    }
+
+    @Override
+    public void addMutationListener(MutationListener listener) {
+        delegate.addMutationListener(listener);
+    }
+
+    /**
+     * Clears the timer after the delegate has applied the put: a {@link MappedSnapshotStore}
+     * copying the key's snapshot entry first re-arms the old deadline.
+     */
+    @Override
+    public void applyPut(String key, String value) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            delegate.applyPut(key, value);
+            clearTimer(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void applyRemove(String key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            delegate.applyRemove(key);
+            clearTimer(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The delegate reports the deadline to {@link TimerListener} if the key is present, which arms the timer. */
+    @Override
+    public void applyDeadline(String key, long deadlineMillis) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            delegate.applyDeadline(key, deadlineMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void forEachDeadline(ObjLongConsumer<String> action) {
+        long nowNanos = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        timers.forEach((key, timer) -> action.accept(key, nowMillis + TimeUnit.NANOSECONDS.toMillis(timer.deadlineNanos - nowNanos)));
+    }
+
+    /**
+     * Drops the timer of a key removed below this layer, for instance evicted by a
+     * {@link BoundedKeyValueStore}, and arms one for a deadline replayed below it, for instance by
+     * a {@link MappedSnapshotStore} copying a snapshot entry. A timer set for a value that is
+     * removed before the timer is stored stays behind, but it is cleared when the key is written
+     * again and otherwise only removes an absent key.
+     */
+    private final class TimerListener implements MutationListener {
+        @Override
+        public void onPut(String key, String value) {
+        }
+
+        @Override
+        public void onRemove(String key) {
+            clearTimer(key);
+        }
+
+        @Override
+        public void onApplyDeadline(String key, long deadlineMillis) {
+            restoreTimer(key, deadlineMillis);
+        }
+    }
+}
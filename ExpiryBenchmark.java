@@ -0,0 +1,152 @@
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what per-key TTLs cost. Each mode runs in a fresh JVM with the same JVM options as
+ * this one:
+ * <ul>
+ * <li>{@code engine}: the bare store engine, no expiry layer;</li>
+ * <li>{@code plain}: the {@link ExpiringKeyValueStore} holding keys without a TTL;</li>
+ * <li>{@code ttl}: every key stored with a TTL of {@code --ttl} seconds plus up to
+ * {@code --ttl-spread} seconds.</li>
+ * </ul>
+ *
+ * <pre>java -Xmx4g ExpiryBenchmark --modes=engine,plain,ttl --keys=5000000 --seconds=10 --ttl=60 --ttl-spread=10</pre>
+ *
+ * Output is CSV: memory per entry, fill time, GET throughput from one thread per CPU, and for
+ * {@code ttl} the wheel thread's CPU time per expired key and how long after the last deadline
+ * the store was empty. The TTL must outlast the fill and the GET phase, or keys expire early.
+ */
+public final class ExpiryBenchmark {
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = new ServerOptions(args);
+        if (options.getBoolean("single")) {
+            runSingle(options);
+            return;
+        }
+        System.out.println("mode,keys,bytes_per_entry,fill_ms,get_ops_per_sec,expired,wheel_cpu_ms,wheel_ns_per_key,drain_lag_ms");
+        for (String mode : options.getString("modes", "engine,plain,ttl").split(",")) {
+            List<String> command = new ArrayList<>();
+            command.add(ProcessHandle.current().info().command().orElse("java"));
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ExpiryBenchmark.class.getName());
+            command.add("--single");
+            command.add("--mode=" + mode);
+            command.add("--store=" + options.getString("store", "striped"));
+            command.add("--keys=" + options.getInt("keys", 5_000_000));
+            command.add("--seconds=" + options.getInt("seconds", 10));
+            command.add("--ttl=" + options.getInt("ttl", 60));
+            command.add("--ttl-spread=" + options.getInt("ttl-spread", 10));
+            command.add("--expiry-tick=" + options.getLong("expiry-tick", 10));
+            Process process = new ProcessBuilder(command).inheritIO().start();
+            if (process.waitFor() != 0) {
+                System.out.println(mode + ",failed,,,,,,,");
+            }
+        }
+    }
+
+    private static void runSingle(ServerOptions options) throws Exception {
+        String mode = options.getString("mode", "ttl");
+        int keys = options.getInt("keys", 5_000_000);
+        int seconds = options.getInt("seconds", 10);
+        long ttlMillis = TimeUnit.SECONDS.toMillis(options.getInt("ttl", 60));
+        long spreadMillis = Math.max(1, TimeUnit.SECONDS.toMillis(options.getInt("ttl-spread", 10)));
+
+        long baseline = usedMemory();
+        long fillStart = System.nanoTime();
+        KeyValueStore store = "engine".equals(mode) ? KeyValueStores.createEngine(options)
+                : ExpiringKeyValueStore.fromOptions(KeyValueStores.createEngine(options), options);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long lastDeadline = 0;
+        for (int i = 0; i < keys; i++) {
+            if ("ttl".equals(mode)) {
+                long ttl = ttlMillis + random.nextLong(spreadMillis);
+                store.putIfAbsent("k" + i, "v" + (i % 1_000_000), ttl);
+                lastDeadline = Math.max(lastDeadline, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl));
+            } else {
+                store.putIfAbsent("k" + i, "v" + (i % 1_000_000));
+            }
+        }
+        long fillMillis = (System.nanoTime() - fillStart) / 1_000_000;
+        double bytesPerEntry = (double) (usedMemory() - baseline) / keys;
+        double getsPerSecond = measureGets(store, keys, seconds);
+
+        if (!"ttl".equals(mode)) {
+            System.out.printf("%s,%d,%.1f,%d,%.0f,,,,%n", mode, keys, bytesPerEntry, fillMillis, getsPerSecond);
+            System.exit(0);
+        }
+        ExpiringKeyValueStore expiring = (ExpiringKeyValueStore) store;
+        if (expiring.expiredKeys() > 0) {
+            System.err.println("Keys expired during the fill or GET phase; raise --ttl");
+        }
+        long wheelCpuBefore = wheelCpuNanos();
+        long expiredBefore = expiring.expiredKeys();
+        while (store.size() > 0) {
+            Thread.sleep(1);
+        }
+        long drainLagMillis = Math.max(0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastDeadline));
+        long expired = expiring.expiredKeys() - expiredBefore;
+        long wheelCpu = wheelCpuNanos() - wheelCpuBefore;
+        System.out.printf("%s,%d,%.1f,%d,%.0f,%d,%d,%.0f,%d%n", mode, keys, bytesPerEntry, fillMillis, getsPerSecond, expired,
+                wheelCpu / 1_000_000, (double) wheelCpu / Math.max(1, expired), drainLagMillis);
+        System.exit(0);
+    }
+
+    private static double measureGets(KeyValueStore store, int keys, int seconds) throws InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long[] operations = new long[threads];
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                    store.get("k" + random.nextInt(keys));
+                    count++;
+                }
+                operations[index] = count;
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers.get(t).join();
+            total += operations[t];
+        }
+        return (double) total / seconds;
+    }
+
+    private static long wheelCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && info.getThreadName().equals("expiry-wheel")) {
+                return threads.getThreadCpuTime(info.getThreadId());
+            }
+        }
+        return 0;
+    }
+
+    /** Live heap after a full collection plus memory held by direct buffers. */
+    private static long usedMemory() {
+        System.gc();
+        System.gc();
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                used += pool.getMemoryUsed();
+            }
+        }
+        return used;
+    }
+}
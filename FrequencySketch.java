@@ -0,0 +1,79 @@
+/**
+ * Count-min sketch of 4-bit counters estimating how often each key has been seen recently, the
+ * admission filter of {@link BoundedKeyValueStore} (TinyLFU, Einziger et al.). Every long holds
+ * sixteen counters; a key's four counters lie in one long each, chosen by four hashes. After
+ * ten times {@code capacity} increments every counter is halved, so old popularity fades.
+ *
+ * <p>Not thread-safe; the store calls it under its eviction lock.
+ */
+public final class FrequencySketch {
+    private static final long[] SEEDS = {0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private final long[] table;
+    private final int sampleSize;
+    private int size;
+
+    /** @param capacity the number of keys expected to be tracked; sizes the table and the sample */
+    public FrequencySketch(long capacity) {
+        int length = (int) Math.min(1 << 30, Math.max(64, Long.highestOneBit(Math.max(1, capacity - 1)) << 1));
+        table = new long[length];
+        sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * length);
+    }
+
+    /** @return the estimated recent frequency of the key with this hash code, at most 15 */
+    public int frequency(int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            int shift = (start + i) << 2;
+            frequency = Math.min(frequency, (int) ((table[indexOf(hash, i)] >>> shift) & 0xF));
+        }
+        return frequency;
+    }
+
+    public void increment(int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int shift = counter << 2;
+        long mask = 0xFL << shift;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << shift;
+            return true;
+        }
+        return false;
+    }
+
+    /** Halves every counter; the odd counts lost to rounding are taken off the sample size too. */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (odd >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & (table.length - 1);
+    }
+
+    private static int spread(int hashCode) {
+        int h = hashCode * 0x9E3779B9;
+        return h ^ (h >>> 17);
+    }
+}
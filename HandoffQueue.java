@@ -0,0 +1,140 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded multi-producer, multi-consumer queue on a ring of sequence-numbered cells (Vyukov's
+ * design). Unlike {@code ArrayBlockingQueue}, no operation allocates: a consumer blocked in
+ * {@link #take} parks itself in a fixed array of waiter slots instead of queueing a condition
+ * node, and {@link #offer} unparks one registered waiter.
+ */
+public final class HandoffQueue<T> {
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicReferenceArray<Thread> waiters;
+
+    /**
+     * @param capacity rounded up to a power of two
+     * @param consumers the most threads that will block in {@link #take} at once
+     */
+    public HandoffQueue(int capacity, int consumers) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1) << 1);
+        items = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        waiters = new AtomicReferenceArray<>(Math.max(1, consumers));
+    }
+
+    /**
+     * @return {@code false} if the queue is full
+     */
+    public boolean offer(T item) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    items.set(index, item);
+                    sequences.set(index, position + 1);
+                    wakeOne();
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return the oldest item, or {@code null} if the queue is empty
+     */
+    public T poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    T item = items.get(index);
+                    items.set(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return item;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    public T take() throws InterruptedException {
+        T item = poll();
+        if (item != null) {
+            return item;
+        }
+        Thread current = Thread.currentThread();
+        int slot = -1;
+        try {
+            while (true) {
+                if (slot < 0 || waiters.get(slot) != current) {
+                    slot = register(current);
+                }
+                item = poll();
+                if (item != null) {
+                    return item;
+                }
+                if (slot < 0) {
+                    LockSupport.parkNanos(this, 50_000);
+                } else {
+                    LockSupport.park(this);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            if (slot >= 0) {
+                waiters.compareAndSet(slot, current, null);
+            }
+        }
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    /**
+     * @return the waiter slot taken, or -1 if all are in use and the caller has to poll
+     */
+    private int register(Thread thread) {
+        for (int i = 0; i < waiters.length(); i++) {
+            if (waiters.compareAndSet(i, null, thread)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void wakeOne() {
+        for (int i = 0; i < waiters.length(); i++) {
+            Thread waiter = waiters.get(i);
+            if (waiter != null && waiters.compareAndSet(i, waiter, null)) {
+                LockSupport.unpark(waiter);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server side of client tracking. Remembers which tracking connections have read which keys and,
+ * when such a key is written, queues an invalidation for each of them and forgets the key; a
+ * connection reading it again is tracked again. Keys are registered before the GET reads the
+ * store, so a write that the GET did not see always produces an invalidation.
+ *
+ * <p>The table holds at most {@code --tracking-keys} keys. Beyond that an arbitrary key is
+ * invalidated early to make room, as if it had been written. Connections that closed are only
+ * dropped from the table when their keys are invalidated.
+ *
+ * <p>Invalidations run as a {@link MutationListener}, under the store's key lock, so they only
+ * queue the key on the {@link TCPServer.Session}; the connection's own thread or event loop turns
+ * the queue into {@link BinaryProtocol#PUSH_INVALIDATE} frames with {@link #drain}.
+ */
+public final class InvalidationTracker implements MutationListener {
+    /** Invalidations a connection may have queued; beyond that it is told to drop its whole cache. */
+    static final int MAX_QUEUED = 65536;
+    private static final int MAX_KEYS_PER_PUSH = 512;
+    private static final TCPServer.Session[] NO_READERS = new TCPServer.Session[0];
+
+    private final ConcurrentHashMap<String, TCPServer.Session[]> readers = new ConcurrentHashMap<>();
+    private final int maxKeys;
+    private final LongAdder invalidations;
+
+    public InvalidationTracker(int maxKeys, Metrics metrics) {
+        this.maxKeys = Math.max(1, maxKeys);
+        this.invalidations = metrics.counter("invalidations");
+        metrics.gauge("trackedKeys", readers::size);
+    }
+
+    /** Options: {@code --tracking-keys} (default 1048576). */
+    public static InvalidationTracker fromOptions(ServerOptions options, Metrics metrics) {
+        return new InvalidationTracker(options.getInt("tracking-keys", 1 << 20), metrics);
+    }
+
+    /** Remembers that {@code session} is about to read {@code key}. */
+    public void track(String key, TCPServer.Session session) {
+        TCPServer.Session[] current = readers.get(key);
+        if (current != null && contains(current, session)) {
+            return;
+        }
+        readers.compute(key, (ignored, sessions) -> {
+            if (sessions == null) {
+                sessions = NO_READERS;
+            } else if (contains(sessions, session)) {
+                return sessions;
+            }
+            // Copy on write, leaving out connections that have closed since they read the key.
+            TCPServer.Session[] grown = new TCPServer.Session[sessions.length + 1];
+            int length = 0;
+            for (TCPServer.Session reader : sessions) {
+                if (!reader.closed) {
+                    grown[length++] = reader;
+                }
+            }
+            grown[length++] = session;
+            return length == grown.length ? grown : Arrays.copyOf(grown, length);
+        });
+        if (current == null && readers.size() > maxKeys) {
+            Iterator<String> keys = readers.keySet().iterator();
+            if (keys.hasNext()) {
+                invalidate(keys.next());
+            }
+        }
+    }
+
+    @Override
+    public void onPut(String key, String value) {
+        invalidate(key);
+    }
+
+    @Override
+    public void onRemove(String key) {
+        invalidate(key);
+    }
+
+    private void invalidate(String key) {
+        if (readers.isEmpty()) {
+            return;
+        }
+        TCPServer.Session[] sessions = readers.remove(key);
+        if (sessions == null) {
+            return;
+        }
+        for (TCPServer.Session session : sessions) {
+            if (session.invalidate(key)) {
+                invalidations.increment();
+            }
+        }
+    }
+
+    /**
+     * Takes the invalidations queued for {@code session} as push frames of up to 512 keys, led by
+     * a push without keys if the queue overflowed.
+     */
+    static List<BinaryProtocol.Message> drain(TCPServer.Session session) {
+        List<BinaryProtocol.Message> pushes = new ArrayList<>();
+        BlockingQueue<String> queued = session.invalidated;
+        if (queued == null) {
+            return pushes;
+        }
+        if (session.invalidationsLost) {
+            session.invalidationsLost = false;
+            queued.clear();
+            pushes.add(new BinaryProtocol.Message(BinaryProtocol.PUSH_INVALIDATE));
+        }
+        List<String> keys = new ArrayList<>();
+        while (queued.drainTo(keys, MAX_KEYS_PER_PUSH) > 0) {
+            pushes.add(new BinaryProtocol.Message(BinaryProtocol.PUSH_INVALIDATE, keys.toArray(new String[0])));
+            keys.clear();
+        }
+        return pushes;
+    }
+
+    private static boolean contains(TCPServer.Session[] sessions, TCPServer.Session session) {
+        for (TCPServer.Session reader : sessions) {
+            if (reader == session) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
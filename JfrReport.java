@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Turns a flight recording of a server into a per-command latency breakdown, from the events in
+ * {@link ServerEvents}:
+ *
+ * <pre>java -XX:StartFlightRecording=filename=kv.jfr TCPServer --log-level=off
+ * java JfrReport --recording=kv.jfr</pre>
+ *
+ * Output is CSV, one row per transport and command: mean times to parse the request (on a
+ * blocking socket including the wait for its remaining bytes), to run it in the store (lock waits
+ * included), to format the reply (the rest of the execution), and to write the reply into the
+ * output buffer or datagram, with p99s of parse, execute and write. Store operations are matched
+ * to the request whose execution encloses them on the same thread. Further sections list store
+ * operations, socket writes and connections. With {@code --trace-sample} the counts are those of
+ * the sampled requests.
+ */
+public final class JfrReport {
+    /** One request's execution and the store time and reply writes nested inside it. */
+    private static final class Execution {
+        final String key;
+        final long start;
+        final long end;
+        long storeNanos;
+        long writeNanos;
+
+        Execution(String key, long start, long end) {
+            this.key = key;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static final class Nested {
+        final long start;
+        final long end;
+        final boolean store;
+
+        Nested(long start, long end, boolean store) {
+            this.start = start;
+            this.end = end;
+            this.store = store;
+        }
+    }
+
+    /** Totals for one transport and command. */
+    private static final class Breakdown {
+        final LatencyHistogram parse = new LatencyHistogram();
+        final LatencyHistogram execute = new LatencyHistogram();
+        final LatencyHistogram write = new LatencyHistogram();
+        long storeNanos;
+        long formatNanos;
+    }
+
+    public static void main(String[] args) throws IOException {
+        ServerOptions options = new ServerOptions(args);
+        if (!options.has("recording")) {
+            System.err.println("Usage: java JfrReport --recording=<file.jfr>");
+            System.exit(2);
+        }
+        Path recording = Paths.get(options.getString("recording", ""));
+        Map<String, Breakdown> commands = new TreeMap<>();
+        Map<String, LatencyHistogram> operations = new TreeMap<>();
+        Map<Long, List<Execution>> executions = new HashMap<>();
+        Map<Long, List<Nested>> nested = new HashMap<>();
+        Map<String, LatencyHistogram> socketWrites = new TreeMap<>();
+        Map<String, Long> socketBytes = new HashMap<>();
+        LatencyHistogram connections = new LatencyHistogram();
+        long accepted = 0;
+        long refused = 0;
+
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+                long duration = event.getDuration().toNanos();
+                switch (event.getEventType().getName()) {
+                    case "kv.RequestParse":
+                        breakdown(commands, event).parse.record(duration);
+                        break;
+                    case "kv.RequestExecute":
+                        breakdown(commands, event).execute.record(duration);
+                        executions.computeIfAbsent(threadId(event), ignored -> new ArrayList<>())
+                                .add(new Execution(commandKey(event), nanos(event.getStartTime()), nanos(event.getEndTime())));
+                        break;
+                    case "kv.ResponseWrite":
+                        breakdown(commands, event).write.record(duration);
+                        nested.computeIfAbsent(threadId(event), ignored -> new ArrayList<>())
+                                .add(new Nested(nanos(event.getStartTime()), nanos(event.getEndTime()), false));
+                        break;
+                    case "kv.StoreOperation":
+                        operations.computeIfAbsent(event.getString("operation"), ignored -> new LatencyHistogram()).record(duration);
+                        nested.computeIfAbsent(threadId(event), ignored -> new ArrayList<>())
+                                .add(new Nested(nanos(event.getStartTime()), nanos(event.getEndTime()), true));
+                        break;
+                    case "kv.SocketWrite":
+                        socketWrites.computeIfAbsent(event.getString("transport"), ignored -> new LatencyHistogram()).record(duration);
+                        socketBytes.merge(event.getString("transport"), event.getLong("bytes"), Long::sum);
+                        break;
+                    case "kv.ConnectionAccept":
+                        if (event.getBoolean("admitted")) {
+                            accepted++;
+                        } else {
+                            refused++;
+                        }
+                        break;
+                    case "kv.Connection":
+                        connections.record(duration);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        attribute(executions, nested);
+        for (List<Execution> thread : executions.values()) {
+            for (Execution execution : thread) {
+                Breakdown breakdown = commands.get(execution.key);
+                breakdown.storeNanos += execution.storeNanos;
+                breakdown.formatNanos += Math.max(0, execution.end - execution.start - execution.storeNanos - execution.writeNanos);
+            }
+        }
+
+        System.out.println("transport,command,requests,parse_us,store_us,format_us,write_us,total_us,parse_p99_us,execute_p99_us,write_p99_us");
+        for (Map.Entry<String, Breakdown> entry : commands.entrySet()) {
+            Breakdown breakdown = entry.getValue();
+            long requests = breakdown.execute.count();
+            if (requests == 0) {
+                continue;
+            }
+            double store = breakdown.storeNanos / 1000.0 / requests;
+            double format = breakdown.formatNanos / 1000.0 / requests;
+            double parse = breakdown.parse.mean() / 1000.0;
+            double write = breakdown.write.mean() / 1000.0;
+            System.out.printf("%s,%d,%.2f,%.2f,%.2f,%.2f,%.2f,%.1f,%.1f,%.1f%n", entry.getKey(), requests, parse, store, format, write,
+                    parse + store + format + write, breakdown.parse.percentile(0.99) / 1000.0,
+                    breakdown.execute.percentile(0.99) / 1000.0, breakdown.write.percentile(0.99) / 1000.0);
+        }
+
+        System.out.println();
+        System.out.println("store_operation,calls,mean_us,p99_us");
+        for (Map.Entry<String, LatencyHistogram> entry : operations.entrySet()) {
+            LatencyHistogram latency = entry.getValue();
+            System.out.printf("%s,%d,%.2f,%.1f%n", entry.getKey(), latency.count(), latency.mean() / 1000.0, latency.percentile(0.99) / 1000.0);
+        }
+
+        System.out.println();
+        System.out.println("socket_writes,calls,bytes,mean_us,p99_us");
+        for (Map.Entry<String, LatencyHistogram> entry : socketWrites.entrySet()) {
+            LatencyHistogram latency = entry.getValue();
+            System.out.printf("%s,%d,%d,%.2f,%.1f%n", entry.getKey(), latency.count(), socketBytes.get(entry.getKey()),
+                    latency.mean() / 1000.0, latency.percentile(0.99) / 1000.0);
+        }
+
+        System.out.println();
+        System.out.println("connections_accepted,connections_refused,connections_closed,mean_lifetime_ms");
+        System.out.printf("%d,%d,%d,%.1f%n", accepted, refused, connections.count(), connections.mean() / 1_000_000.0);
+    }
+
+    /**
+     * Adds each store operation and reply write to the execution on the same thread that
+     * encloses it; those outside any execution (expiry, replication, TCP reply writes) are left out.
+     */
+    private static void attribute(Map<Long, List<Execution>> executions, Map<Long, List<Nested>> nested) {
+        for (Map.Entry<Long, List<Nested>> entry : nested.entrySet()) {
+            List<Execution> thread = executions.get(entry.getKey());
+            if (thread == null) {
+                continue;
+            }
+            thread.sort(Comparator.comparingLong(execution -> execution.start));
+            for (Nested inner : entry.getValue()) {
+                int low = 0;
+                int high = thread.size() - 1;
+                // The last execution that started at or before the nested event.
+                while (low <= high) {
+                    int middle = (low + high) >>> 1;
+                    if (thread.get(middle).start <= inner.start) {
+                        low = middle + 1;
+                    } else {
+                        high = middle - 1;
+                    }
+                }
+                if (high < 0 || thread.get(high).end < inner.end) {
+                    continue;
+                }
+                Execution execution = thread.get(high);
+                if (inner.store) {
+                    execution.storeNanos += inner.end - inner.start;
+                } else {
+                    execution.writeNanos += inner.end - inner.start;
+                }
+            }
+        }
+    }
+
+    private static Breakdown breakdown(Map<String, Breakdown> commands, RecordedEvent event) {
+        return commands.computeIfAbsent(commandKey(event), ignored -> new Breakdown());
+    }
+
+    private static String commandKey(RecordedEvent event) {
+        return event.getString("transport") + "," + event.getString("command");
+    }
+
+    private static long threadId(RecordedEvent event) {
+        return event.getThread() == null ? -1 : event.getThread().getJavaThreadId();
+    }
+
+    private static long nanos(Instant time) {
+        return time.getEpochSecond() * 1_000_000_000L + time.getNano();
+    }
+}
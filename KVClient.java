@@ -0,0 +1,611 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe client for TCPServer. Requests from any number of threads are multiplexed over a
+ * bounded pool of {@link PipelinedConnection}s: a caller picks the less busy of two connections,
+ * queues its request and gets a future, so it never waits for another caller's round trip and
+ * never opens a socket of its own.
+ *
+ * <p>Connections are opened lazily, replaced when they fail, and probed with a STAT when they
+ * have been idle for a health interval; a probe that is not answered within the request timeout
+ * closes the connection, which fails its outstanding requests instead of leaving them hanging.
+ * Failed requests are not retried, since a PUT or DELETE may already have been applied.
+ *
+ * <p>Given several servers the client shards keys over them with a {@link ConsistentHashRing} and
+ * fans KEYS and batch requests out to the shards, merging the replies; SCAN visits the shards in
+ * turn.
+ *
+ * <p>With a near cache ({@code nearCacheEntries > 0}) every connection turns on client tracking and
+ * {@link #get} serves repeated reads from a {@link NearCache}, which the server keeps consistent by
+ * pushing an invalidation whenever a key the client read is written. This client's own writes
+ * invalidate their keys locally when they complete, so it always reads its own writes.
+ *
+ * <p>The typed operations use the binary protocol. A client created with {@code binary = false}
+ * only supports {@link #execute(String)}, which passes text requests and replies through as the
+ * console client shows them.
+ */
+public final class KVClient implements Closeable {
+    private static final int MAX_IN_FLIGHT = 1024;
+    /** With several servers, the cursor bits above this select the shard being scanned. */
+    private static final int SHARD_SHIFT = 48;
+
+    private final int poolSize;
+    private final boolean binary;
+    private final long requestTimeoutMillis;
+    private final long reconnectDelayNanos;
+    private volatile ConsistentHashRing<Node> ring = new ConsistentHashRing<>(ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+    private final ScheduledExecutorService healthChecker;
+    private final NearCache nearCache;
+    private volatile boolean closed;
+
+    /**
+     * @param healthIntervalMillis probe connections idle this long; 0 disables probing
+     * @param requestTimeoutMillis fail requests not answered within this time; 0 waits forever
+     */
+    public KVClient(String host, int port, int poolSize, boolean binary, long healthIntervalMillis, long requestTimeoutMillis) {
+        this(Collections.singletonList(host + ":" + port), poolSize, binary, healthIntervalMillis, requestTimeoutMillis);
+    }
+
+    /**
+     * A client sharded over several servers given as {@code host:port}. Keys are placed on a
+     * {@link ConsistentHashRing}; sharding needs the binary protocol unless there is one server.
+     */
+    public KVClient(List<String> servers, int poolSize, boolean binary, long healthIntervalMillis, long requestTimeoutMillis) {
+        this(servers, poolSize, binary, healthIntervalMillis, requestTimeoutMillis, 0);
+    }
+
+    /** @param nearCacheEntries keys kept in a {@link NearCache}; 0 reads every key from the server */
+    public KVClient(List<String> servers, int poolSize, boolean binary, long healthIntervalMillis, long requestTimeoutMillis,
+            long nearCacheEntries) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("At least one server is needed");
+        }
+        if (servers.size() > 1 && !binary) {
+            throw new IllegalArgumentException("Sharding over several servers needs the binary protocol");
+        }
+        if (nearCacheEntries > 0 && !binary) {
+            throw new IllegalArgumentException("The near cache needs the binary protocol");
+        }
+        this.nearCache = nearCacheEntries > 0 ? new NearCache(nearCacheEntries) : null;
+        this.poolSize = Math.max(1, poolSize);
+        this.binary = binary;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.reconnectDelayNanos = TimeUnit.MILLISECONDS.toNanos(500);
+        for (String server : servers) {
+            addServer(server);
+        }
+        if (healthIntervalMillis > 0) {
+            healthChecker = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "kvclient-health");
+                thread.setDaemon(true);
+                return thread;
+            });
+            healthChecker.scheduleWithFixedDelay(() -> checkHealth(TimeUnit.MILLISECONDS.toNanos(healthIntervalMillis)),
+                    healthIntervalMillis, healthIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            healthChecker = null;
+        }
+    }
+
+    /**
+     * Options: {@code --servers} (comma-separated {@code host:port}, otherwise {@code --host} and
+     * {@code --port}), {@code --pool-size}, {@code --protocol}, {@code --health-interval},
+     * {@code --request-timeout}, {@code --near-cache} (entries, default 0).
+     */
+    public static KVClient fromOptions(ServerOptions options) {
+        List<String> servers = options.has("servers")
+                ? Arrays.asList(options.getString("servers", "").split(","))
+                : Collections.singletonList(options.getString("host", "localhost") + ":" + options.getInt("port", 8080));
+        return new KVClient(servers, options.getInt("pool-size", 4), !"text".equals(options.getString("protocol", "binary")),
+                options.getLong("health-interval", 5000), options.getLong("request-timeout", 10_000), options.getLong("near-cache", 0));
+    }
+
+    /**
+     * Adds a shard. Only the keys on the ring segments it takes over, about {@code 1 / servers} of
+     * them, are routed differently afterwards; moving their data is up to the operator.
+     */
+    public synchronized void addServer(String server) {
+        String name = server.trim();
+        int separator = name.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Expected host:port, got: " + server);
+        }
+        if (ring.node(name) == null) {
+            ring = ring.with(name, new Node(name.substring(0, separator), Integer.parseInt(name.substring(separator + 1))));
+        }
+    }
+
+    public synchronized void removeServer(String server) {
+        Node node = ring.node(server.trim());
+        if (node != null) {
+            ring = ring.without(server.trim());
+            node.close();
+        }
+    }
+
+    public List<String> servers() {
+        List<String> servers = new ArrayList<>();
+        for (Node node : ring.nodes()) {
+            servers.add(node.host + ":" + node.port);
+        }
+        return servers;
+    }
+
+    /** Opens a connection to every server now, so a wrong address or a server without the binary protocol is reported up front. */
+    public void connect() throws IOException {
+        for (Node node : ring.nodes()) {
+            node.connection();
+        }
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /** @return the near cache, or {@code null} if this client has none */
+    public NearCache nearCache() {
+        return nearCache;
+    }
+
+    /** @return the value, or {@code null} if the key is not stored */
+    public CompletableFuture<String> get(String key) {
+        if (nearCache == null) {
+            return readValue(key);
+        }
+        String cached = nearCache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        Object read = nearCache.beginRead(key);
+        return readValue(key).whenComplete((value, error) -> nearCache.endRead(key, read, error == null ? value : null));
+    }
+
+    private CompletableFuture<String> readValue(String key) {
+        return send(new BinaryProtocol.Message(BinaryProtocol.OP_GET, key)).thenApply(reply ->
+                reply.code == BinaryProtocol.STATUS_NOT_FOUND ? null : expect(reply, BinaryProtocol.STATUS_OK).field(0));
+    }
+
+    /** @return {@code false} if the key already exists */
+    public CompletableFuture<Boolean> put(String key, String value) {
+        return send(new BinaryProtocol.Message(BinaryProtocol.OP_PUT, key, value)).thenApply(reply ->
+                reply.code != BinaryProtocol.STATUS_EXISTS && expect(reply, BinaryProtocol.STATUS_OK) != null);
+    }
+
+    /** Stores the pair for {@code ttlMillis}; @return {@code false} if the key already exists */
+    public CompletableFuture<Boolean> put(String key, String value, long ttlMillis) {
+        return send(new BinaryProtocol.Message(BinaryProtocol.OP_PUT, key, value, Long.toString(ttlMillis))).thenApply(reply ->
+                reply.code != BinaryProtocol.STATUS_EXISTS && expect(reply, BinaryProtocol.STATUS_OK) != null);
+    }
+
+    /** Sets the key to expire {@code ttlMillis} from now; @return {@code false} if the key is not stored */
+    public CompletableFuture<Boolean> expire(String key, long ttlMillis) {
+        return send(new BinaryProtocol.Message(BinaryProtocol.OP_EXPIRE, key, Long.toString(ttlMillis))).thenApply(reply ->
+                reply.code != BinaryProtocol.STATUS_NOT_FOUND && expect(reply, BinaryProtocol.STATUS_OK) != null);
+    }
+
+    /** @return {@code false} if the key was not stored */
+    public CompletableFuture<Boolean> delete(String key) {
+        return send(new BinaryProtocol.Message(BinaryProtocol.OP_DELETE, key)).thenApply(reply ->
+                reply.code != BinaryProtocol.STATUS_NOT_FOUND && expect(reply, BinaryProtocol.STATUS_OK) != null);
+    }
+
+    public CompletableFuture<List<String>> keys() {
+        return send(new BinaryProtocol.Message(BinaryProtocol.OP_KEYS)).thenApply(reply ->
+                reply.code == BinaryProtocol.STATUS_NOT_FOUND
+                        ? Collections.<String>emptyList()
+                        : Arrays.asList(expect(reply, BinaryProtocol.STATUS_OK).fields));
+    }
+
+    /**
+     * One page of a SCAN; call again with the returned cursor until it is 0. With several servers
+     * the shards are scanned one after another.
+     *
+     * @param pattern glob the keys must match, or {@code null} for all keys
+     */
+    public CompletableFuture<KeyScan.Page> scan(long cursor, String pattern, int count) {
+        List<String> fields = new ArrayList<>(Arrays.asList(Long.toUnsignedString(cursor), "COUNT", Integer.toString(count)));
+        if (pattern != null) {
+            fields.add("MATCH");
+            fields.add(pattern);
+        }
+        return send(new BinaryProtocol.Message(BinaryProtocol.OP_SCAN, fields.toArray(new String[0])))
+                .thenApply(reply -> KeyScan.parseReply(expect(reply, BinaryProtocol.STATUS_OK)));
+    }
+
+    /** @return values in key order, {@code null} for keys that are not stored */
+    public CompletableFuture<List<String>> multiGet(String... keys) {
+        return send(new BinaryProtocol.Message(BinaryProtocol.OP_MGET, keys)).thenApply(reply -> {
+            List<String> values = new ArrayList<>(keys.length);
+            for (String result : expect(reply, BinaryProtocol.STATUS_OK).fields) {
+                values.add(BinaryProtocol.batchStatus(result) == BinaryProtocol.STATUS_OK ? BinaryProtocol.batchValue(result) : null);
+            }
+            return values;
+        });
+    }
+
+    /**
+     * @param keysAndValues alternating keys and values
+     * @return per pair, whether it was stored; existing and invalid keys are not
+     */
+    public CompletableFuture<boolean[]> multiPut(String... keysAndValues) {
+        return send(new BinaryProtocol.Message(BinaryProtocol.OP_MPUT, keysAndValues)).thenApply(KVClient::batchOk);
+    }
+
+    /** @return per key, whether it was removed */
+    public CompletableFuture<boolean[]> multiDelete(String... keys) {
+        return send(new BinaryProtocol.Message(BinaryProtocol.OP_MDELETE, keys)).thenApply(KVClient::batchOk);
+    }
+
+    public CompletableFuture<String> statistics() {
+        return send(new BinaryProtocol.Message(BinaryProtocol.OP_STAT)).thenApply(reply -> expect(reply, BinaryProtocol.STATUS_OK).field(0));
+    }
+
+    /**
+     * Sends a raw binary request and returns the raw reply. With several servers, single-key
+     * requests go to the key's shard, batches are split by shard and their results put back in
+     * request order, and KEYS, STAT and QUIT go to every shard.
+     */
+    public CompletableFuture<BinaryProtocol.Message> send(BinaryProtocol.Message request) {
+        if (!binary) {
+            throw new IllegalStateException("Client speaks the text protocol");
+        }
+        CompletableFuture<BinaryProtocol.Message> reply = route(request);
+        if (nearCache == null) {
+            return reply;
+        }
+        switch (request.code) {
+            case BinaryProtocol.OP_PUT:
+            case BinaryProtocol.OP_DELETE:
+            case BinaryProtocol.OP_MDELETE:
+                return reply.whenComplete((ignored, error) -> invalidate(request.fields, 1));
+            case BinaryProtocol.OP_MPUT:
+                return reply.whenComplete((ignored, error) -> invalidate(request.fields, 2));
+            default:
+                return reply;
+        }
+    }
+
+    /** Drops the written keys from the near cache, so reads after the write go to the server. */
+    private void invalidate(String[] fields, int width) {
+        for (int i = 0; i < fields.length; i += width) {
+            nearCache.invalidate(fields[i]);
+        }
+    }
+
+    private CompletableFuture<BinaryProtocol.Message> route(BinaryProtocol.Message request) {
+        ConsistentHashRing<Node> current = ring;
+        if (current.size() == 1) {
+            return send(current.nodes().get(0), request);
+        }
+        switch (request.code) {
+            case BinaryProtocol.OP_GET:
+            case BinaryProtocol.OP_PUT:
+            case BinaryProtocol.OP_DELETE:
+            case BinaryProtocol.OP_EXPIRE:
+                return request.fields.length == 0
+                        ? send(current.nodes().get(0), request)
+                        : send(current.nodeFor(request.field(0)), request);
+            case BinaryProtocol.OP_MGET:
+            case BinaryProtocol.OP_MDELETE:
+                return sendBatch(current, request, 1);
+            case BinaryProtocol.OP_MPUT:
+                return sendBatch(current, request, 2);
+            case BinaryProtocol.OP_KEYS:
+                return sendToAll(current, request).thenApply(KVClient::mergeKeys);
+            case BinaryProtocol.OP_SCAN:
+                return sendScan(current, request);
+            case BinaryProtocol.OP_STAT:
+                return sendToAll(current, request).thenApply(replies -> mergeStatistics(current, replies));
+            default:
+                return sendToAll(current, request).thenApply(replies -> replies.get(0));
+        }
+    }
+
+    private CompletableFuture<BinaryProtocol.Message> send(Node node, BinaryProtocol.Message request) {
+        try {
+            return withTimeout(node.connection().send(request));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private CompletableFuture<List<BinaryProtocol.Message>> sendToAll(ConsistentHashRing<Node> current, BinaryProtocol.Message request) {
+        List<CompletableFuture<BinaryProtocol.Message>> replies = new ArrayList<>();
+        for (Node node : current.nodes()) {
+            replies.add(send(node, request));
+        }
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<BinaryProtocol.Message> results = new ArrayList<>(replies.size());
+            for (CompletableFuture<BinaryProtocol.Message> reply : replies) {
+                results.add(reply.join());
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Splits a batch of {@code width}-field entries (keys, or key/value pairs) by shard and
+     * reassembles the per-entry results in request order.
+     */
+    private CompletableFuture<BinaryProtocol.Message> sendBatch(ConsistentHashRing<Node> current, BinaryProtocol.Message request, int width) {
+        int entries = request.fields.length / width;
+        if (entries == 0 || request.fields.length % width != 0) {
+            return send(current.nodes().get(0), request);
+        }
+        Map<Node, List<Integer>> positions = new LinkedHashMap<>();
+        for (int i = 0; i < entries; i++) {
+            positions.computeIfAbsent(current.nodeFor(request.fields[i * width]), ignored -> new ArrayList<>()).add(i);
+        }
+        String[] results = new String[entries];
+        List<CompletableFuture<?>> parts = new ArrayList<>();
+        for (Map.Entry<Node, List<Integer>> shard : positions.entrySet()) {
+            List<Integer> indexes = shard.getValue();
+            String[] fields = new String[indexes.size() * width];
+            for (int i = 0; i < indexes.size(); i++) {
+                System.arraycopy(request.fields, indexes.get(i) * width, fields, i * width, width);
+            }
+            parts.add(send(shard.getKey(), new BinaryProtocol.Message(request.code, fields)).thenAccept(reply -> {
+                for (int i = 0; i < indexes.size(); i++) {
+                    results[indexes.get(i)] = reply.code == BinaryProtocol.STATUS_OK && i < reply.fields.length
+                            ? reply.fields[i]
+                            : BinaryProtocol.batchResult(reply.code, "");
+                }
+            }));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> new BinaryProtocol.Message(BinaryProtocol.STATUS_OK, results));
+    }
+
+    /** Scans the shard in the cursor's top bits and moves on to the next shard when it is done. */
+    private CompletableFuture<BinaryProtocol.Message> sendScan(ConsistentHashRing<Node> current, BinaryProtocol.Message request) {
+        long cursor;
+        try {
+            cursor = Long.parseUnsignedLong(request.field(0));
+        } catch (NumberFormatException | NullPointerException e) {
+            return CompletableFuture.completedFuture(new BinaryProtocol.Message(BinaryProtocol.STATUS_BAD_REQUEST));
+        }
+        int shard = (int) (cursor >>> SHARD_SHIFT);
+        if (shard >= current.size()) {
+            return CompletableFuture.completedFuture(new BinaryProtocol.Message(BinaryProtocol.STATUS_OK, "0"));
+        }
+        String[] fields = request.fields.clone();
+        fields[0] = Long.toUnsignedString(cursor & ((1L << SHARD_SHIFT) - 1));
+        return send(current.nodes().get(shard), new BinaryProtocol.Message(request.code, fields)).thenApply(reply -> {
+            if (reply.code != BinaryProtocol.STATUS_OK || reply.fields.length == 0) {
+                return reply;
+            }
+            long next = Long.parseUnsignedLong(reply.fields[0]);
+            if (next != 0) {
+                next |= (long) shard << SHARD_SHIFT;
+            } else if (shard + 1 < current.size()) {
+                next = (long) (shard + 1) << SHARD_SHIFT;
+            }
+            String[] rewritten = reply.fields.clone();
+            rewritten[0] = Long.toUnsignedString(next);
+            return new BinaryProtocol.Message(reply.code, rewritten);
+        });
+    }
+
+    private static BinaryProtocol.Message mergeKeys(List<BinaryProtocol.Message> replies) {
+        List<String> keys = new ArrayList<>();
+        for (BinaryProtocol.Message reply : replies) {
+            if (reply.code == BinaryProtocol.STATUS_OK) {
+                keys.addAll(Arrays.asList(reply.fields));
+            }
+        }
+        return keys.isEmpty()
+                ? new BinaryProtocol.Message(BinaryProtocol.STATUS_NOT_FOUND)
+                : new BinaryProtocol.Message(BinaryProtocol.STATUS_OK, keys.toArray(new String[0]));
+    }
+
+    private static BinaryProtocol.Message mergeStatistics(ConsistentHashRing<Node> current, List<BinaryProtocol.Message> replies) {
+        StringBuilder statistics = new StringBuilder();
+        for (int i = 0; i < replies.size(); i++) {
+            Node node = current.nodes().get(i);
+            statistics.append("Shard ").append(node.host).append(':').append(node.port).append(":\n").append(replies.get(i).field(0));
+        }
+        return new BinaryProtocol.Message(BinaryProtocol.STATUS_OK, statistics.toString());
+    }
+
+    /** Sends a text request, e.g. {@code "GET key"}, and returns the server's reply text. */
+    public CompletableFuture<String> execute(String request) {
+        if (binary) {
+            throw new IllegalStateException("Client speaks the binary protocol");
+        }
+        try {
+            return withTimeout(ring.nodes().get(0).connection().send(request));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        for (Node node : ring.nodes()) {
+            node.close();
+        }
+    }
+
+    private <T> CompletableFuture<T> withTimeout(CompletableFuture<T> reply) {
+        return requestTimeoutMillis > 0 ? reply.orTimeout(requestTimeoutMillis, TimeUnit.MILLISECONDS) : reply;
+    }
+
+    private void checkHealth(long idleNanos) {
+        long now = System.nanoTime();
+        for (Node node : ring.nodes()) {
+            for (Slot slot : node.pool) {
+                PipelinedConnection connection = slot.current;
+                if (connection == null || !connection.isOpen() || connection.outstanding() > 0 || now - connection.lastReplyNanos() < idleNanos) {
+                    continue;
+                }
+                CompletableFuture<?> probe = binary
+                        ? connection.send(new BinaryProtocol.Message(BinaryProtocol.OP_STAT))
+                        : connection.send("STAT");
+                probe.orTimeout(Math.max(1000, requestTimeoutMillis), TimeUnit.MILLISECONDS).whenComplete((reply, error) -> {
+                    if (error != null) {
+                        connection.close();
+                    }
+                });
+            }
+        }
+    }
+
+    private static BinaryProtocol.Message expect(BinaryProtocol.Message reply, byte status) {
+        if (reply.code != status) {
+            throw new IllegalArgumentException("Request failed: " + BinaryProtocol.statusName(reply.code));
+        }
+        return reply;
+    }
+
+    private static boolean[] batchOk(BinaryProtocol.Message reply) {
+        String[] results = expect(reply, BinaryProtocol.STATUS_OK).fields;
+        boolean[] ok = new boolean[results.length];
+        for (int i = 0; i < results.length; i++) {
+            ok[i] = BinaryProtocol.batchStatus(results[i]) == BinaryProtocol.STATUS_OK;
+        }
+        return ok;
+    }
+
+    /** The connection pool to one server. */
+    private final class Node {
+        final String host;
+        final int port;
+        final Slot[] pool = new Slot[poolSize];
+        final AtomicInteger next = new AtomicInteger();
+
+        Node(String host, int port) {
+            this.host = host;
+            this.port = port;
+            for (int i = 0; i < pool.length; i++) {
+                pool[i] = new Slot(this);
+            }
+        }
+
+        /**
+         * Picks the less loaded of two pool slots, starting round robin so idle clients spread
+         * their requests, and falls back to any slot that can be connected.
+         */
+        PipelinedConnection connection() throws IOException {
+            if (closed) {
+                throw new IOException("Client is closed");
+            }
+            int start = Math.floorMod(next.getAndIncrement(), pool.length);
+            PipelinedConnection first = pool[start].connection(false);
+            if (pool.length > 1) {
+                PipelinedConnection second = pool[(start + 1) % pool.length].connection(false);
+                if (first == null || (second != null && second.outstanding() < first.outstanding())) {
+                    first = second;
+                }
+            }
+            if (first != null) {
+                return first;
+            }
+            IOException failure = null;
+            for (int i = 0; i < pool.length; i++) {
+                try {
+                    PipelinedConnection connection = pool[(start + i) % pool.length].connection(true);
+                    if (connection != null) {
+                        return connection;
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            throw failure != null ? failure : new IOException("No connection to " + host + ":" + port + " could be opened");
+        }
+
+        void close() {
+            for (Slot slot : pool) {
+                slot.close();
+            }
+        }
+    }
+
+    /** One pool position; its connection is replaced when it fails, at most once per reconnect delay. */
+    private final class Slot {
+        final Node node;
+        volatile PipelinedConnection current;
+        private long nextAttemptNanos = System.nanoTime();
+
+        Slot(Node node) {
+            this.node = node;
+        }
+
+        /**
+         * @param open connect if there is no live connection
+         * @return a live connection, or {@code null} if there is none and {@code open} is false
+         */
+        PipelinedConnection connection(boolean open) throws IOException {
+            PipelinedConnection connection = current;
+            if (connection != null && connection.isOpen()) {
+                return connection;
+            }
+            if (!open) {
+                return null;
+            }
+            synchronized (this) {
+                connection = current;
+                if (connection != null && connection.isOpen()) {
+                    return connection;
+                }
+                long now = System.nanoTime();
+                if (now - nextAttemptNanos < 0) {
+                    return null;
+                }
+                nextAttemptNanos = now + reconnectDelayNanos;
+                connection = new PipelinedConnection(node.host, node.port, binary, MAX_IN_FLIGHT, nearCache);
+                if (binary && !connection.isBinary()) {
+                    connection.close();
+                    throw new IOException("Server at " + node.host + ":" + node.port + " does not support the binary protocol");
+                }
+                if (nearCache != null) {
+                    enableTracking(connection);
+                }
+                current = connection;
+                nextAttemptNanos = now;
+                return connection;
+            }
+        }
+
+        /** Turns on tracking before the connection is handed out, so every GET sent on it is tracked. */
+        private void enableTracking(PipelinedConnection connection) throws IOException {
+            BinaryProtocol.Message reply;
+            try {
+                reply = connection.send(new BinaryProtocol.Message(BinaryProtocol.OP_TRACKING, "ON"))
+                        .orTimeout(Math.max(1000, requestTimeoutMillis), TimeUnit.MILLISECONDS).join();
+            } catch (CompletionException e) {
+                connection.close();
+                throw new IOException("Could not turn on tracking at " + node.host + ":" + node.port, e.getCause());
+            }
+            if (reply.code != BinaryProtocol.STATUS_OK) {
+                connection.close();
+                throw new IOException("Server at " + node.host + ":" + node.port + " does not support client tracking: "
+                        + BinaryProtocol.statusName(reply.code));
+            }
+        }
+
+        void close() {
+            PipelinedConnection connection = current;
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+}
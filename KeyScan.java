@@ -0,0 +1,184 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cursor-based iteration over the keys of a store, for the SCAN command.
+ *
+ * <p>Within a stripe every key has a position, its hash code mixed over 32 bits, and a cursor is
+ * {@code (stripe << 32) | position}: the next page holds the keys of that stripe whose position
+ * is at or after the cursor's, then those of the following stripes. A page covers a position
+ * range sized from the stripe's key count so that it holds about {@code count} keys, which lets
+ * the store hold one stripe's read lock for one pass over that stripe and keep no state between
+ * pages. Because the ranges partition every stripe, a key present for the whole iteration is
+ * returned exactly once however the stripes' tables grow; keys added or removed during it may or
+ * may not be returned. A returned cursor of 0 ends the iteration.
+ *
+ * <p>Patterns are globs where {@code *} matches any run of characters and {@code ?} one
+ * character. They are applied to the page after it is taken, so a page can hold fewer keys than
+ * {@code count}, even none, without the iteration being over.
+ */
+public final class KeyScan {
+    public static final int DEFAULT_COUNT = 100;
+    /** Keeps a page of maximum-length keys inside one UDP datagram. */
+    public static final int MAX_COUNT = 2048;
+
+    private static final long POSITIONS = 1L << 32;
+    private static final Pattern TEXT_REPLY = Pattern.compile("Cursor: (\\d+) Keys: ([^\\u001B]*)");
+
+    private KeyScan() {
+    }
+
+    public static final class Page {
+        public final long cursor;
+        public final List<String> keys;
+
+        public Page(long cursor, List<String> keys) {
+            this.cursor = cursor;
+            this.keys = keys;
+        }
+    }
+
+    /** A parsed {@code SCAN <cursor> [MATCH <pattern>] [COUNT <count>]} request. */
+    public static final class Request {
+        public final long cursor;
+        public final String pattern;
+        public final int count;
+
+        public Request(long cursor, String pattern, int count) {
+            this.cursor = cursor;
+            this.pattern = pattern;
+            this.count = Math.max(1, Math.min(MAX_COUNT, count));
+        }
+
+        /**
+         * @param arguments the words after {@code SCAN}
+         * @return {@code null} if they are malformed
+         */
+        public static Request parse(String[] arguments) {
+            if (arguments.length == 0 || arguments.length % 2 == 0) {
+                return null;
+            }
+            try {
+                long cursor = Long.parseUnsignedLong(arguments[0]);
+                String pattern = null;
+                int count = DEFAULT_COUNT;
+                for (int i = 1; i < arguments.length; i += 2) {
+                    if ("MATCH".equalsIgnoreCase(arguments[i])) {
+                        pattern = arguments[i + 1];
+                    } else if ("COUNT".equalsIgnoreCase(arguments[i])) {
+                        count = Integer.parseInt(arguments[i + 1]);
+                    } else {
+                        return null;
+                    }
+                }
+                return new Request(cursor, pattern, count);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /** Runs the request against {@code store}, filtering the page by the pattern. */
+        public Page execute(KeyValueStore store) {
+            Page page = store.scan(cursor, count);
+            if (pattern == null || "*".equals(pattern)) {
+                return page;
+            }
+            List<String> matching = new ArrayList<>();
+            for (String key : page.keys) {
+                if (matches(pattern, key)) {
+                    matching.add(key);
+                }
+            }
+            return new Page(page.cursor, matching);
+        }
+    }
+
+    /** @return the page in a binary SCAN reply, or {@code null} if the reply is an error */
+    public static Page parseReply(BinaryProtocol.Message reply) {
+        if (reply.code != BinaryProtocol.STATUS_OK || reply.fields.length == 0) {
+            return null;
+        }
+        return new Page(Long.parseUnsignedLong(reply.fields[0]), Arrays.asList(reply.fields).subList(1, reply.fields.length));
+    }
+
+    /** @return the page in a text SCAN reply, or {@code null} if the reply is an error */
+    public static Page parseText(String reply) {
+        Matcher matcher = TEXT_REPLY.matcher(reply);
+        if (!matcher.find()) {
+            return null;
+        }
+        String keys = matcher.group(2);
+        return new Page(Long.parseUnsignedLong(matcher.group(1)), keys.isEmpty() ? new ArrayList<>() : Arrays.asList(keys.split(":")));
+    }
+
+    /** @return the key's position within its stripe for a key with this hash code */
+    static long position(int hash) {
+        int h = hash;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Integer.toUnsignedLong(h);
+    }
+
+    static int stripe(long cursor) {
+        return (int) (cursor >>> 32);
+    }
+
+    static long start(long cursor) {
+        return cursor & (POSITIONS - 1);
+    }
+
+    /**
+     * @return the exclusive end of a range starting at {@code start} expected to hold
+     *         {@code wanted} of a stripe's {@code size} keys; {@code 1 << 32} covers the rest
+     */
+    static long end(long start, int wanted, int size) {
+        if (wanted >= size) {
+            return POSITIONS;
+        }
+        return Math.min(POSITIONS, start + Math.max(1, POSITIONS * wanted / size));
+    }
+
+    /** @return the cursor after a page that ended at {@code end} in {@code stripe}, 0 after the last stripe */
+    static long next(int stripe, long end, int stripes) {
+        if (end < POSITIONS) {
+            return ((long) stripe << 32) | end;
+        }
+        return stripe + 1 < stripes ? (long) (stripe + 1) << 32 : 0;
+    }
+
+    static boolean done(long end) {
+        return end >= POSITIONS;
+    }
+
+    /** Glob match with {@code *} and {@code ?}; backtracks only to the last star, so it is linear in practice. */
+    public static boolean matches(String pattern, String key) {
+        int p = 0;
+        int k = 0;
+        int star = -1;
+        int resume = 0;
+        while (k < key.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == key.charAt(k))) {
+                p++;
+                k++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                resume = k;
+            } else if (star >= 0) {
+                p = star + 1;
+                k = ++resume;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+}
@@ -0,0 +1,144 @@
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.ObjLongConsumer;
+
+public interface KeyValueStore {
+    String get(String key);
+
+    /**
+     * Stores the pair only if the key is not present yet.
+     *
+     * @return {@code true} if the pair was stored, {@code false} if the key already existed
+     */
+    boolean putIfAbsent(String key, String value);
+
+    /**
+     * Like {@link #putIfAbsent(String, String)}, and removes the pair {@code ttlMillis} from now
+     * unless it is removed or given another TTL first. Optional: only stores that track expiry
+     * ({@link ExpiringKeyValueStore}) support it.
+     *
+     * @throws UnsupportedOperationException if this store does not track expiry
+     */
+    default boolean putIfAbsent(String key, String value, long ttlMillis) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support expiry");
+    }
+
+    /**
+     * Sets the key to be removed {@code ttlMillis} from now, replacing any earlier TTL. Optional,
+     * see {@link #putIfAbsent(String, String, long)}.
+     *
+     * @return {@code true} if the key was present
+     */
+    default boolean expire(String key, long ttlMillis) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support expiry");
+    }
+
+    /**
+     * Records that a present key expires at {@code deadlineMillis} (epoch milliseconds), so that
+     * logs can persist and replicate the deadline. Removes nothing: {@link ExpiringKeyValueStore}
+     * calls it for the TTLs it sets and removes the keys itself. Optional: engines and the layers
+     * that can sit below an {@link ExpiringKeyValueStore} support it.
+     *
+     * @return {@code true} if the key was present
+     * @throws UnsupportedOperationException if this store does not support it
+     */
+    default boolean setDeadline(String key, long deadlineMillis) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support deadlines");
+    }
+
+    /**
+     * @return {@code true} if the key was present and has been removed
+     */
+    boolean remove(String key);
+
+    /**
+     * Like {@link #remove}, but only if {@code condition} holds, tested under the key's lock once
+     * the key has been found. Optional: engines and the layers that can sit below a
+     * {@link BoundedKeyValueStore} support it.
+     *
+     * @throws UnsupportedOperationException if this store does not support it
+     */
+    default boolean removeIf(String key, BooleanSupplier condition) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support conditional removal");
+    }
+
+    /**
+     * @return the value for each key in order, {@code null} where the key is absent
+     */
+    String[] getAll(String[] keys);
+
+    /**
+     * Applies {@link #putIfAbsent} to each pair as one atomic step.
+     *
+     * @return per pair, whether it was stored
+     */
+    boolean[] putAllIfAbsent(String[] keys, String[] values);
+
+    /**
+     * Applies {@link #remove} to each key as one atomic step.
+     *
+     * @return per key, whether it was present and has been removed
+     */
+    boolean[] removeAll(String[] keys);
+
+    List<String> keys();
+
+    int size();
+
+    /**
+     * Visits every entry. The traversal is weakly consistent: each partition of the store is
+     * seen at a single point in time, but concurrent writes to other partitions may or may not
+     * be observed.
+     */
+    void forEach(BiConsumer<String, String> action);
+
+    /**
+     * Returns the next page of a cursor-based iteration over the keys; see {@link KeyScan} for
+     * the cursor format and guarantees. Holds at most one stripe lock at a time, for one pass over
+     * that stripe.
+     *
+     * @param cursor 0 to start, otherwise the cursor of the previous page
+     * @param count how many keys the page should hold, approximately
+     */
+    KeyScan.Page scan(long cursor, int count);
+
+    void addMutationListener(MutationListener listener);
+
+    /**
+     * Registers this store's own gauges with a server's metrics; stores that wrap another pass
+     * the call on to it.
+     */
+    default void registerMetrics(Metrics metrics) {
+    }
+
+    /**
+     * Unconditionally stores the pair; used to replay mutations that are already durable
+     * elsewhere (recovery, replication). Listeners only hear of it through
+     * {@link MutationListener#onApplyPut}.
+     */
+    void applyPut(String key, String value);
+
+    /**
+     * Removes the key, notifying listeners only through {@link MutationListener#onApplyRemove};
+     * see {@link #applyPut}.
+     */
+    void applyRemove(String key);
+
+    /**
+     * Records a replayed deadline, notifying listeners only through
+     * {@link MutationListener#onApplyDeadline}; does nothing if the key is absent. Optional, see
+     * {@link #setDeadline}.
+     */
+    default void applyDeadline(String key, long deadlineMillis) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support deadlines");
+    }
+
+    /**
+     * Visits the deadline of every key that has one, in epoch milliseconds. Only stores that keep
+     * deadlines ({@link PersistentKeyValueStore}, {@link ExpiringKeyValueStore}) visit any; layers
+     * that wrap another pass the call on to it.
+     */
+    default void forEachDeadline(ObjLongConsumer<String> action) {
+    }
+}
@@ -0,0 +1,44 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+public final class KeyValueStores {
+    private KeyValueStores() {
+    }
+
+    /**
+     * The configured engine, made durable with {@code --data-dir}, kept within
+     * {@code --max-entries} or {@code --max-memory} if either is set, with per-key expiry on top
+     * and every operation traced for the flight recorder.
+     */
+    public static KeyValueStore create(ServerOptions options) {
+        KeyValueStore store = createEngine(options);
+        if (BoundedKeyValueStore.isConfigured(options)) {
+            store = BoundedKeyValueStore.fromOptions(store, options);
+        }
+        return new TracingKeyValueStore(ExpiringKeyValueStore.fromOptions(store, options));
+    }
+
+    /** The configured engine, made durable with {@code --data-dir}, without expiry. */
+    public static KeyValueStore createEngine(ServerOptions options) {
+        String engine = options.getString("store", "striped");
+        KeyValueStore store;
+        switch (engine) {
+            case "striped":
+                store = new StripedKeyValueStore(options.getInt("stripes", StripedKeyValueStore.defaultStripeCount()));
+                break;
+            case "offheap":
+                store = new OffHeapKeyValueStore(options.getInt("stripes", StripedKeyValueStore.defaultStripeCount()));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown store engine: " + engine);
+        }
+        if (options.has("data-dir")) {
+            try {
+                store = PersistentKeyValueStore.open(store, options);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot open data directory " + options.getString("data-dir", ""), e);
+            }
+        }
+        return store;
+    }
+}
@@ -0,0 +1,344 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+
+/**
+ * Drives a running server with a GET/PUT/DELETE mix over many connections and reports throughput
+ * and latency percentiles. Started from the clients with {@code --load}:
+ *
+ * <pre>java TCPClient --load --connections=64 --mix=get:90,put:5,delete:5 --distribution=zipfian --rate=50000
+ * java UDPClient --load --connections=16 --in-flight=4 --seconds=60</pre>
+ *
+ * TCP connections are {@link PipelinedConnection}s and UDP sockets are {@link ReliableUdpClient}s,
+ * so both transports can keep several requests in flight per connection.
+ *
+ * <p>With {@code --rate} the load is open loop: requests are issued on a fixed schedule whether or
+ * not earlier ones have been answered, and latency is measured from the scheduled send time, so a
+ * stall is charged to every request it delays. Without it each connection keeps {@code --in-flight}
+ * requests outstanding (closed loop); latency is then measured from the actual send and corrected
+ * for coordinated omission the way HdrHistogram does, by also recording the requests a stall
+ * prevented from being sent at the expected interval, taken as the mean latency of the warmup.
+ */
+public final class LoadGenerator {
+    private static final String[] OPERATIONS = {"GET", "PUT", "DELETE"};
+    private static final char[] ALPHANUMERIC = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
+
+    private final ServerOptions options;
+    private final String transport;
+    private final boolean binary;
+    private final int connections;
+    private final int inFlight;
+    private final int keys;
+    private final int[] mix;
+    private final IntSupplier keyChooser;
+    private final String[] values;
+    private final double rate;
+
+    private LoadGenerator(ServerOptions options, String transport) {
+        this.options = options;
+        this.transport = transport;
+        this.binary = "binary".equals(options.getString("protocol", "text"));
+        this.connections = options.getInt("connections", 16);
+        this.rate = options.getLong("rate", 0);
+        this.inFlight = options.getInt("in-flight", rate > 0 ? 1024 : 1);
+        this.keys = options.getInt("keys", 100_000);
+        this.mix = parseMix(options.getString("mix", "get:90,put:5,delete:5"));
+        String distribution = options.getString("distribution", "uniform");
+        if ("zipfian".equals(distribution)) {
+            ZipfianGenerator zipfian = new ZipfianGenerator(keys, Double.parseDouble(options.getString("zipf-theta",
+                    Double.toString(ZipfianGenerator.DEFAULT_THETA))), true);
+            this.keyChooser = zipfian::next;
+        } else if ("uniform".equals(distribution)) {
+            this.keyChooser = () -> ThreadLocalRandom.current().nextInt(keys);
+        } else {
+            throw new IllegalArgumentException("Unknown key distribution: " + distribution + " (expected uniform or zipfian)");
+        }
+        int valueSize = options.getInt("value-size", 8);
+        this.values = new String[64];
+        for (int i = 0; i < values.length; i++) {
+            char[] value = new char[valueSize];
+            for (int j = 0; j < valueSize; j++) {
+                value[j] = ALPHANUMERIC[ThreadLocalRandom.current().nextInt(ALPHANUMERIC.length)];
+            }
+            values[i] = new String(value);
+        }
+    }
+
+    /** @param transport {@code tcp} or {@code udp} */
+    public static void run(ServerOptions options, String transport) {
+        try {
+            new LoadGenerator(options, transport).run();
+        } catch (IOException | InterruptedException e) {
+            System.out.println("\u001B[31m Load generator failed: " + e.getMessage() + "\u001B[0m");
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        String host = options.getString("host", "localhost");
+        int port = options.getInt("port", "udp".equals(transport) ? 8081 : 8080);
+        List<Connection> opened = new ArrayList<>();
+        try {
+            for (int i = 0; i < connections; i++) {
+                opened.add(open(host, port));
+            }
+            if (!"false".equals(options.getString("preload", "true"))) {
+                preload(opened.get(0));
+            }
+            Phase warmup = runPhase(opened, options.getInt("warmup", 5), 0);
+            long expectedInterval = options.has("expected-interval-us")
+                    ? TimeUnit.MICROSECONDS.toNanos(options.getLong("expected-interval-us", 0))
+                    : (long) warmup.latency[0].mean();
+            Phase measured = runPhase(opened, options.getInt("seconds", 30), expectedInterval);
+            report(measured);
+        } finally {
+            for (Connection connection : opened) {
+                connection.close();
+            }
+        }
+    }
+
+    /** PUTs every key once so GETs and DELETEs find something. */
+    private void preload(Connection connection) throws InterruptedException {
+        Semaphore window = new Semaphore(256);
+        for (int key = 0; key < keys; key++) {
+            window.acquire();
+            connection.send(1, "k" + key, values[key % values.length]).whenComplete((reply, error) -> window.release());
+        }
+        window.acquire(256);
+    }
+
+    /**
+     * @param expectedInterval closed-loop coordinated omission correction; 0 records raw latencies
+     */
+    private Phase runPhase(List<Connection> opened, int seconds, long expectedInterval) throws InterruptedException {
+        Phase phase = new Phase();
+        long begin = System.nanoTime();
+        long end = begin + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> drivers = new ArrayList<>();
+        for (int i = 0; i < opened.size(); i++) {
+            Connection connection = opened.get(i);
+            Runnable driver = rate > 0
+                    ? () -> openLoop(connection, phase, begin, end, connections / rate)
+                    : () -> closedLoop(connection, phase, end, expectedInterval);
+            Thread thread = new Thread(driver, "load-" + i);
+            thread.start();
+            drivers.add(thread);
+        }
+        for (Thread thread : drivers) {
+            thread.join();
+        }
+        phase.awaitOutstanding();
+        phase.elapsedNanos = System.nanoTime() - begin;
+        return phase;
+    }
+
+    private void openLoop(Connection connection, Phase phase, long begin, long end, double intervalSeconds) {
+        double interval = intervalSeconds * 1e9;
+        // connections start staggered so their schedules interleave
+        double offset = ThreadLocalRandom.current().nextDouble(interval);
+        for (long i = 0; ; i++) {
+            long intended = begin + (long) (offset + i * interval);
+            if (intended >= end) {
+                return;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            issue(connection, phase, intended, 0);
+        }
+    }
+
+    private void closedLoop(Connection connection, Phase phase, long end, long expectedInterval) {
+        Semaphore slots = new Semaphore(inFlight);
+        while (System.nanoTime() < end) {
+            slots.acquireUninterruptibly();
+            issue(connection, phase, System.nanoTime(), expectedInterval).whenComplete((ignored, error) -> slots.release());
+        }
+        slots.acquireUninterruptibly(inFlight);
+    }
+
+    private CompletableFuture<?> issue(Connection connection, Phase phase, long start, long expectedInterval) {
+        int operation = chooseOperation();
+        String key = "k" + keyChooser.getAsInt();
+        phase.outstanding.incrementAndGet();
+        CompletableFuture<?> reply;
+        try {
+            reply = connection.send(operation, key, values[ThreadLocalRandom.current().nextInt(values.length)]);
+        } catch (RuntimeException e) {
+            reply = CompletableFuture.failedFuture(e);
+        }
+        return reply.whenComplete((ignored, error) -> {
+            if (error != null) {
+                phase.errors.increment();
+            } else {
+                long latency = System.nanoTime() - start;
+                phase.record(0, latency, expectedInterval);
+                phase.record(operation + 1, latency, expectedInterval);
+            }
+            phase.outstanding.decrementAndGet();
+        });
+    }
+
+    private int chooseOperation() {
+        int roll = ThreadLocalRandom.current().nextInt(mix[OPERATIONS.length - 1]);
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            if (roll < mix[i]) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /** @return cumulative weights of GET, PUT and DELETE */
+    private static int[] parseMix(String text) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : text.split(",")) {
+            String[] nameAndWeight = part.split(":");
+            int index = -1;
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                if (OPERATIONS[i].equalsIgnoreCase(nameAndWeight[0].trim())) {
+                    index = i;
+                }
+            }
+            if (index < 0 || nameAndWeight.length != 2) {
+                throw new IllegalArgumentException("Invalid --mix entry: " + part + " (expected get:N, put:N or delete:N)");
+            }
+            weights[index] = Integer.parseInt(nameAndWeight[1].trim());
+        }
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] += weights[i - 1];
+        }
+        if (weights[weights.length - 1] <= 0) {
+            throw new IllegalArgumentException("--mix needs at least one positive weight");
+        }
+        return weights;
+    }
+
+    private void report(Phase phase) {
+        double seconds = phase.elapsedNanos / 1e9;
+        System.out.println("transport,protocol,loop,connections,in_flight,target_rps,operation,count,rps,errors,"
+                + "p50_us,p90_us,p99_us,p999_us,p9999_us,max_us");
+        for (int i = 0; i <= OPERATIONS.length; i++) {
+            LatencyHistogram histogram = phase.latency[i];
+            long count = phase.counts[i].sum();
+            if (i > 0 && count == 0) {
+                continue;
+            }
+            System.out.printf(Locale.ROOT, "%s,%s,%s,%d,%d,%.0f,%s,%d,%.0f,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f%n", transport, binary ? "binary" : "text",
+                    rate > 0 ? "open" : "closed", connections, inFlight, rate, i == 0 ? "ALL" : OPERATIONS[i - 1], count, count / seconds,
+                    i == 0 ? phase.errors.sum() : 0, micros(histogram, 0.5), micros(histogram, 0.9), micros(histogram, 0.99),
+                    micros(histogram, 0.999), micros(histogram, 0.9999), micros(histogram, 1.0));
+        }
+    }
+
+    private static double micros(LatencyHistogram histogram, double quantile) {
+        return histogram.percentile(quantile) / 1000.0;
+    }
+
+    private Connection open(String host, int port) throws IOException {
+        if ("udp".equals(transport)) {
+            ReliableUdpClient client = new ReliableUdpClient(new InetSocketAddress(host, port), inFlight, options.getInt("attempts", 6));
+            return new Connection() {
+                @Override
+                public CompletableFuture<?> send(int operation, String key, String value) {
+                    byte[] payload = binary
+                            ? BinaryProtocol.encodeDatagram(message(operation, key, value))
+                            : text(operation, key, value).getBytes(StandardCharsets.UTF_8);
+                    try {
+                        return client.send(payload);
+                    } catch (IOException e) {
+                        return CompletableFuture.failedFuture(e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return CompletableFuture.failedFuture(e);
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    client.close();
+                }
+            };
+        }
+        PipelinedConnection connection = new PipelinedConnection(host, port, binary, inFlight);
+        return new Connection() {
+            @Override
+            public CompletableFuture<?> send(int operation, String key, String value) {
+                return connection.isBinary() ? connection.send(message(operation, key, value)) : connection.send(text(operation, key, value));
+            }
+
+            @Override
+            public void close() {
+                connection.close();
+            }
+        };
+    }
+
+    private static String text(int operation, String key, String value) {
+        return operation == 1 ? "PUT " + key + " " + value : OPERATIONS[operation] + " " + key;
+    }
+
+    private static BinaryProtocol.Message message(int operation, String key, String value) {
+        switch (operation) {
+            case 1:
+                return new BinaryProtocol.Message(BinaryProtocol.OP_PUT, key, value);
+            case 2:
+                return new BinaryProtocol.Message(BinaryProtocol.OP_DELETE, key);
+            default:
+                return new BinaryProtocol.Message(BinaryProtocol.OP_GET, key);
+        }
+    }
+
+    private interface Connection {
+        /** @param operation index into {@link #OPERATIONS} */
+        CompletableFuture<?> send(int operation, String key, String value);
+
+        void close() throws IOException;
+    }
+
+    /** Latencies of one warmup or measurement run: index 0 is every operation, then one per type. */
+    private static final class Phase {
+        final LatencyHistogram[] latency = new LatencyHistogram[OPERATIONS.length + 1];
+        final LongAdder[] counts = new LongAdder[OPERATIONS.length + 1];
+        final LongAdder errors = new LongAdder();
+        final AtomicLong outstanding = new AtomicLong();
+        long elapsedNanos;
+
+        Phase() {
+            for (int i = 0; i < latency.length; i++) {
+                latency[i] = new LatencyHistogram();
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(int index, long latencyNanos, long expectedInterval) {
+            counts[index].increment();
+            latency[index].record(latencyNanos);
+            if (expectedInterval > 0) {
+                for (long missed = latencyNanos - expectedInterval; missed >= expectedInterval; missed -= expectedInterval) {
+                    latency[index].record(missed);
+                }
+            }
+        }
+
+        /** Waits up to ten seconds for the last replies; what is still missing then is not counted. */
+        void awaitOutstanding() throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous console log. Request threads only claim a slot in a fixed ring and store the
+ * message parts as given; one background thread concatenates, timestamps and writes them. When the ring is full new records are dropped and counted rather than blocking a request.
+ *
+ * <p>Levels map to the console colours the servers have always used: request successes are
+ * {@code DEBUG} (green), lifecycle events {@code INFO} (blue), rejected requests {@code WARN} and
+ * faults {@code ERROR} (red). {@code --log-level=info} therefore silences per-request success
+ * lines and {@code --log-level=off} silences everything.
+ */
+public final class Log {
+    public enum Level {
+        OFF(""), ERROR("\u001B[31m"), WARN("\u001B[31m"), INFO("\u001B[34m"), DEBUG("\u001B[32m");
+
+        final String color;
+
+        Level(String color) {
+            this.color = color;
+        }
+    }
+
+    private static final String RESET = "\u001B[0m";
+
+    private static volatile Level threshold = Level.DEBUG;
+    private static volatile Ring ring;
+    private static final LongAdder dropped = new LongAdder();
+
+    private Log() {
+    }
+
+    public static synchronized void configure(ServerOptions options) {
+        String level = options.getString("log-level", "debug");
+        try {
+            threshold = Level.valueOf(level.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown log level: " + level + " (expected debug, info, warn, error or off)");
+        }
+        if (ring == null) {
+            ring = new Ring(options.getInt("log-buffer", 8192));
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level != Level.OFF && level.compareTo(threshold) <= 0;
+    }
+
+    public static long droppedRecords() {
+        return dropped.sum();
+    }
+
+    public static void debug(Object... parts) {
+        publish(Level.DEBUG, parts);
+    }
+
+    public static void info(Object... parts) {
+        publish(Level.INFO, parts);
+    }
+
+    public static void warn(Object... parts) {
+        publish(Level.WARN, parts);
+    }
+
+    public static void error(Object... parts) {
+        publish(Level.ERROR, parts);
+    }
+
+    private static void publish(Level level, Object[] parts) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Ring target = ring;
+        if (target == null) {
+            synchronized (Log.class) {
+                if (ring == null) {
+                    ring = new Ring(8192);
+                }
+                target = ring;
+            }
+        }
+        if (!target.offer(level, System.currentTimeMillis(), parts)) {
+            dropped.increment();
+        }
+    }
+
+    private static final class Slot {
+        volatile long sequence;
+        Level level;
+        long millis;
+        Object[] parts;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    private static final class Ring implements Runnable {
+        private final Slot[] slots;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head;
+        private final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024);
+        private final StringBuilder line = new StringBuilder(256);
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+            slots = new Slot[size];
+            for (int i = 0; i < size; i++) {
+                slots[i] = new Slot(i - size);
+            }
+            mask = size - 1;
+            Thread writer = new Thread(this, "log-writer");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "log-flush"));
+        }
+
+        boolean offer(Level level, long millis, Object[] parts) {
+            long sequence;
+            do {
+                sequence = tail.get();
+                if (sequence - head >= slots.length) {
+                    return false;
+                }
+            } while (!tail.compareAndSet(sequence, sequence + 1));
+            Slot slot = slots[(int) sequence & mask];
+            slot.level = level;
+            slot.millis = millis;
+            slot.parts = parts;
+            slot.sequence = sequence;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (!drain()) {
+                    LockSupport.parkNanos(1_000_000);
+                }
+            }
+        }
+
+        private synchronized boolean drain() {
+            boolean wrote = false;
+            try {
+                while (true) {
+                    long next = head;
+                    Slot slot = slots[(int) next & mask];
+                    if (slot.sequence != next) {
+                        break;
+                    }
+                    line.setLength(0);
+                    line.append(slot.level.color).append(CachedClock.timestamp(slot.millis));
+                    for (Object part : slot.parts) {
+                        line.append(part);
+                    }
+                    slot.parts = null;
+                    line.append(RESET).append('\n');
+                    out.append(line);
+                    head = next + 1;
+                    wrote = true;
+                }
+                if (wrote) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return wrote;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Read-only view of a {@link SnapshotFile} mapped into memory. Lookups binary-search the index
+ * and touch only the pages on their path, so a GET can be answered as soon as the file is
+ * mapped instead of after every entry has been parsed. Deadlines are found through the file's
+ * second index, so reading them touches only the entries that have one.
+ */
+public final class MappedSnapshot {
+    private final ByteBuffer data;
+    private final boolean hasDeadlines;
+    private final int header;
+    private final long firstSegment;
+    private final int count;
+    private final int indexOffset;
+    private final int expiring;
+
+    private MappedSnapshot(ByteBuffer data) throws IOException {
+        this.data = data;
+        int magic = data.capacity() < SnapshotFile.HEADER_V1 ? 0 : data.getInt(0);
+        this.hasDeadlines = magic == SnapshotFile.MAGIC;
+        this.header = hasDeadlines ? SnapshotFile.HEADER : SnapshotFile.HEADER_V1;
+        if ((magic != SnapshotFile.MAGIC && magic != SnapshotFile.MAGIC_V1) || data.capacity() < header) {
+            throw new IOException("Not a snapshot file");
+        }
+        this.firstSegment = data.getLong(4);
+        this.count = data.getInt(12);
+        long index = data.getLong(16);
+        this.expiring = hasDeadlines ? data.getInt(24) : 0;
+        if (index + 8L * count + 8L * expiring != data.capacity()) {
+            throw new IOException("Snapshot index does not match the file size");
+        }
+        this.indexOffset = (int) index;
+    }
+
+    /**
+     * @throws IOException if the file is not a snapshot or is too large for a single mapping
+     */
+    public static MappedSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot of " + channel.size() + " bytes is too large to map");
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedSnapshot(data);
+        }
+    }
+
+    public long firstSegment() {
+        return firstSegment;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String get(String key) {
+        int entry = find(key);
+        return entry < 0 ? null : string(valuePosition(entry));
+    }
+
+    /** @return the key's deadline in epoch milliseconds, 0 if it has none or is absent */
+    public long deadline(String key) {
+        int entry = find(key);
+        return entry < 0 ? 0 : deadlineAt(entry);
+    }
+
+    /**
+     * Visits the entries in key order.
+     */
+    public void forEach(SnapshotFile.EntryConsumer action) {
+        int position = header;
+        for (int i = 0; i < count; i++) {
+            String key = string(position);
+            position += 2 + (data.getShort(position) & 0xFFFF);
+            String value = string(position);
+            position += 2 + (data.getShort(position) & 0xFFFF);
+            long deadline = 0;
+            if (hasDeadlines) {
+                deadline = data.getLong(position);
+                position += 8;
+            }
+            action.accept(key, value, deadline);
+        }
+    }
+
+    /**
+     * Visits the keys that have a deadline, reading only their entries.
+     */
+    public void forEachDeadline(ObjLongConsumer<String> action) {
+        int expiryIndex = indexOffset + 8 * count;
+        for (int i = 0; i < expiring; i++) {
+            int entry = (int) data.getLong(expiryIndex + 8 * i);
+            action.accept(string(entry), deadlineAt(entry));
+        }
+    }
+
+    /** @return the offset of the key's entry, or -1 if it is absent */
+    private int find(String key) {
+        byte[] wanted = key.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = (int) data.getLong(indexOffset + 8 * middle);
+            int comparison = compareKey(entry, wanted);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private int valuePosition(int entry) {
+        return entry + 2 + (data.getShort(entry) & 0xFFFF);
+    }
+
+    private long deadlineAt(int entry) {
+        if (!hasDeadlines) {
+            return 0;
+        }
+        int value = valuePosition(entry);
+        return data.getLong(value + 2 + (data.getShort(value) & 0xFFFF));
+    }
+
+    private int compareKey(int entry, byte[] wanted) {
+        int length = data.getShort(entry) & 0xFFFF;
+        int shared = Math.min(length, wanted.length);
+        for (int i = 0; i < shared; i++) {
+            int difference = (data.get(entry + 2 + i) & 0xFF) - (wanted[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - wanted.length;
+    }
+
+    private String string(int position) {
+        byte[] bytes = new byte[data.getShort(position) & 0xFFFF];
+        data.get(position + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
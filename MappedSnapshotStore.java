@@ -0,0 +1,310 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Serves a store from a {@link MappedSnapshot} while a background thread copies the snapshot into
+ * it, so the server can answer requests right after startup.
+ *
+ * <p>A key that has not been touched since startup is answered from the snapshot. The first
+ * mutation of a key (and every key replayed from the log) marks it resolved: its snapshot value and
+ * deadline are copied into the delegate under the key's lock, and from then on the delegate is authoritative
+ * and the loader skips it. Operations that need every key (KEYS, size, snapshots) wait for the
+ * load to finish.
+ */
+public final class MappedSnapshotStore implements KeyValueStore {
+    private static final int LOCKS = 256;
+
+    private final KeyValueStore delegate;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCKS];
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private volatile MappedSnapshot snapshot;
+    private volatile Set<String> resolved = ConcurrentHashMap.newKeySet();
+
+    public MappedSnapshotStore(KeyValueStore delegate, MappedSnapshot snapshot) {
+        this.delegate = delegate;
+        this.snapshot = snapshot;
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Starts copying the snapshot into the delegate on a daemon thread.
+     */
+    public void startLoading() {
+        Thread loader = new Thread(this::load, "snapshot-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    public void awaitLoaded() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void load() {
+        long start = System.nanoTime();
+        MappedSnapshot source = snapshot;
+        source.forEach((key, value, deadlineMillis) -> {
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                if (!resolved.contains(key)) {
+                    copy(key, value, deadlineMillis);
+                }
+            } finally {
+                lock.unlock();
+            }
+        });
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            loaded.countDown();
+            snapshot = null;
+            resolved = null;
+        } finally {
+            for (ReentrantLock lock : locks) {
+                lock.unlock();
+            }
+        }
+        Log.info(" Loaded ", source.size(), " snapshot entries in the background in ", (System.nanoTime() - start) / 1_000_000, " ms");
+    }
+
+    private boolean loading() {
+        return loaded.getCount() > 0;
+    }
+
+    private ReentrantLock lockFor(String key) {
+        int h = key.hashCode();
+        return locks[(h ^ (h >>> 16)) & (LOCKS - 1)];
+    }
+
+    /**
+     * Caller holds the key's lock and has checked that loading is in progress. A key the loader
+     * has already copied is left alone, so its copy is not reported to listeners twice.
+     */
+    private void resolve(String key) {
+        if (resolved.add(key) && delegate.get(key) == null) {
+            String value = snapshot.get(key);
+            if (value != null) {
+                copy(key, value, snapshot.deadline(key));
+            }
+        }
+    }
+
+    private void copy(String key, String value, long deadlineMillis) {
+        delegate.applyPut(key, value);
+        if (deadlineMillis != 0) {
+            delegate.applyDeadline(key, deadlineMillis);
+        }
+    }
+
+    /**
+     * Locks every key's lock in index order and returns the locks, or {@code null} if the load
+     * has finished and no locking is needed.
+     */
+    private ReentrantLock[] lockAll(String[] keys) {
+        if (!loading()) {
+            return null;
+        }
+        int[] indexes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            int h = keys[i].hashCode();
+            indexes[i] = (h ^ (h >>> 16)) & (LOCKS - 1);
+        }
+        int[] distinct = Arrays.stream(indexes).sorted().distinct().toArray();
+        ReentrantLock[] held = new ReentrantLock[distinct.length];
+        for (int i = 0; i < distinct.length; i++) {
+            held[i] = locks[distinct[i]];
+            held[i].lock();
+        }
+        if (!loading()) {
+            unlockAll(held);
+            return null;
+        }
+        for (String key : keys) {
+            resolve(key);
+        }
+        return held;
+    }
+
+    private static void unlockAll(ReentrantLock[] held) {
+        if (held != null) {
+            for (int i = held.length - 1; i >= 0; i--) {
+                held[i].unlock();
+            }
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        if (loading()) {
+            Set<String> resolvedKeys = resolved;
+            MappedSnapshot source = snapshot;
+            if (resolvedKeys != null && source != null && !resolvedKeys.contains(key)) {
+                return source.get(key);
+            }
+        }
+        return delegate.get(key);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        ReentrantLock[] held = lockAll(new String[] {key});
+        try {
+            return delegate.putIfAbsent(key, value);
+        } finally {
+            unlockAll(held);
+        }
+    }
+
+    @Override
+    public boolean setDeadline(String key, long deadlineMillis) {
+        ReentrantLock[] held = lockAll(new String[] {key});
+        try {
+            return delegate.setDeadline(key, deadlineMillis);
+        } finally {
+            unlockAll(held);
+        }
+    }
+
+    @Override
+    public boolean remove(String key) {
+        ReentrantLock[] held = lockAll(new String[] {key});
+        try {
+            return delegate.remove(key);
+        } finally {
+            unlockAll(held);
+        }
+    }
+
+    @Override
+    public boolean removeIf(String key, BooleanSupplier condition) {
+        ReentrantLock[] held = lockAll(new String[] {key});
+        try {
+            return delegate.removeIf(key, condition);
+        } finally {
+            unlockAll(held);
+        }
+    }
+
+    @Override
+    public String[] getAll(String[] keys) {
+        if (!loading()) {
+            return delegate.getAll(keys);
+        }
+        String[] values = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = get(keys[i]);
+        }
+        return values;
+    }
+
+    @Override
+    public boolean[] putAllIfAbsent(String[] keys, String[] values) {
+        ReentrantLock[] held = lockAll(keys);
+        try {
+            return delegate.putAllIfAbsent(keys, values);
+        } finally {
+            unlockAll(held);
+        }
+    }
+
+    @Override
+    public boolean[] removeAll(String[] keys) {
+        ReentrantLock[] held = lockAll(keys);
+        try {
+            return delegate.removeAll(keys);
+        } finally {
+            unlockAll(held);
+        }
+    }
+
+    @Override
+    public List<String> keys() {
+        awaitLoaded();
+        return delegate.keys();
+    }
+
+    @Override
+    public int size() {
+        awaitLoaded();
+        return delegate.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        awaitLoaded();
+        delegate.forEach(action);
+    }
+
+    @Override
+    public KeyScan.Page scan(long cursor, int count) {
+        awaitLoaded();
+        return delegate.scan(cursor, count);
+    }
+
+    @Override
+    public void addMutationListener(MutationListener listener) {
+        delegate.addMutationListener(listener);
+    }
+
+    @Override
+    public void registerMetrics(Metrics metrics) {
+        delegate.registerMetrics(metrics);
+    }
+
+    @Override
+    public void applyPut(String key, String value) {
+        ReentrantLock[] held = lockAll(new String[] {key});
+        try {
+            delegate.applyPut(key, value);
+        } finally {
+            unlockAll(held);
+        }
+    }
+
+    @Override
+    public void applyRemove(String key) {
+        ReentrantLock[] held = lockAll(new String[] {key});
+        try {
+            delegate.applyRemove(key);
+        } finally {
+            unlockAll(held);
+        }
+    }
+
+    @Override
+    public void applyDeadline(String key, long deadlineMillis) {
+        ReentrantLock[] held = lockAll(new String[] {key});
+        try {
+            delegate.applyDeadline(key, deadlineMillis);
+        } finally {
+            unlockAll(held);
+        }
+    }
+
+    @Override
+    public void forEachDeadline(ObjLongConsumer<String> action) {
+        delegate.forEachDeadline(action);
+    }
+}
@@ -0,0 +1,207 @@
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-server counters read by the STAT command. Every counter is a {@link LongAdder} or
+ * {@link LatencyHistogram}, so recording never takes a lock and reading is a snapshot sum;
+ * gauges are read from their owner when reported.
+ */
+public final class Metrics {
+    private final String server;
+    private final LongAdder[] commandCounts = new LongAdder[Command.values().length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Command.values().length];
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder totalConnections = new LongAdder();
+    private final ConcurrentSkipListMap<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    public Metrics(String server) {
+        this.server = server;
+        for (int i = 0; i < commandCounts.length; i++) {
+            commandCounts[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public void record(Command command, long startNanos) {
+        commandCounts[command.ordinal()].increment();
+        latencies[command.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public void addBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void addBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void connectionOpened() {
+        activeConnections.increment();
+        totalConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * A named event counter, created on first use and reported by STAT and the JSON dump after
+     * the built-in counters. Callers should keep the returned adder rather than look it up per event.
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, ignored -> new LongAdder());
+    }
+
+    /** A named value read when STAT or the JSON dump is produced, reported after the counters. */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public long count(Command command) {
+        return commandCounts[command.ordinal()].sum();
+    }
+
+    public LatencyHistogram latency(Command command) {
+        return latencies[command.ordinal()];
+    }
+
+    public InputStream countingInput(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    bytesIn.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    public OutputStream countingOutput(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+                bytesOut.add(length);
+            }
+        };
+    }
+
+    public String statistics() {
+        StringBuilder statistics = new StringBuilder();
+        statistics.append("Command statistics:\n");
+        for (Command command : Command.values()) {
+            if (command != Command.UNKNOWN) {
+                statistics.append(command.name()).append(": ").append(count(command)).append("\n");
+            }
+        }
+        statistics.append("Latency (us) p50/p99/p999:\n");
+        for (Command command : Command.values()) {
+            LatencyHistogram histogram = latency(command);
+            if (histogram.count() > 0) {
+                statistics.append(command.name()).append(": ")
+                        .append(micros(histogram.percentile(0.5))).append('/')
+                        .append(micros(histogram.percentile(0.99))).append('/')
+                        .append(micros(histogram.percentile(0.999))).append("\n");
+            }
+        }
+        statistics.append("Bytes in: ").append(bytesIn.sum()).append("\n");
+        statistics.append("Bytes out: ").append(bytesOut.sum()).append("\n");
+        statistics.append("Active connections: ").append(activeConnections.sum()).append("\n");
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            statistics.append(counter.getKey()).append(": ").append(counter.getValue().sum()).append("\n");
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            statistics.append(gauge.getKey()).append(": ").append(gauge.getValue().getAsLong()).append("\n");
+        }
+        return statistics.toString();
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"server\":\"").append(server).append("\",\"time\":").append(System.currentTimeMillis());
+        json.append(",\"bytesIn\":").append(bytesIn.sum());
+        json.append(",\"bytesOut\":").append(bytesOut.sum());
+        json.append(",\"activeConnections\":").append(activeConnections.sum());
+        json.append(",\"totalConnections\":").append(totalConnections.sum());
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            json.append(",\"").append(counter.getKey()).append("\":").append(counter.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            json.append(",\"").append(gauge.getKey()).append("\":").append(gauge.getValue().getAsLong());
+        }
+        json.append(",\"commands\":{");
+        boolean first = true;
+        for (Command command : Command.values()) {
+            LatencyHistogram histogram = latency(command);
+            if (histogram.count() == 0) {
+                continue;
+            }
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(command.name()).append("\":{\"count\":").append(count(command))
+                    .append(",\"meanNs\":").append((long) histogram.mean())
+                    .append(",\"p50Ns\":").append(histogram.percentile(0.5))
+                    .append(",\"p99Ns\":").append(histogram.percentile(0.99))
+                    .append(",\"p999Ns\":").append(histogram.percentile(0.999)).append('}');
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * Starts writing {@link #toJson()} as one line every {@code --metrics-interval} milliseconds
+     * to {@code --metrics-file} (standard output by default). Does nothing if the interval is unset.
+     */
+    public void startPeriodicDump(ServerOptions options) throws IOException {
+        long interval = options.getLong("metrics-interval", 0);
+        if (interval <= 0) {
+            return;
+        }
+        String file = options.getString("metrics-file", null);
+        PrintStream out = file == null ? System.out : new PrintStream(new FileOutputStream(file, true), true, StandardCharsets.UTF_8);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> out.println(toJson()), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f", nanos / 1000.0);
+    }
+}
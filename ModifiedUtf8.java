@@ -0,0 +1,78 @@
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder/decoder for the frame format produced by {@code DataOutputStream.writeUTF}:
+ * an unsigned 16-bit byte count followed by modified UTF-8.
+ */
+public final class ModifiedUtf8 {
+    public static final int MAX_ENCODED_LENGTH = 65535;
+
+    private ModifiedUtf8() {
+    }
+
+    public static int encodedLength(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c <= 0x07FF) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    public static void writeFrame(String value, int encodedLength, ByteBuffer buffer) {
+        buffer.putShort((short) encodedLength);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buffer.put((byte) c);
+            } else if (c <= 0x07FF) {
+                buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    public static String decode(ByteBuffer buffer, int length) throws UTFDataFormatException {
+        char[] chars = new char[length];
+        int count = 0;
+        int end = buffer.position() + length;
+        while (buffer.position() < end) {
+            int b = buffer.get() & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                int b2 = continuation(buffer, end);
+                chars[count++] = (char) (((b & 0x1F) << 6) | b2);
+            } else if ((b & 0xF0) == 0xE0) {
+                int b2 = continuation(buffer, end);
+                int b3 = continuation(buffer, end);
+                chars[count++] = (char) (((b & 0x0F) << 12) | (b2 << 6) | b3);
+            } else {
+                throw new UTFDataFormatException("malformed input: invalid lead byte " + b);
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private static int continuation(ByteBuffer buffer, int end) throws UTFDataFormatException {
+        if (buffer.position() >= end) {
+            throw new UTFDataFormatException("malformed input: partial character at end");
+        }
+        int b = buffer.get() & 0xFF;
+        if ((b & 0xC0) != 0x80) {
+            throw new UTFDataFormatException("malformed input: invalid continuation byte " + b);
+        }
+        return b & 0x3F;
+    }
+}
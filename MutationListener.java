@@ -0,0 +1,33 @@
+/**
+ * Observes successful store mutations. Engines call listeners while still holding the lock
+ * that protects the key, so for any one key listeners see mutations in the order they were
+ * applied. Implementations must therefore be quick and must not call back into the store.
+ */
+public interface MutationListener {
+    void onPut(String key, String value);
+
+    void onRemove(String key);
+
+    /**
+     * Called for a pair stored by {@link KeyValueStore#applyPut}: a replayed or loaded entry that
+     * is already durable, so logs ignore it, but that a layer accounting for every key present
+     * must see. Engines call it under the key's lock like the other callbacks.
+     */
+    default void onApplyPut(String key, String value) {
+    }
+
+    /** Called for a key removed by {@link KeyValueStore#applyRemove}; see {@link #onApplyPut}. */
+    default void onApplyRemove(String key) {
+    }
+
+    /**
+     * Called when a present key is given a deadline by {@link KeyValueStore#setDeadline}. A later
+     * put or removal of the key drops the deadline.
+     */
+    default void onDeadline(String key, long deadlineMillis) {
+    }
+
+    /** Called for a deadline replayed by {@link KeyValueStore#applyDeadline}; see {@link #onApplyPut}. */
+    default void onApplyDeadline(String key, long deadlineMillis) {
+    }
+}
@@ -0,0 +1,137 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client-side cache of values read by {@link KVClient#get}, kept consistent by the invalidations
+ * a server pushes to tracking connections (see {@link InvalidationTracker}). Values are held in a
+ * {@link BoundedKeyValueStore} of at most {@code maxEntries} keys, so hot keys stay cached while
+ * keys read once are evicted; a hit costs a hash lookup and no round trip.
+ *
+ * <p>A GET that misses leaves a token for its key before the request is sent. An invalidation
+ * removes the token, and the reply is cached only if its token is still there, so a value read
+ * concurrently with a write to its key is never cached, whether the reply or the invalidation
+ * arrives first. Tokens and invalidations of a key are serialized by one of 64 locks; hits take
+ * none.
+ *
+ * <p>Everything is dropped when a tracking connection closes or the server reports that it had to
+ * discard invalidations, since either may have hidden a write.
+ */
+public final class NearCache implements PipelinedConnection.PushListener {
+    private static final int LOCKS = 64;
+
+    private final BoundedKeyValueStore entries;
+    private final ConcurrentHashMap<String, Object> reads = new ConcurrentHashMap<>();
+    private final ReentrantLock[] locks = new ReentrantLock[LOCKS];
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder clears = new LongAdder();
+
+    public NearCache(long maxEntries) {
+        entries = new BoundedKeyValueStore(new StripedKeyValueStore(StripedKeyValueStore.defaultStripeCount()), maxEntries, false, 1);
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /** @return the cached value, or {@code null} if the key has to be read from the server */
+    public String get(String key) {
+        return entries.get(key);
+    }
+
+    /** Call before sending the GET of a key that missed; @return the token to pass to {@link #endRead} */
+    public Object beginRead(String key) {
+        Object token = new Object();
+        reads.put(key, token);
+        return token;
+    }
+
+    /**
+     * Caches the value the GET returned unless the key was invalidated since {@link #beginRead}.
+     *
+     * @param value the value read, or {@code null} if the key was absent or the request failed
+     */
+    public void endRead(String key, Object token, String value) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (reads.remove(key, token) && value != null) {
+                entries.putIfAbsent(key, value);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops the key; called for pushed invalidations and for this client's own writes. */
+    public void invalidate(String key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            reads.remove(key);
+            if (entries.remove(key)) {
+                invalidations.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops every key and every pending read. */
+    public void clear() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            reads.clear();
+            entries.removeAll(entries.keys().toArray(new String[0]));
+            clears.increment();
+        } finally {
+            for (int i = LOCKS - 1; i >= 0; i--) {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    @Override
+    public void onPush(BinaryProtocol.Message push) {
+        if (push.fields.length == 0) {
+            clear();
+            return;
+        }
+        for (String key : push.fields) {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void onClosed() {
+        clear();
+    }
+
+    public long hits() {
+        return entries.hits();
+    }
+
+    public long misses() {
+        return entries.misses();
+    }
+
+    /** @return cached keys dropped because they were written */
+    public long invalidations() {
+        return invalidations.sum();
+    }
+
+    /** @return how often the whole cache was dropped */
+    public long clears() {
+        return clears.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private ReentrantLock lockFor(String key) {
+        int h = key.hashCode();
+        return locks[(h ^ (h >>> 16)) & (LOCKS - 1)];
+    }
+}
@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures what a {@link NearCache} saves on a read-mostly Zipfian workload against a running
+ * TCPServer, and checks that it never serves a value older than a write that had completed when
+ * the read started longer than {@code --stale-grace} milliseconds ago. Reader threads GET in a closed loop through one {@link KVClient} per cache
+ * size; a separate client without a near cache DELETEs and re-PUTs keys at {@code --write-rate}
+ * per second, so every write reaches the readers only as a pushed invalidation.
+ *
+ * <pre>java NearCacheBenchmark --port=8080 --near-cache=0,1000,10000 --keys=100000 --threads=4 --seconds=10 --write-rate=1000</pre>
+ *
+ * Output is CSV. Invalidations travel asynchronously, so a read may return the previous value
+ * for about one push latency after another client's write completed; such reads are counted as
+ * {@code lagging_reads}. {@code stale_reads}, older than the grace period, must be 0.
+ */
+public final class NearCacheBenchmark {
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = new ServerOptions(args);
+        Log.configure(options);
+        String server = options.getString("host", "localhost") + ":" + options.getInt("port", 8080);
+        int keys = options.getInt("keys", 100_000);
+        int threads = options.getInt("threads", 4);
+        int seconds = options.getInt("seconds", 10);
+        long writeRate = options.getLong("write-rate", 1000);
+        long graceNanos = TimeUnit.MILLISECONDS.toNanos(options.getLong("stale-grace", 100));
+        ZipfianGenerator generator = new ZipfianGenerator(keys, Double.parseDouble(options.getString("zipf-theta", "0.99")), true);
+
+        // The last completed write's sequence number and completion time per key; values are "v" + sequence in base 36.
+        Writes writes = new Writes(keys);
+        try (KVClient writer = new KVClient(List.of(server), 4, true, 0, 10_000)) {
+            preload(writer, keys);
+            System.out.println("near_cache,threads,gets_per_sec,p50_us,p99_us,hit_rate,invalidations,writes,lagging_reads,stale_reads");
+            for (String size : options.getString("near-cache", "0,1000,10000").split(",")) {
+                long entries = Long.parseLong(size.trim());
+                try (KVClient reader = new KVClient(List.of(server), Math.max(1, threads / 2), true, 0, 10_000, entries)) {
+                    reader.connect();
+                    run(reader, writer, generator, writes, threads, seconds, writeRate, graceNanos, entries);
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void preload(KVClient writer, int keys) {
+        List<String> batch = new ArrayList<>();
+        for (int i = 0; i < keys; i++) {
+            batch.add("k" + i);
+            batch.add("v0");
+            if (batch.size() == 1024 || i == keys - 1) {
+                writer.multiDelete(everyOther(batch)).join();
+                writer.multiPut(batch.toArray(new String[0])).join();
+                batch.clear();
+            }
+        }
+    }
+
+    private static String[] everyOther(List<String> keysAndValues) {
+        String[] keys = new String[keysAndValues.size() / 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = keysAndValues.get(2 * i);
+        }
+        return keys;
+    }
+
+    private static final class Writes {
+        final AtomicLongArray versions;
+        final AtomicLongArray completedNanos;
+        final AtomicLong sequence = new AtomicLong();
+        final LongAdder count = new LongAdder();
+
+        Writes(int keys) {
+            versions = new AtomicLongArray(keys);
+            completedNanos = new AtomicLongArray(keys);
+        }
+    }
+
+    private static void run(KVClient reader, KVClient writer, ZipfianGenerator generator, Writes writes, int threads, int seconds,
+            long writeRate, long graceNanos, long entries) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long writesBefore = writes.count.sum();
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder lagging = new LongAdder();
+        LongAdder stale = new LongAdder();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    int item = generator.next();
+                    long expected = writes.versions.get(item);
+                    long writtenNanos = writes.completedNanos.get(item);
+                    long start = System.nanoTime();
+                    String value = reader.get("k" + item).join();
+                    latency.record(System.nanoTime() - start);
+                    if (value != null && Long.parseLong(value.substring(1), 36) < expected) {
+                        (start - writtenNanos > graceNanos ? stale : lagging).increment();
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        Thread writerThread = new Thread(() -> {
+            long intervalNanos = writeRate > 0 ? TimeUnit.SECONDS.toNanos(1) / writeRate : Long.MAX_VALUE;
+            long next = System.nanoTime();
+            while (writeRate > 0 && next < deadline) {
+                long now = System.nanoTime();
+                if (now < next) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+                int item = generator.next();
+                long version = writes.sequence.incrementAndGet();
+                writer.delete("k" + item).join();
+                writer.put("k" + item, "v" + Long.toString(version, 36)).join();
+                // The time first, so a reader that sees the version sees at least this time.
+                writes.completedNanos.set(item, System.nanoTime());
+                writes.versions.set(item, version);
+                writes.count.increment();
+                next += intervalNanos;
+            }
+        });
+        writerThread.start();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        writerThread.join();
+        NearCache cache = reader.nearCache();
+        long hits = cache == null ? 0 : cache.hits();
+        long lookups = cache == null ? 0 : hits + cache.misses();
+        System.out.printf("%d,%d,%.0f,%.1f,%.1f,%.4f,%d,%d,%d,%d%n", entries, threads, (double) latency.count() / seconds,
+                latency.percentile(0.5) / 1000.0, latency.percentile(0.99) / 1000.0, (double) hits / Math.max(1, lookups),
+                cache == null ? 0 : cache.invalidations(), writes.count.sum() - writesBefore, lagging.sum(), stale.sum());
+    }
+}
@@ -0,0 +1,588 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Store engine that keeps entries outside the Java heap. Each stripe is an open-addressing hash
+ * table with linear probing in one direct {@link ByteBuffer}; an entry is a fixed
+ * {@value #SLOT}-byte slot holding its key and value as raw bytes, so tens of millions of entries
+ * add no objects for the garbage collector to trace. Removal shifts the following run of the
+ * probe sequence back instead of leaving tombstones.
+ *
+ * <p>Slot layout: {@code [u8 key length, 0 if free][key, 10 bytes][u8 value length]
+ * [value, 20 bytes]}, sized for the servers' limit of 10 characters, where keys are letters and
+ * digits. A value is stored as UTF-8 if that fits and as UTF-16 otherwise, flagged by the top bit
+ * of its length, so any 10-character value fits. The key's hash is not stored: probing compares
+ * the few key bytes directly, and resizing and removal recompute it from them.
+ */
+public final class OffHeapKeyValueStore implements KeyValueStore {
+    static final int MAX_KEY_BYTES = 10;
+    static final int MAX_VALUE_BYTES = 20;
+    private static final int KEY_LENGTH = 0;
+    private static final int KEY = 1;
+    private static final int VALUE_LENGTH = KEY + MAX_KEY_BYTES;
+    private static final int VALUE = VALUE_LENGTH + 1;
+    static final int SLOT = VALUE + MAX_VALUE_BYTES;
+    private static final int UTF_16 = 0x80;
+    private static final int INITIAL_SLOTS = 16;
+
+    private final Stripe[] stripes;
+    private final int mask;
+    private volatile MutationListener[] listeners = new MutationListener[0];
+
+    public OffHeapKeyValueStore(int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1) << 1);
+        stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+        mask = size - 1;
+    }
+
+    @Override
+    public String get(String key) {
+        Stripe stripe = stripeFor(key);
+        byte[] keyBytes = lookupKey(key);
+        if (keyBytes == null) {
+            return null;
+        }
+        long stamp = stripe.lock.readLock();
+        try {
+            int slot = stripe.find(keyBytes);
+            return slot < 0 ? null : stripe.value(slot);
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        Stripe stripe = stripeFor(key);
+        byte[] keyBytes = encodeKey(key);
+        byte[] valueBytes = encodeValue(value);
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (!stripe.insert(keyBytes, valueBytes, false)) {
+                return false;
+            }
+            notifyPut(key, value);
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean setDeadline(String key, long deadlineMillis) {
+        Stripe stripe = stripeFor(key);
+        byte[] keyBytes = lookupKey(key);
+        if (keyBytes == null) {
+            return false;
+        }
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (stripe.find(keyBytes) < 0) {
+                return false;
+            }
+            for (MutationListener listener : listeners) {
+                listener.onDeadline(key, deadlineMillis);
+            }
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(String key) {
+        Stripe stripe = stripeFor(key);
+        byte[] keyBytes = lookupKey(key);
+        if (keyBytes == null) {
+            return false;
+        }
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (!stripe.delete(keyBytes)) {
+                return false;
+            }
+            notifyRemove(key);
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean removeIf(String key, BooleanSupplier condition) {
+        Stripe stripe = stripeFor(key);
+        byte[] keyBytes = lookupKey(key);
+        if (keyBytes == null) {
+            return false;
+        }
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (stripe.find(keyBytes) < 0 || !condition.getAsBoolean()) {
+                return false;
+            }
+            stripe.delete(keyBytes);
+            notifyRemove(key);
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public String[] getAll(String[] keys) {
+        int[] indexes = stripeIndexes(keys);
+        long[] stamps = lockAll(indexes, false);
+        try {
+            String[] values = new String[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                Stripe stripe = stripeFor(keys[i]);
+                byte[] keyBytes = lookupKey(keys[i]);
+                int slot = keyBytes == null ? -1 : stripe.find(keyBytes);
+                values[i] = slot < 0 ? null : stripe.value(slot);
+            }
+            return values;
+        } finally {
+            unlockAll(indexes, stamps, false);
+        }
+    }
+
+    @Override
+    public boolean[] putAllIfAbsent(String[] keys, String[] values) {
+        byte[][] keyBytes = new byte[keys.length][];
+        byte[][] valueBytes = new byte[values.length][];
+        for (int i = 0; i < keys.length; i++) {
+            keyBytes[i] = encodeKey(keys[i]);
+            valueBytes[i] = encodeValue(values[i]);
+        }
+        int[] indexes = stripeIndexes(keys);
+        long[] stamps = lockAll(indexes, true);
+        try {
+            boolean[] stored = new boolean[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                stored[i] = stripeFor(keys[i]).insert(keyBytes[i], valueBytes[i], false);
+                if (stored[i]) {
+                    notifyPut(keys[i], values[i]);
+                }
+            }
+            return stored;
+        } finally {
+            unlockAll(indexes, stamps, true);
+        }
+    }
+
+    @Override
+    public boolean[] removeAll(String[] keys) {
+        int[] indexes = stripeIndexes(keys);
+        long[] stamps = lockAll(indexes, true);
+        try {
+            boolean[] removed = new boolean[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                byte[] keyBytes = lookupKey(keys[i]);
+                removed[i] = keyBytes != null && stripeFor(keys[i]).delete(keyBytes);
+                if (removed[i]) {
+                    notifyRemove(keys[i]);
+                }
+            }
+            return removed;
+        } finally {
+            unlockAll(indexes, stamps, true);
+        }
+    }
+
+    @Override
+    public List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        forEach((key, value) -> keys.add(key));
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                size += stripe.size;
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                for (int slot = 0; slot < stripe.capacity; slot++) {
+                    if (stripe.used(slot)) {
+                        action.accept(stripe.key(slot), stripe.value(slot));
+                    }
+                }
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    @Override
+    public KeyScan.Page scan(long cursor, int count) {
+        List<String> keys = new ArrayList<>();
+        long start = KeyScan.start(cursor);
+        for (int index = KeyScan.stripe(cursor); index < stripes.length; index++, start = 0) {
+            Stripe stripe = stripes[index];
+            long end;
+            long stamp = stripe.lock.readLock();
+            try {
+                end = KeyScan.end(start, count - keys.size(), stripe.size);
+                for (int slot = 0; slot < stripe.capacity; slot++) {
+                    if (stripe.used(slot)) {
+                        long position = KeyScan.position(stripe.hash(slot));
+                        if (position >= start && position < end) {
+                            keys.add(stripe.key(slot));
+                        }
+                    }
+                }
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+            if (!KeyScan.done(end) || keys.size() >= count) {
+                return new KeyScan.Page(KeyScan.next(index, end, stripes.length), keys);
+            }
+        }
+        return new KeyScan.Page(0, keys);
+    }
+
+    @Override
+    public synchronized void addMutationListener(MutationListener listener) {
+        MutationListener[] grown = Arrays.copyOf(listeners, listeners.length + 1);
+        grown[listeners.length] = listener;
+        listeners = grown;
+    }
+
+    @Override
+    public void applyPut(String key, String value) {
+        Stripe stripe = stripeFor(key);
+        byte[] keyBytes = encodeKey(key);
+        byte[] valueBytes = encodeValue(value);
+        long stamp = stripe.lock.writeLock();
+        try {
+            stripe.insert(keyBytes, valueBytes, true);
+            for (MutationListener listener : listeners) {
+                listener.onApplyPut(key, value);
+            }
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void applyRemove(String key) {
+        Stripe stripe = stripeFor(key);
+        byte[] keyBytes = lookupKey(key);
+        if (keyBytes == null) {
+            return;
+        }
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (stripe.delete(keyBytes)) {
+                for (MutationListener listener : listeners) {
+                    listener.onApplyRemove(key);
+                }
+            }
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void applyDeadline(String key, long deadlineMillis) {
+        Stripe stripe = stripeFor(key);
+        byte[] keyBytes = lookupKey(key);
+        if (keyBytes == null) {
+            return;
+        }
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (stripe.find(keyBytes) >= 0) {
+                for (MutationListener listener : listeners) {
+                    listener.onApplyDeadline(key, deadlineMillis);
+                }
+            }
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return bytes of direct memory currently reserved by all stripes
+     */
+    public long offHeapBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                bytes += (long) stripe.capacity * SLOT;
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return bytes;
+    }
+
+    private void notifyPut(String key, String value) {
+        for (MutationListener listener : listeners) {
+            listener.onPut(key, value);
+        }
+    }
+
+    private void notifyRemove(String key) {
+        for (MutationListener listener : listeners) {
+            listener.onRemove(key);
+        }
+    }
+
+    private static byte[] encodeKey(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0) {
+            throw new IllegalArgumentException("The off-heap store cannot hold an empty key");
+        }
+        if (bytes.length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Key of " + bytes.length + " bytes exceeds the off-heap slot limit of " + MAX_KEY_BYTES);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the key's bytes, or {@code null} if it is empty or too long to have been stored
+     */
+    private static byte[] lookupKey(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return bytes.length == 0 || bytes.length > MAX_KEY_BYTES ? null : bytes;
+    }
+
+    /** @return the value's length byte followed by the value as UTF-8, or as UTF-16 if only that fits */
+    private static byte[] encodeValue(String value) {
+        int flag = 0;
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_VALUE_BYTES) {
+            flag = UTF_16;
+            bytes = value.getBytes(StandardCharsets.UTF_16BE);
+            if (bytes.length > MAX_VALUE_BYTES) {
+                throw new IllegalArgumentException("Value of " + value.length() + " characters exceeds the off-heap slot limit of " + MAX_VALUE_BYTES / 2);
+            }
+        }
+        byte[] encoded = new byte[1 + bytes.length];
+        encoded[0] = (byte) (flag | bytes.length);
+        System.arraycopy(bytes, 0, encoded, 1, bytes.length);
+        return encoded;
+    }
+
+
+    private Stripe stripeFor(String key) {
+        return stripes[stripeIndex(key)];
+    }
+
+    private int stripeIndex(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Distinct stripes touched by a batch in ascending order, so that concurrent batches always
+     * acquire overlapping stripes in the same order and cannot deadlock.
+     */
+    private int[] stripeIndexes(String[] keys) {
+        int[] indexes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            indexes[i] = stripeIndex(keys[i]);
+        }
+        Arrays.sort(indexes);
+        int distinct = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            if (i == 0 || indexes[i] != indexes[i - 1]) {
+                indexes[distinct++] = indexes[i];
+            }
+        }
+        return Arrays.copyOf(indexes, distinct);
+    }
+
+    private long[] lockAll(int[] indexes, boolean exclusive) {
+        long[] stamps = new long[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            StampedLock lock = stripes[indexes[i]].lock;
+            stamps[i] = exclusive ? lock.writeLock() : lock.readLock();
+        }
+        return stamps;
+    }
+
+    private void unlockAll(int[] indexes, long[] stamps, boolean exclusive) {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            StampedLock lock = stripes[indexes[i]].lock;
+            if (exclusive) {
+                lock.unlockWrite(stamps[i]);
+            } else {
+                lock.unlockRead(stamps[i]);
+            }
+        }
+    }
+
+    private static final class Stripe {
+        final StampedLock lock = new StampedLock();
+        ByteBuffer table = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT);
+        int capacity = INITIAL_SLOTS;
+        int size;
+
+        /** Home slot of a key; uses different bits than the stripe index. */
+        int home(int hash) {
+            int h = hash * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (capacity - 1);
+        }
+
+        boolean used(int slot) {
+            return table.get(slot * SLOT + KEY_LENGTH) != 0;
+        }
+
+        /** @return the hash of the key in {@code slot}, computed from its bytes like {@link #hash(byte[])} */
+        int hash(int slot) {
+            return hash(table, slot);
+        }
+
+        int find(byte[] key) {
+            for (int slot = home(hash(key)); used(slot); slot = (slot + 1) & (capacity - 1)) {
+                if (keyEquals(slot, key)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return {@code true} if the key was absent or {@code replace} is set
+         */
+        boolean insert(byte[] key, byte[] value, boolean replace) {
+            int slot = find(key);
+            if (slot >= 0) {
+                if (replace) {
+                    writeValue(slot, value);
+                }
+                return replace;
+            }
+            if ((size + 1) * 4L > capacity * 3L) {
+                resize();
+            }
+            slot = home(hash(key));
+            while (used(slot)) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            int base = slot * SLOT;
+            table.put(base + KEY_LENGTH, (byte) key.length);
+            table.put(base + KEY, key);
+            writeValue(slot, value);
+            size++;
+            return true;
+        }
+
+        boolean delete(byte[] key) {
+            int slot = find(key);
+            if (slot < 0) {
+                return false;
+            }
+            int hole = slot;
+            int next = hole;
+            while (true) {
+                next = (next + 1) & (capacity - 1);
+                if (!used(next)) {
+                    break;
+                }
+                int home = home(hash(next));
+                boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+                if (movable) {
+                    table.put(hole * SLOT, table, next * SLOT, SLOT);
+                    hole = next;
+                }
+            }
+            table.put(hole * SLOT + KEY_LENGTH, (byte) 0);
+            size--;
+            return true;
+        }
+
+        private void resize() {
+            ByteBuffer old = table;
+            int oldCapacity = capacity;
+            capacity = oldCapacity * 2;
+            table = ByteBuffer.allocateDirect(capacity * SLOT);
+            for (int slot = 0; slot < oldCapacity; slot++) {
+                if (old.get(slot * SLOT + KEY_LENGTH) != 0) {
+                    int target = home(hash(old, slot));
+                    while (used(target)) {
+                        target = (target + 1) & (capacity - 1);
+                    }
+                    table.put(target * SLOT, old, slot * SLOT, SLOT);
+                }
+            }
+        }
+
+        private boolean keyEquals(int slot, byte[] key) {
+            int base = slot * SLOT;
+            if ((table.get(base + KEY_LENGTH) & 0xFF) != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (table.get(base + KEY + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** @param value as returned by {@link OffHeapKeyValueStore#encodeValue} */
+        private void writeValue(int slot, byte[] value) {
+            table.put(slot * SLOT + VALUE_LENGTH, value);
+        }
+
+        String key(int slot) {
+            int base = slot * SLOT;
+            byte[] bytes = new byte[table.get(base + KEY_LENGTH) & 0xFF];
+            table.get(base + KEY, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        String value(int slot) {
+            int base = slot * SLOT;
+            int length = table.get(base + VALUE_LENGTH) & 0xFF;
+            byte[] bytes = new byte[length & ~UTF_16];
+            table.get(base + VALUE, bytes);
+            return new String(bytes, (length & UTF_16) != 0 ? StandardCharsets.UTF_16BE : StandardCharsets.UTF_8);
+        }
+
+        /** The same polynomial as {@link String#hashCode}, so it matches it for the ASCII keys the servers accept. */
+        static int hash(byte[] key) {
+            int h = 0;
+            for (byte b : key) {
+                h = 31 * h + (b & 0xFF);
+            }
+            return h;
+        }
+
+        private static int hash(ByteBuffer table, int slot) {
+            int base = slot * SLOT;
+            int length = table.get(base + KEY_LENGTH) & 0xFF;
+            int h = 0;
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + (table.get(base + KEY + i) & 0xFF);
+            }
+            return h;
+        }
+    }
+}
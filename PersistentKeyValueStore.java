@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Makes another store durable with a {@link WriteAheadLog} and periodic {@link SnapshotFile}s
+ * in {@code --data-dir}.
+ *
+ * <p>On startup the latest snapshot is loaded and every log segment it does not cover is replayed
+ * on top of it. A snapshot rotates the log first and then copies the store, so the segments
+ * before the rotation can be deleted once the snapshot has been renamed into place.
+ *
+ * <p>With {@code --snapshot-load=mapped} (the default) the snapshot is memory-mapped and served by
+ * a {@link MappedSnapshotStore} while it is copied in the background; {@code eager} parses the
+ * whole snapshot before the server starts.
+ *
+ * <p>Deadlines set through {@link #setDeadline} are logged as EXPIRE records and written into
+ * the snapshot entries. The store keeps the deadline of every key that has one, recovered ones
+ * included, in a map, from which {@link ExpiringKeyValueStore} re-arms its timers on startup.
+ */
+public final class PersistentKeyValueStore implements KeyValueStore {
+    private static final String SNAPSHOT = "snapshot.dat";
+
+    private final KeyValueStore delegate;
+    private final Path directory;
+    private final WriteAheadLog log;
+    private final ConcurrentHashMap<String, Long> deadlines;
+
+    private PersistentKeyValueStore(KeyValueStore delegate, Path directory, WriteAheadLog log, ConcurrentHashMap<String, Long> deadlines) {
+        this.delegate = delegate;
+        this.directory = directory;
+        this.log = log;
+        this.deadlines = deadlines;
+    }
+
+    public static PersistentKeyValueStore open(KeyValueStore delegate, ServerOptions options) throws IOException {
+        Path directory = Paths.get(options.getString("data-dir", "data"));
+        Files.createDirectories(directory);
+        WriteAheadLog.FsyncPolicy policy = WriteAheadLog.FsyncPolicy.valueOf(options.getString("fsync", "interval").toUpperCase());
+
+        long start = System.nanoTime();
+        ConcurrentHashMap<String, Long> deadlines = new ConcurrentHashMap<>();
+        delegate.addMutationListener(new DeadlineListener(deadlines));
+        Path snapshot = directory.resolve(SNAPSHOT);
+        long firstSegment = 0;
+        MappedSnapshotStore mapped = null;
+        if (Files.exists(snapshot)) {
+            if (options.getString("snapshot-load", "mapped").equals("mapped")) {
+                MappedSnapshot view = MappedSnapshot.open(snapshot);
+                view.forEachDeadline(deadlines::put);
+                mapped = new MappedSnapshotStore(delegate, view);
+                delegate = mapped;
+                firstSegment = view.firstSegment();
+            } else {
+                KeyValueStore engine = delegate;
+                firstSegment = SnapshotFile.read(snapshot, (key, value, deadlineMillis) -> {
+                    engine.applyPut(key, value);
+                    if (deadlineMillis != 0) {
+                        engine.applyDeadline(key, deadlineMillis);
+                    }
+                });
+            }
+        }
+        long lastSegment = firstSegment;
+        long records = 0;
+        for (long segment : WriteAheadLog.listSegments(directory)) {
+            Path file = WriteAheadLog.segmentPath(directory, segment);
+            if (segment < firstSegment || Files.size(file) == 0) {
+                Files.delete(file);
+            } else {
+                records += WriteAheadLog.replay(file, delegate);
+                lastSegment = segment;
+            }
+        }
+        if (mapped != null) {
+            mapped.startLoading();
+        }
+        Log.info(" Recovered ", mapped != null ? "mapped snapshot" : delegate.size() + " keys", " and ", records, " log records from ",
+                directory, " in ", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), " ms");
+
+        WriteAheadLog log = new WriteAheadLog(directory, lastSegment + 1, policy, options.getLong("fsync-interval", 10));
+        delegate.addMutationListener(log);
+        PersistentKeyValueStore store = new PersistentKeyValueStore(delegate, directory, log, deadlines);
+        long snapshotInterval = options.getLong("snapshot-interval", 60000);
+        if (snapshotInterval > 0) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "snapshot-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(store::snapshotQuietly, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                log.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "wal-shutdown"));
+        return store;
+    }
+
+    /**
+     * Writes a new snapshot and deletes the log segments it makes redundant.
+     */
+    public synchronized void snapshot() throws IOException {
+        long start = System.nanoTime();
+        long firstSegment = log.rotate();
+        SnapshotFile.write(directory.resolve(SNAPSHOT), firstSegment, delegate, deadlines);
+        List<Long> segments = WriteAheadLog.listSegments(directory);
+        for (long segment : segments) {
+            if (segment < firstSegment) {
+                Files.deleteIfExists(WriteAheadLog.segmentPath(directory, segment));
+            }
+        }
+        Log.info(" Snapshot of ", delegate.size(), " keys written in ", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), " ms");
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | UncheckedIOException e) {
+            Log.error(" Snapshot failed: ", e);
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        return delegate.get(key);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        log.checkWritable();
+        boolean stored = delegate.putIfAbsent(key, value);
+        if (stored) {
+            log.awaitDurable();
+        }
+        return stored;
+    }
+
+    @Override
+    public boolean setDeadline(String key, long deadlineMillis) {
+        log.checkWritable();
+        boolean present = delegate.setDeadline(key, deadlineMillis);
+        if (present) {
+            log.awaitDurable();
+        }
+        return present;
+    }
+
+    @Override
+    public boolean remove(String key) {
+        log.checkWritable();
+        boolean removed = delegate.remove(key);
+        if (removed) {
+            log.awaitDurable();
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean removeIf(String key, BooleanSupplier condition) {
+        log.checkWritable();
+        boolean removed = delegate.removeIf(key, condition);
+        if (removed) {
+            log.awaitDurable();
+        }
+        return removed;
+    }
+
+    @Override
+    public String[] getAll(String[] keys) {
+        return delegate.getAll(keys);
+    }
+
+    @Override
+    public boolean[] putAllIfAbsent(String[] keys, String[] values) {
+        log.checkWritable();
+        boolean[] stored = delegate.putAllIfAbsent(keys, values);
+        log.awaitDurable();
+        return stored;
+    }
+
+    @Override
+    public boolean[] removeAll(String[] keys) {
+        log.checkWritable();
+        boolean[] removed = delegate.removeAll(keys);
+        log.awaitDurable();
+        return removed;
+    }
+
+    @Override
+    public List<String> keys() {
+        return delegate.keys();
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        delegate.forEach(action);
+    }
+
+    @Override
+    public KeyScan.Page scan(long cursor, int count) {
+        return delegate.scan(cursor, count);
+    }
+
+    @Override
+    public void addMutationListener(MutationListener listener) {
+        delegate.addMutationListener(listener);
+    }
+
+    @Override
+    public void registerMetrics(Metrics metrics) {
+        delegate.registerMetrics(metrics);
+    }
+
+    @Override
+    public void applyPut(String key, String value) {
+        delegate.applyPut(key, value);
+    }
+
+    @Override
+    public void applyRemove(String key) {
+        delegate.applyRemove(key);
+    }
+
+    @Override
+    public void applyDeadline(String key, long deadlineMillis) {
+        delegate.applyDeadline(key, deadlineMillis);
+    }
+
+    @Override
+    public void forEachDeadline(ObjLongConsumer<String> action) {
+        deadlines.forEach(action::accept);
+    }
+
+    /** Keeps {@link #deadlines} in step with the log: a put or removal drops the key's deadline. */
+    private static final class DeadlineListener implements MutationListener {
+        private final ConcurrentHashMap<String, Long> deadlines;
+
+        DeadlineListener(ConcurrentHashMap<String, Long> deadlines) {
+            this.deadlines = deadlines;
+        }
+
+        @Override
+        public void onPut(String key, String value) {
+            drop(key);
+        }
+
+        @Override
+        public void onRemove(String key) {
+            drop(key);
+        }
+
+        @Override
+        public void onApplyPut(String key, String value) {
+            drop(key);
+        }
+
+        @Override
+        public void onApplyRemove(String key) {
+            drop(key);
+        }
+
+        @Override
+        public void onDeadline(String key, long deadlineMillis) {
+            deadlines.put(key, deadlineMillis);
+        }
+
+        @Override
+        public void onApplyDeadline(String key, long deadlineMillis) {
+            deadlines.put(key, deadlineMillis);
+        }
+
+        private void drop(String key) {
+            if (!deadlines.isEmpty()) {
+                deadlines.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * One TCP connection that lets callers issue requests without waiting for earlier replies. A
+ * writer thread drains everything queued since its last pass and flushes once; a reader thread
+ * completes the futures in send order, which is the order the server answers in. Frames the
+ * server sends on its own ({@link BinaryProtocol#PUSH_INVALIDATE}) go to a {@link PushListener}.
+ */
+public final class PipelinedConnection implements Closeable {
+    private static final int STREAM_BUFFER = 16 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream dataIn;
+    private final DataOutputStream dataOut;
+    private final boolean binary;
+    private final BlockingQueue<Pending> outbound = new LinkedBlockingQueue<>();
+    private final Queue<Pending> inFlight = new ConcurrentLinkedQueue<>();
+    private final Semaphore window;
+    private final int maxInFlight;
+    private final Thread writer;
+    private final PushListener pushes;
+    private volatile IOException failure;
+    private volatile long lastReplyNanos = System.nanoTime();
+
+    public PipelinedConnection(String host, int port, boolean binary, int maxInFlight) throws IOException {
+        this(host, port, binary, maxInFlight, null);
+    }
+
+    /** @param pushes receives the server's push frames, or {@code null} if none are expected */
+    public PipelinedConnection(String host, int port, boolean binary, int maxInFlight, PushListener pushes) throws IOException {
+        this.pushes = pushes;
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        dataIn = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER));
+        dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER));
+        window = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+        this.binary = binary && negotiateBinary();
+        writer = startThread("pipeline-writer", this::writeLoop);
+        startThread("pipeline-reader", this::readLoop);
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public boolean isOpen() {
+        return failure == null && !socket.isClosed();
+    }
+
+    /** {@link System#nanoTime} of the last reply, or of opening the connection if none came yet. */
+    public long lastReplyNanos() {
+        return lastReplyNanos;
+    }
+
+    /** Requests sent or queued and not yet answered. */
+    public int outstanding() {
+        return maxInFlight - window.availablePermits();
+    }
+
+    public CompletableFuture<String> send(String request) {
+        if (binary) {
+            throw new IllegalStateException("Connection speaks the binary protocol");
+        }
+        return enqueue(request);
+    }
+
+    public CompletableFuture<BinaryProtocol.Message> send(BinaryProtocol.Message request) {
+        if (!binary) {
+            throw new IllegalStateException("Connection speaks the text protocol");
+        }
+        return enqueue(request);
+    }
+
+    private <T> CompletableFuture<T> enqueue(Object request) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        IOException current = failure;
+        if (current != null) {
+            future.completeExceptionally(current);
+            return future;
+        }
+        window.acquireUninterruptibly();
+        outbound.add(new Pending(request, future));
+        if (failure != null) {
+            failPending();
+        }
+        return future;
+    }
+
+    private boolean negotiateBinary() throws IOException {
+        socket.setSoTimeout(2000);
+        try {
+            dataOut.writeUTF(BinaryProtocol.HANDSHAKE);
+            dataOut.flush();
+            return BinaryProtocol.HANDSHAKE.equals(dataIn.readUTF());
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch);
+                for (Pending pending : batch) {
+                    inFlight.add(pending);
+                    if (binary) {
+                        BinaryProtocol.writeFrame(dataOut, (BinaryProtocol.Message) pending.request);
+                    } else {
+                        dataOut.writeUTF((String) pending.request);
+                    }
+                }
+                dataOut.flush();
+                batch.clear();
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readLoop() {
+        try {
+            while (true) {
+                Object reply = binary ? BinaryProtocol.readFrame(dataIn) : dataIn.readUTF();
+                if (binary && ((BinaryProtocol.Message) reply).code == BinaryProtocol.PUSH_INVALIDATE) {
+                    if (pushes == null) {
+                        throw new IOException("Received a push the connection did not ask for");
+                    }
+                    pushes.onPush((BinaryProtocol.Message) reply);
+                    continue;
+                }
+                Pending pending = inFlight.poll();
+                if (pending == null) {
+                    throw new IOException("Received a reply with no request outstanding");
+                }
+                lastReplyNanos = System.nanoTime();
+                window.release();
+                ((CompletableFuture<Object>) pending.future).complete(reply);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        closeQuietly();
+        writer.interrupt();
+        failPending();
+        if (pushes != null) {
+            pushes.onClosed();
+        }
+    }
+
+    private void failPending() {
+        Pending pending;
+        while ((pending = inFlight.poll()) != null || (pending = outbound.poll()) != null) {
+            window.release();
+            pending.future.completeExceptionally(failure);
+        }
+    }
+
+    @Override
+    public void close() {
+        fail(new IOException("Connection closed"));
+    }
+
+    private void closeQuietly() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static Thread startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /** Receives the frames a server sends without being asked, on the connection's reader thread. */
+    public interface PushListener {
+        void onPush(BinaryProtocol.Message push);
+
+        /** The connection failed or was closed, so pushes may have been lost. */
+        void onClosed();
+    }
+
+    private static final class Pending {
+        final Object request;
+        final CompletableFuture<?> future;
+
+        Pending(Object request, CompletableFuture<?> future) {
+            this.request = request;
+            this.future = future;
+        }
+    }
+}
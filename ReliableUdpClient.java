@@ -0,0 +1,236 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request/reply over UDP with loss recovery. Every request is sent behind a
+ * {@link BinaryProtocol#RELIABLE_MAGIC} header carrying a fresh ID, and replies are matched to
+ * requests by that ID, so any number up to {@code maxInFlight} can be outstanding at once. A
+ * request that is not answered within the retransmission timeout is sent again with the timeout
+ * doubled, up to {@code maxAttempts} sends; the server's {@link ReplyCache} makes the repeats safe
+ * for PUT and DELETE.
+ *
+ * <p>The timeout follows RFC 6298: a smoothed RTT and RTT variance are updated from replies to
+ * requests that were sent only once (Karn's rule), and the timeout is {@code srtt + 4 * rttvar}.
+ */
+public final class ReliableUdpClient implements Closeable {
+    private static final int MAX_DATAGRAM = 65507;
+    private static final long INITIAL_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_RTO_NANOS = TimeUnit.SECONDS.toNanos(4);
+
+    private final DatagramChannel channel;
+    private final int maxAttempts;
+    private final Semaphore window;
+    private final ConcurrentHashMap<Long, Request> pending = new ConcurrentHashMap<>();
+    private final DelayQueue<Request> timers = new DelayQueue<>();
+    private final AtomicLong nextId = new AtomicLong(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+    private long smoothedRtt;
+    private long rttVariance;
+    private long rto = INITIAL_RTO_NANOS;
+    private volatile boolean closed;
+
+    public ReliableUdpClient(InetSocketAddress server, int maxInFlight, int maxAttempts) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.connect(server);
+        this.maxAttempts = maxAttempts;
+        this.window = new Semaphore(maxInFlight);
+        Thread receiver = new Thread(this::receive, "udp-client-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        Thread retransmitter = new Thread(this::retransmit, "udp-client-retransmit");
+        retransmitter.setDaemon(true);
+        retransmitter.start();
+    }
+
+    /**
+     * Sends {@code payload}, a text or binary request as it would be sent without the reliability
+     * header, blocking while {@code maxInFlight} requests are outstanding. The future completes
+     * with the reply payload, or with a {@link SocketTimeoutException} once every attempt is spent.
+     */
+    public CompletableFuture<byte[]> send(byte[] payload) throws IOException, InterruptedException {
+        if (closed) {
+            throw new IOException("Client is closed");
+        }
+        window.acquire();
+        long id = nextId.getAndIncrement();
+        ByteBuffer datagram = ByteBuffer.allocate(BinaryProtocol.RELIABLE_HEADER + payload.length);
+        datagram.put(BinaryProtocol.RELIABLE_MAGIC).putLong(id).put(payload).flip();
+        Request request = new Request(id, datagram, currentRto());
+        pending.put(id, request);
+        try {
+            transmit(request);
+        } catch (IOException e) {
+            if (pending.remove(id) != null) {
+                window.release();
+            }
+            throw e;
+        }
+        timers.add(request);
+        return request.reply;
+    }
+
+    /** Sends {@code payload} and waits for its reply. */
+    public byte[] request(byte[] payload) throws IOException, InterruptedException {
+        try {
+            return send(payload).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    public int maxAttempts() {
+        return maxAttempts;
+    }
+
+    /** The current retransmission timeout in microseconds. */
+    public synchronized long rtoMicros() {
+        return rto / 1000;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+        IOException failure = new IOException("Client is closed");
+        for (Long id : pending.keySet()) {
+            Request request = pending.remove(id);
+            if (request != null) {
+                request.reply.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private void transmit(Request request) throws IOException {
+        request.attempts++;
+        request.sentNanos = System.nanoTime();
+        request.deadline = request.sentNanos + request.timeout;
+        try {
+            channel.write(request.datagram.duplicate());
+        } catch (PortUnreachableException e) {
+            // reported for an earlier datagram; treated like a loss
+        }
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+        try {
+            while (true) {
+                buffer.clear();
+                try {
+                    channel.read(buffer);
+                } catch (PortUnreachableException e) {
+                    // nothing is listening yet; the request is retransmitted
+                    continue;
+                }
+                buffer.flip();
+                if (buffer.remaining() < BinaryProtocol.RELIABLE_HEADER || buffer.get(0) != BinaryProtocol.RELIABLE_MAGIC) {
+                    continue;
+                }
+                Request request = pending.remove(buffer.getLong(1));
+                if (request == null) {
+                    // a late reply to a request that was already answered or given up on
+                    continue;
+                }
+                if (request.attempts == 1) {
+                    sampleRtt(System.nanoTime() - request.sentNanos);
+                }
+                window.release();
+                request.reply.complete(Arrays.copyOfRange(buffer.array(), BinaryProtocol.RELIABLE_HEADER, buffer.limit()));
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void retransmit() {
+        try {
+            while (!closed) {
+                Request request = timers.take();
+                if (request.reply.isDone() || pending.get(request.id) != request) {
+                    continue;
+                }
+                if (request.attempts >= maxAttempts) {
+                    if (pending.remove(request.id) != null) {
+                        window.release();
+                        request.reply.completeExceptionally(new SocketTimeoutException(
+                                "No reply to request " + request.id + " after " + request.attempts + " attempts"));
+                    }
+                    continue;
+                }
+                request.timeout = Math.min(request.timeout * 2, MAX_RTO_NANOS);
+                try {
+                    transmit(request);
+                } catch (IOException e) {
+                    if (closed) {
+                        return;
+                    }
+                    e.printStackTrace();
+                }
+                timers.add(request);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized long currentRto() {
+        return rto;
+    }
+
+    private synchronized void sampleRtt(long rtt) {
+        if (smoothedRtt == 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+        }
+        rto = Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, smoothedRtt + 4 * rttVariance));
+    }
+
+    private static final class Request implements Delayed {
+        final long id;
+        final ByteBuffer datagram;
+        final CompletableFuture<byte[]> reply = new CompletableFuture<>();
+        volatile long timeout;
+        volatile long sentNanos;
+        volatile long deadline;
+        volatile int attempts;
+
+        Request(long id, ByteBuffer datagram, long timeout) {
+            this.id = id;
+            this.datagram = datagram;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(deadline, ((Request) other).deadline);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps the local store a copy of a {@link ReplicationPrimary}'s store. A single thread applies
+ * snapshots and batches in offset order with {@link KeyValueStore#applyPut},
+ * {@link KeyValueStore#applyRemove} and {@link KeyValueStore#applyDeadline}, acknowledges them, and after a disconnect reconnects with
+ * backoff and resumes from the next offset, falling back to a snapshot if the primary no longer
+ * has it (for instance because it restarted).
+ *
+ * <p>Replication lag is reported by STAT as {@code replicationLagRecords}, the records the
+ * primary had logged but this follower had not applied when the last frame arrived, and
+ * {@code replicationLagMillis}, the age of the last applied record while the follower is behind.
+ * The millisecond figure compares the two hosts' clocks, and so do deadlines: a key with a TTL
+ * expires on the follower when the follower's clock reaches the primary's deadline.
+ */
+public final class ReplicationFollower {
+    private static final int STREAM_BUFFER = 64 * 1024;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final KeyValueStore store;
+    private final InetSocketAddress primary;
+    private final long heartbeatMillis;
+    private long logId;
+    private volatile long applied = -1;
+    private volatile long primaryOffset;
+    private volatile long lastAppendedMillis;
+    private volatile boolean connected;
+
+    public ReplicationFollower(KeyValueStore store, InetSocketAddress primary, Metrics metrics, long heartbeatMillis) {
+        this.store = store;
+        this.primary = primary;
+        this.heartbeatMillis = Math.max(1, heartbeatMillis);
+        metrics.gauge("replicationConnected", () -> connected ? 1 : 0);
+        metrics.gauge("replicationOffset", () -> Math.max(0, applied));
+        metrics.gauge("replicationLagRecords", () -> Math.max(0, primaryOffset - applied));
+        metrics.gauge("replicationLagMillis", this::lagMillis);
+    }
+
+    /** Options: {@code --replica-of=host:port}, {@code --replication-heartbeat} (must match the primary's). */
+    public static ReplicationFollower fromOptions(KeyValueStore store, Metrics metrics, ServerOptions options) {
+        String address = options.getString("replica-of", "");
+        int separator = address.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Expected --replica-of=host:port, got: " + address);
+        }
+        return new ReplicationFollower(store, new InetSocketAddress(address.substring(0, separator),
+                Integer.parseInt(address.substring(separator + 1))), metrics, options.getLong("replication-heartbeat", 1000));
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::run, "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private long lagMillis() {
+        long millis = lastAppendedMillis;
+        return applied >= primaryOffset || millis == 0 ? 0 : Math.max(0, System.currentTimeMillis() - millis);
+    }
+
+    private void run() {
+        long backoff = 100;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(primary, (int) Math.min(Integer.MAX_VALUE, MAX_BACKOFF_MILLIS));
+                // Heartbeats arrive every interval, so a longer silence means the primary is gone.
+                socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, 3 * heartbeatMillis));
+                socket.setTcpNoDelay(true);
+                connected = true;
+                Log.info(" Replicating from primary ", primary);
+                backoff = 100;
+                follow(new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER)),
+                        new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER)));
+            } catch (IOException e) {
+                if (connected) {
+                    Log.warn(" Lost the replication primary ", primary, ": ", e);
+                }
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+        }
+    }
+
+    private void follow(DataInputStream in, DataOutputStream out) throws IOException {
+        out.writeLong(logId);
+        out.writeLong(applied);
+        out.flush();
+        while (true) {
+            byte type = in.readByte();
+            if (type == ReplicationPrimary.SNAPSHOT) {
+                readSnapshot(in);
+            } else if (type == ReplicationPrimary.BATCH) {
+                readBatch(in);
+            } else {
+                throw new IOException("Unknown replication frame type " + type);
+            }
+            out.writeLong(applied);
+            if (in.available() == 0) {
+                out.flush();
+            }
+        }
+    }
+
+    /** Replaces the store's contents while still serving reads: stale keys are removed last. */
+    private void readSnapshot(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        long offset = in.readLong();
+        int count = in.readInt();
+        Set<String> stale = new HashSet<>(store.keys());
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            store.applyPut(key, in.readUTF());
+            long deadlineMillis = in.readLong();
+            if (deadlineMillis != 0) {
+                store.applyDeadline(key, deadlineMillis);
+            }
+            stale.remove(key);
+        }
+        for (String key : stale) {
+            store.applyRemove(key);
+        }
+        logId = id;
+        applied = offset;
+        primaryOffset = offset;
+        Log.info(" Loaded a snapshot of ", count, " keys from the primary at offset ", offset);
+    }
+
+    private void readBatch(DataInputStream in) throws IOException {
+        long first = in.readLong();
+        long next = in.readLong();
+        long appendedMillis = in.readLong();
+        int count = in.readInt();
+        if (first != applied) {
+            throw new IOException("Replication batch at offset " + first + " does not follow offset " + applied);
+        }
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            String key = in.readUTF();
+            if (type == ReplicationLog.TYPE_PUT) {
+                store.applyPut(key, in.readUTF());
+            } else if (type == ReplicationLog.TYPE_EXPIRE) {
+                store.applyDeadline(key, in.readLong());
+            } else {
+                store.applyRemove(key);
+            }
+        }
+        applied = first + count;
+        primaryOffset = next;
+        if (count > 0) {
+            lastAppendedMillis = appendedMillis;
+        }
+    }
+}
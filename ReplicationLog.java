@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory log of the primary's mutations for {@link ReplicationPrimary}. Every PUT, DELETE and
+ * EXPIRE (a deadline given to a key) gets the next offset, so followers that apply records in offset order end up with the
+ * primary's state and can resume from the offset after the last record they applied.
+ *
+ * <p>The log keeps the most recent {@code --replication-log-entries} records and at most
+ * {@code --replication-log-bytes} of keys and values; a follower that needs an older offset is
+ * sent a full copy of the store instead. Offsets are only meaningful together with {@link #id()},
+ * which is new every time the primary starts.
+ */
+public final class ReplicationLog implements MutationListener {
+    public static final int DEFAULT_ENTRIES = 1 << 20;
+    public static final long DEFAULT_BYTES = 64L << 20;
+
+    static final byte TYPE_PUT = 1;
+    static final byte TYPE_DELETE = 2;
+    static final byte TYPE_EXPIRE = 3;
+
+    static final class Record {
+        final byte type;
+        final String key;
+        final String value;
+        final long deadlineMillis;
+        final long appendedMillis;
+
+        Record(byte type, String key, String value, long deadlineMillis, long appendedMillis) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+            this.deadlineMillis = deadlineMillis;
+            this.appendedMillis = appendedMillis;
+        }
+
+        long size() {
+            return 48 + 2L * (key.length() + (value == null ? 0 : value.length()));
+        }
+    }
+
+    private final long id = ThreadLocalRandom.current().nextLong();
+    private final Record[] records;
+    private final long maxBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private long first;
+    private long next;
+    private long bytes;
+
+    public ReplicationLog(int maxEntries, long maxBytes) {
+        this.records = new Record[Math.max(1, maxEntries)];
+        this.maxBytes = maxBytes;
+    }
+
+    public static ReplicationLog fromOptions(ServerOptions options) {
+        return new ReplicationLog(options.getInt("replication-log-entries", DEFAULT_ENTRIES),
+                options.getLong("replication-log-bytes", DEFAULT_BYTES));
+    }
+
+    @Override
+    public void onPut(String key, String value) {
+        append(new Record(TYPE_PUT, key, value, 0, System.currentTimeMillis()));
+    }
+
+    @Override
+    public void onRemove(String key) {
+        append(new Record(TYPE_DELETE, key, null, 0, System.currentTimeMillis()));
+    }
+
+    @Override
+    public void onDeadline(String key, long deadlineMillis) {
+        append(new Record(TYPE_EXPIRE, key, null, deadlineMillis, System.currentTimeMillis()));
+    }
+
+    private void append(Record record) {
+        lock.lock();
+        try {
+            if (next - first == records.length) {
+                trimFirst();
+            }
+            records[index(next++)] = record;
+            bytes += record.size();
+            while (bytes > maxBytes && next - first > 1) {
+                trimFirst();
+            }
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void trimFirst() {
+        int index = index(first++);
+        bytes -= records[index].size();
+        records[index] = null;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    /** @return the offset the next mutation will get */
+    public long nextOffset() {
+        lock.lock();
+        try {
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return whether a follower can resume at {@code offset} from this log */
+    public boolean contains(long offset) {
+        lock.lock();
+        try {
+            return offset >= first && offset <= next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to {@code waitMillis} for records at or after {@code offset}.
+     *
+     * @return up to {@code max} records starting at {@code offset}, empty if none were appended in
+     *         time, or {@code null} if {@code offset} is no longer (or not yet) in the log
+     */
+    List<Record> read(long offset, int max, long waitMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        lock.lock();
+        try {
+            while (offset == next) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return new ArrayList<>();
+                }
+                appended.awaitNanos(remaining);
+            }
+            if (offset < first || offset > next) {
+                return null;
+            }
+            int count = (int) Math.min(max, next - offset);
+            List<Record> batch = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                batch.add(records[index(offset + i)]);
+            }
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int index(long offset) {
+        return (int) (offset % records.length);
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streams the {@link ReplicationLog} to followers ({@link ReplicationFollower}) connected to
+ * {@code --replication-port}. Replication is asynchronous: clients get their reply as soon as the
+ * primary has applied a write, and followers catch up in batches of up to
+ * {@code --replication-batch} records.
+ *
+ * <p>A follower opens with {@code [u64 log ID][u64 next offset]}. If the primary's log still
+ * holds that offset it resumes there; otherwise it first sends a snapshot of the whole store.
+ * Frames to the follower are
+ * <ul>
+ * <li>{@code [u8 SNAPSHOT][u64 log ID][u64 next offset][u32 count]} followed by count
+ * {@code [key][value][u64 deadline]} entries, which replace the follower's contents;</li>
+ * <li>{@code [u8 BATCH][u64 first offset][u64 primary's next offset][u64 append time of the last
+ * record][u32 count]} followed by count {@code [u8 type][key]} records, with {@code [value]} for a
+ * PUT and {@code [u64 deadline]} for an EXPIRE. An empty batch is sent every
+ * {@code --replication-heartbeat} milliseconds while there are no writes.</li>
+ * </ul>
+ * Deadlines are in epoch milliseconds, 0 for a key without a TTL.
+ * Strings are written with {@link DataOutputStream#writeUTF}. The follower acknowledges each frame
+ * with the {@code u64} offset after the last record it has applied, which the primary reports as
+ * replication lag.
+ */
+public final class ReplicationPrimary {
+    static final byte SNAPSHOT = 1;
+    static final byte BATCH = 2;
+    private static final int STREAM_BUFFER = 64 * 1024;
+
+    private final KeyValueStore store;
+    private final ReplicationLog log;
+    private final int batchSize;
+    private final long heartbeatMillis;
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+
+    public ReplicationPrimary(KeyValueStore store, ReplicationLog log, Metrics metrics, int batchSize, long heartbeatMillis) {
+        this.store = store;
+        this.log = log;
+        this.batchSize = Math.max(1, batchSize);
+        this.heartbeatMillis = Math.max(1, heartbeatMillis);
+        metrics.gauge("replicationFollowers", followers::size);
+        metrics.gauge("replicationOffset", log::nextOffset);
+        metrics.gauge("replicationLagRecords", this::maxLag);
+    }
+
+    /**
+     * Options: {@code --replication-log-entries}, {@code --replication-log-bytes},
+     * {@code --replication-batch}, {@code --replication-heartbeat}. Registers the log with the store.
+     */
+    public static ReplicationPrimary fromOptions(KeyValueStore store, Metrics metrics, ServerOptions options) {
+        ReplicationLog log = ReplicationLog.fromOptions(options);
+        store.addMutationListener(log);
+        return new ReplicationPrimary(store, log, metrics, options.getInt("replication-batch", 512),
+                options.getLong("replication-heartbeat", 1000));
+    }
+
+    /** Accepts followers on {@code port} in a background thread. */
+    public void start(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        Log.info(" Replication primary listening on port ", serverSocket.getLocalPort());
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread sender = new Thread(() -> serve(socket), "replication-sender");
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException e) {
+                    Log.error(" Replication acceptor failed: ", e);
+                    return;
+                }
+            }
+        }, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private long maxLag() {
+        long next = log.nextOffset();
+        long lag = 0;
+        for (Follower follower : followers) {
+            lag = Math.max(lag, next - follower.acked);
+        }
+        return lag;
+    }
+
+    private void serve(Socket socket) {
+        Follower follower = new Follower(socket.getRemoteSocketAddress());
+        try (Socket connection = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), STREAM_BUFFER));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), STREAM_BUFFER))) {
+            connection.setTcpNoDelay(true);
+            long logId = in.readLong();
+            long offset = in.readLong();
+            if (logId == log.id() && log.contains(offset)) {
+                Log.info(" Follower ", follower.address, " resumed at offset ", offset);
+            } else {
+                offset = sendSnapshot(out, follower);
+            }
+            follower.acked = offset;
+            followers.add(follower);
+            Thread acknowledgments = new Thread(() -> readAcknowledgments(in, connection, follower), "replication-acks");
+            acknowledgments.setDaemon(true);
+            acknowledgments.start();
+            while (true) {
+                List<ReplicationLog.Record> batch = log.read(offset, batchSize, heartbeatMillis);
+                if (batch == null) {
+                    Log.warn(" Follower ", follower.address, " fell behind the replication log at offset ", offset);
+                    offset = sendSnapshot(out, follower);
+                    continue;
+                }
+                writeBatch(out, offset, batch);
+                offset += batch.size();
+            }
+        } catch (IOException e) {
+            Log.info(" Follower ", follower.address, " disconnected: ", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.remove(follower);
+        }
+    }
+
+    /**
+     * Sends every entry of the store. The offset is taken before the copy, so mutations that race
+     * with it are sent again afterwards; replaying them in order converges on the primary's state.
+     *
+     * @return the offset to continue streaming from
+     */
+    private long sendSnapshot(DataOutputStream out, Follower follower) throws IOException {
+        long offset = log.nextOffset();
+        Map<String, Long> deadlines = new HashMap<>();
+        store.forEachDeadline(deadlines::put);
+        List<String> entries = new ArrayList<>();
+        store.forEach((key, value) -> {
+            entries.add(key);
+            entries.add(value);
+        });
+        out.writeByte(SNAPSHOT);
+        out.writeLong(log.id());
+        out.writeLong(offset);
+        out.writeInt(entries.size() / 2);
+        for (int i = 0; i < entries.size(); i += 2) {
+            out.writeUTF(entries.get(i));
+            out.writeUTF(entries.get(i + 1));
+            out.writeLong(deadlines.getOrDefault(entries.get(i), 0L));
+        }
+        out.flush();
+        Log.info(" Sent a snapshot of ", entries.size() / 2, " keys to follower ", follower.address, " at offset ", offset);
+        return offset;
+    }
+
+    private void writeBatch(DataOutputStream out, long offset, List<ReplicationLog.Record> batch) throws IOException {
+        out.writeByte(BATCH);
+        out.writeLong(offset);
+        out.writeLong(log.nextOffset());
+        out.writeLong(batch.isEmpty() ? 0 : batch.get(batch.size() - 1).appendedMillis);
+        out.writeInt(batch.size());
+        for (ReplicationLog.Record record : batch) {
+            out.writeByte(record.type);
+            out.writeUTF(record.key);
+            if (record.type == ReplicationLog.TYPE_PUT) {
+                out.writeUTF(record.value);
+            } else if (record.type == ReplicationLog.TYPE_EXPIRE) {
+                out.writeLong(record.deadlineMillis);
+            }
+        }
+        out.flush();
+    }
+
+    /** Records acknowledged offsets; closing the socket on failure also stops the sender. */
+    private static void readAcknowledgments(DataInputStream in, Socket connection, Follower follower) {
+        try {
+            while (true) {
+                follower.acked = in.readLong();
+            }
+        } catch (IOException e) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+                // already closing
+            }
+        }
+    }
+
+    private static final class Follower {
+        final SocketAddress address;
+        volatile long acked;
+
+        Follower(SocketAddress address) {
+            this.address = address;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recent UDP replies keyed by (client address, request ID), so a retransmitted request is answered
+ * from the cache instead of being executed again. A request is marked in progress when it is first
+ * seen; copies that arrive before the reply is recorded are dropped and the client's next
+ * retransmission finds the reply. Bounded by entry count and by reply bytes, oldest first.
+ */
+public final class ReplyCache {
+    public static final int DEFAULT_ENTRIES = 65_536;
+    public static final long DEFAULT_BYTES = 64L << 20;
+
+    /** Returned by {@link #begin} for a request that is still being executed. */
+    public static final byte[] IN_PROGRESS = new byte[0];
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, byte[]> replies = new LinkedHashMap<>();
+    private long bytes;
+
+    public ReplyCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    public static ReplyCache fromOptions(ServerOptions options) {
+        return new ReplyCache(options.getInt("udp-dedup-entries", DEFAULT_ENTRIES), options.getLong("udp-dedup-bytes", DEFAULT_BYTES));
+    }
+
+    /**
+     * @return {@code null} if the request is new and now in progress, {@link #IN_PROGRESS} if
+     *         another copy is being executed, otherwise the recorded reply
+     */
+    public synchronized byte[] begin(SocketAddress client, long requestId) {
+        Key key = new Key(client, requestId);
+        byte[] reply = replies.get(key);
+        if (reply == null) {
+            replies.put(key, IN_PROGRESS);
+            evict();
+        }
+        return reply;
+    }
+
+    /** Records the reply from {@code reply}'s position to its limit, leaving the buffer unchanged. */
+    public synchronized void complete(SocketAddress client, long requestId, ByteBuffer reply) {
+        Key key = new Key(client, requestId);
+        if (replies.get(key) != IN_PROGRESS) {
+            return;
+        }
+        byte[] copy = new byte[reply.remaining()];
+        reply.get(reply.position(), copy);
+        replies.put(key, copy);
+        bytes += copy.length;
+        evict();
+    }
+
+    /** Forgets a request that produced no reply, so a retransmission is executed again. */
+    public synchronized void abandon(SocketAddress client, long requestId) {
+        Key key = new Key(client, requestId);
+        if (replies.get(key) == IN_PROGRESS) {
+            replies.remove(key);
+        }
+    }
+
+    public synchronized int size() {
+        return replies.size();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, byte[]>> oldest = replies.entrySet().iterator();
+        while ((replies.size() > maxEntries || bytes > maxBytes) && oldest.hasNext()) {
+            bytes -= oldest.next().getValue().length;
+            oldest.remove();
+        }
+    }
+
+    private static final class Key {
+        final SocketAddress client;
+        final long requestId;
+
+        Key(SocketAddress client, long requestId) {
+            this.client = client;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return requestId == key.requestId && client.equals(key.client);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * client.hashCode() + Long.hashCode(requestId);
+        }
+    }
+}
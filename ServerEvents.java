@@ -0,0 +1,257 @@
+import java.util.concurrent.ThreadLocalRandom;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events for the servers' hot paths, recorded with
+ * {@code -XX:StartFlightRecording} or {@code jcmd <pid> JFR.start} and summarized by
+ * {@link JfrReport}. Every request produces a {@link RequestParse}, a {@link RequestExecute} with
+ * the {@link StoreOperation}s it made nested inside it, and a {@link ResponseWrite}, all on the
+ * thread that served it; {@link SocketWrite} covers the socket writes that flush replies, which
+ * for pipelined requests happen once per batch.
+ *
+ * <p>While no recording is running an event costs a check of a flag the JIT folds away, so they
+ * are left in. Fields are only filled in for events that will be committed. With
+ * {@code --trace-sample=N} a request's events are recorded for one request in N, chosen at random
+ * on the thread that serves it, so a recording of a busy server stays small.
+ */
+public final class ServerEvents {
+    private static final String CATEGORY = "Key-Value Store";
+
+    private static volatile int sampleEvery = 1;
+    private static final ThreadLocal<boolean[]> SAMPLED = ThreadLocal.withInitial(() -> new boolean[] {true});
+
+    private ServerEvents() {
+    }
+
+    /** Options: {@code --trace-sample} (default 1, every request). */
+    public static synchronized void configure(ServerOptions options) {
+        sampleEvery = Math.max(1, options.getInt("trace-sample", 1));
+    }
+
+    /** Decides whether the events of the request this thread starts now are recorded. */
+    static void startRequest() {
+        int every = sampleEvery;
+        if (every > 1) {
+            SAMPLED.get()[0] = ThreadLocalRandom.current().nextInt(every) == 0;
+        }
+    }
+
+    private static boolean sampled() {
+        return sampleEvery == 1 || SAMPLED.get()[0];
+    }
+
+    /** @return the command of a text request, from its first word */
+    static Command textCommand(String request) {
+        int space = request.indexOf(' ');
+        return Command.fromName(space < 0 ? request : request.substring(0, space));
+    }
+
+    /** @return the length of the second word of a text request, 0 if there is none */
+    static int textKeyLength(String request) {
+        int start = request.indexOf(' ') + 1;
+        if (start == 0) {
+            return 0;
+        }
+        int end = request.indexOf(' ', start);
+        return (end < 0 ? request.length() : end) - start;
+    }
+
+    static int keyLength(BinaryProtocol.Message request) {
+        return request.fields.length == 0 ? 0 : request.fields[0].length();
+    }
+
+    /** @return the bytes of {@code message} as a TCP frame */
+    static int frameLength(BinaryProtocol.Message message) {
+        int length = 5;
+        for (String field : message.fields) {
+            length += 2 + Utf8.encodedLength(field);
+        }
+        return length;
+    }
+
+    @Name("kv.ConnectionAccept")
+    @Label("Connection Accept")
+    @Category({CATEGORY, "Connections"})
+    @Description("Admission of an accepted TCP connection against --max-connections")
+    static final class ConnectionAccept extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+        @Label("Admitted")
+        boolean admitted;
+        @Label("Open Connections")
+        int openConnections;
+
+        void record(Object remoteAddress, boolean admitted, int openConnections) {
+            if (shouldCommit()) {
+                this.remoteAddress = String.valueOf(remoteAddress);
+                this.admitted = admitted;
+                this.openConnections = openConnections;
+                commit();
+            }
+        }
+    }
+
+    @Name("kv.Connection")
+    @Label("Connection")
+    @Category({CATEGORY, "Connections"})
+    @Description("A TCP connection from its session being opened to its close")
+    static final class Connection extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+        @Label("Binary")
+        boolean binary;
+        @Label("Tracking")
+        boolean tracking;
+
+        void record(TCPServer.Session session) {
+            if (shouldCommit()) {
+                remoteAddress = String.valueOf(session.clientAddress);
+                binary = session.binary;
+                tracking = session.tracking;
+                commit();
+            }
+        }
+    }
+
+    @Name("kv.RequestParse")
+    @Label("Request Parse")
+    @Category({CATEGORY, "Requests"})
+    @Description("Reading and decoding one request; on a blocking socket this includes waiting for its remaining bytes")
+    static final class RequestParse extends Event {
+        @Label("Transport")
+        String transport;
+        @Label("Command")
+        String command;
+        @Label("Key Length")
+        int keyLength;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        void record(String transport, Command command, int keyLength, long bytes) {
+            if (shouldCommit() && sampled()) {
+                this.transport = transport;
+                this.command = command.name();
+                this.keyLength = keyLength;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+
+        void recordText(String transport, String request) {
+            if (shouldCommit() && sampled()) {
+                record(transport, textCommand(request), textKeyLength(request), 2 + ModifiedUtf8.encodedLength(request));
+            }
+        }
+
+        void recordBinary(String transport, BinaryProtocol.Message request) {
+            if (shouldCommit() && sampled()) {
+                record(transport, Command.fromOpcode(request.code), keyLength(request), frameLength(request));
+            }
+        }
+    }
+
+    @Name("kv.RequestExecute")
+    @Label("Request Execute")
+    @Category({CATEGORY, "Requests"})
+    @Description("Executing one request against the store and building its reply")
+    static final class RequestExecute extends Event {
+        @Label("Transport")
+        String transport;
+        @Label("Command")
+        String command;
+        @Label("Key Length")
+        int keyLength;
+
+        void record(String transport, Command command, int keyLength) {
+            if (shouldCommit() && sampled()) {
+                this.transport = transport;
+                this.command = command.name();
+                this.keyLength = keyLength;
+                commit();
+            }
+        }
+    }
+
+    @Name("kv.StoreOperation")
+    @Label("Store Operation")
+    @Category({CATEGORY, "Store"})
+    @Description("One call into the store, including waiting for its locks")
+    static final class StoreOperation extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Key Length")
+        int keyLength;
+        @Label("Keys")
+        int keys;
+
+        void record(String operation, int keyLength, int keys) {
+            if (shouldCommit() && sampled()) {
+                this.operation = operation;
+                this.keyLength = keyLength;
+                this.keys = keys;
+                commit();
+            }
+        }
+    }
+
+    @Name("kv.ResponseWrite")
+    @Label("Response Write")
+    @Category({CATEGORY, "Requests"})
+    @Description("Encoding one reply into the connection's output buffer, or sending it as a datagram")
+    static final class ResponseWrite extends Event {
+        @Label("Transport")
+        String transport;
+        @Label("Command")
+        String command;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        void record(String transport, Command command, long bytes) {
+            if (shouldCommit() && sampled()) {
+                this.transport = transport;
+                this.command = command.name();
+                this.bytes = bytes;
+                commit();
+            }
+        }
+
+        void recordText(String transport, String request, String response) {
+            if (shouldCommit() && sampled()) {
+                record(transport, textCommand(request), 2 + ModifiedUtf8.encodedLength(response));
+            }
+        }
+
+        void recordBinary(String transport, BinaryProtocol.Message request, BinaryProtocol.Message reply) {
+            if (shouldCommit() && sampled()) {
+                record(transport, Command.fromOpcode(request.code), frameLength(reply));
+            }
+        }
+    }
+
+    @Name("kv.SocketWrite")
+    @Label("Socket Write")
+    @Category({CATEGORY, "Requests"})
+    @Description("Writing buffered replies to a socket")
+    static final class SocketWrite extends Event {
+        @Label("Transport")
+        String transport;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        void record(String transport, long bytes) {
+            if (shouldCommit() && sampled()) {
+                this.transport = transport;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+}
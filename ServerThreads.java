@@ -0,0 +1,61 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Thread factories for the {@code --threads=platform|virtual} option. Virtual threads are looked
+ * up reflectively so the sources still compile and run on JDKs without them.
+ */
+public final class ServerThreads {
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+
+    private ServerThreads() {
+    }
+
+    public static String mode(ServerOptions options) {
+        String mode = options.getString("threads", PLATFORM);
+        if (!PLATFORM.equals(mode) && !VIRTUAL.equals(mode)) {
+            throw new IllegalArgumentException("Unknown thread mode: " + mode + " (expected platform or virtual)");
+        }
+        return mode;
+    }
+
+    public static Executor perTaskExecutor(String mode) {
+        if (VIRTUAL.equals(mode)) {
+            return newVirtualThreadPerTaskExecutor();
+        }
+        return task -> new Thread(task).start();
+    }
+
+    /** An unstarted daemon thread of the given mode, for long-lived helpers that must be unparked. */
+    public static Thread newThread(String mode, String name, Runnable task) {
+        if (VIRTUAL.equals(mode)) {
+            return newVirtualThread(name, task);
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static Thread newVirtualThread(String name, Runnable task) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class).invoke(builder, name);
+            return (Thread) builderType.getMethod("unstarted", Runnable.class).invoke(builder, task);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require JDK 21 or newer (running " + System.getProperty("java.version") + ")", e);
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require JDK 21 or newer (running " + System.getProperty("java.version") + ")", e);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Point-in-time copy of a store that lets recovery skip the log segments it covers.
+ *
+ * <p>Layout: a {@value #HEADER}-byte header {@code [u32 magic][u64 first segment to replay]
+ * [u32 count][u64 index offset][u32 expiring]}, then {@code count} entries {@code [u16 key length]
+ * [key][u16 value length][value][u64 deadline]} (UTF-8) sorted by the unsigned bytes of the key,
+ * then the index: one u64 file offset per entry in the same order, then one u64 entry offset per
+ * entry whose deadline is not 0. The deadline is in epoch milliseconds, 0 for a key without a TTL.
+ * The index lets {@link MappedSnapshot} look keys up by binary search without reading the file
+ * first, and the second index lets it find the deadlines without reading every entry.
+ *
+ * <p>Snapshots written before deadlines were kept ({@link #MAGIC_V1}) have a 24-byte header
+ * without {@code expiring}, entries without a deadline and no second index; they are still read.
+ *
+ * <p>The file is written next to its final name, forced and then renamed over it, so a crash
+ * leaves either the old snapshot or the new one, never a torn one.
+ */
+public final class SnapshotFile {
+    static final int MAGIC = 0x4B565332;
+    static final int MAGIC_V1 = 0x4B56534F;
+    static final int HEADER = 28;
+    static final int HEADER_V1 = 24;
+
+    /** Receives the entries of a snapshot; {@code deadlineMillis} is 0 for a key without a TTL. */
+    public interface EntryConsumer {
+        void accept(String key, String value, long deadlineMillis);
+    }
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Writes every entry of the store with its deadline from {@code deadlines}. The copy is fuzzy:
+     * writes that race with it may or may not be included, which is harmless because they are also
+     * in the log from {@code firstSegment} on and replaying them is idempotent.
+     */
+    public static void write(Path file, long firstSegment, KeyValueStore store, Map<String, Long> deadlines) throws IOException {
+        List<Entry> entries = new ArrayList<>(store.size());
+        store.forEach((key, value) -> entries.add(new Entry(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8),
+                deadlines.getOrDefault(key, 0L))));
+        entries.sort((a, b) -> Arrays.compareUnsigned(a.key, b.key));
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            long[] offsets = new long[entries.size()];
+            int expiring = 0;
+            long offset = HEADER;
+            for (int i = 0; i < offsets.length; i++) {
+                Entry entry = entries.get(i);
+                offsets[i] = offset;
+                out.writeShort(entry.key.length);
+                out.write(entry.key);
+                out.writeShort(entry.value.length);
+                out.write(entry.value);
+                out.writeLong(entry.deadlineMillis);
+                offset += 12 + entry.key.length + entry.value.length;
+                if (entry.deadlineMillis != 0) {
+                    expiring++;
+                }
+            }
+            for (long entryOffset : offsets) {
+                out.writeLong(entryOffset);
+            }
+            for (int i = 0; i < offsets.length; i++) {
+                if (entries.get(i).deadlineMillis != 0) {
+                    out.writeLong(offsets[i]);
+                }
+            }
+            out.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER).putInt(MAGIC).putLong(firstSegment).putInt(offsets.length).putLong(offset)
+                    .putInt(expiring).flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Feeds every entry of the snapshot to {@code action}, streaming the file front to back.
+     *
+     * @return the first log segment that has to be replayed on top of the snapshot
+     */
+    public static long read(Path file, EntryConsumer action) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_V1) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            long firstSegment = in.readLong();
+            int count = in.readInt();
+            in.readLong();
+            if (magic == MAGIC) {
+                in.readInt();
+            }
+            byte[] bytes = new byte[0xFFFF];
+            for (int i = 0; i < count; i++) {
+                int keyLength = in.readUnsignedShort();
+                in.readFully(bytes, 0, keyLength);
+                String key = new String(bytes, 0, keyLength, StandardCharsets.UTF_8);
+                int valueLength = in.readUnsignedShort();
+                in.readFully(bytes, 0, valueLength);
+                String value = new String(bytes, 0, valueLength, StandardCharsets.UTF_8);
+                action.accept(key, value, magic == MAGIC ? in.readLong() : 0);
+            }
+            return firstSegment;
+        }
+    }
+
+    private static final class Entry {
+        final byte[] key;
+        final byte[] value;
+        final long deadlineMillis;
+
+        Entry(byte[] key, byte[] value, long deadlineMillis) {
+            this.key = key;
+            this.value = value;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures how long a restarted server takes to answer its first GET from a persisted snapshot,
+ * with {@code --snapshot-load=eager} and {@code --snapshot-load=mapped}. Each (keys, mode) pair
+ * is recovered in a fresh JVM so the heap and page cache state of one run do not help the next;
+ * drop the page cache between runs for cold-disk numbers.
+ *
+ * <pre>java -Xmx3g SnapshotLoadBenchmark --keys=1000000,10000000 --modes=eager,mapped --dir=/tmp/snapshot-bench</pre>
+ *
+ * Output is CSV: time to the first GET, time until every key is in the heap store, and the heap in
+ * use at that point.
+ */
+public final class SnapshotLoadBenchmark {
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = new ServerOptions(args);
+        if (options.getBoolean("single")) {
+            runSingle(options);
+            return;
+        }
+        Path root = Paths.get(options.getString("dir", System.getProperty("java.io.tmpdir") + "/snapshot-bench"));
+        System.out.println("keys,mode,first_get_ms,fully_loaded_ms,heap_mb");
+        for (String keys : options.getString("keys", "1000000,10000000").split(",")) {
+            Path directory = root.resolve(keys);
+            prepare(directory, Integer.parseInt(keys));
+            for (String mode : options.getString("modes", "eager,mapped").split(",")) {
+                List<String> command = new ArrayList<>();
+                command.add(ProcessHandle.current().info().command().orElse("java"));
+                command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(SnapshotLoadBenchmark.class.getName());
+                command.add("--single");
+                command.add("--keys=" + keys);
+                command.add("--snapshot-load=" + mode);
+                command.add("--data-dir=" + directory);
+                Process process = new ProcessBuilder(command).inheritIO().start();
+                if (process.waitFor() != 0) {
+                    System.out.println(keys + "," + mode + ",failed,,");
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of {@code count} keys unless the directory already holds one.
+     */
+    private static void prepare(Path directory, int count) throws IOException {
+        Path snapshot = directory.resolve("snapshot.dat");
+        if (Files.exists(snapshot)) {
+            return;
+        }
+        Files.createDirectories(directory);
+        StripedKeyValueStore store = new StripedKeyValueStore(StripedKeyValueStore.defaultStripeCount());
+        for (int i = 0; i < count; i++) {
+            store.applyPut(key(i), "v" + (i % 1_000_000));
+        }
+        SnapshotFile.write(snapshot, 1, store, Collections.emptyMap());
+    }
+
+    private static String key(int i) {
+        return "k" + i;
+    }
+
+    private static void runSingle(ServerOptions options) throws Exception {
+        int count = options.getInt("keys", 1_000_000);
+        String mode = options.getString("snapshot-load", "mapped");
+        ServerOptions storeOptions = new ServerOptions(new String[] {
+            "--data-dir=" + options.getString("data-dir", ""), "--snapshot-load=" + mode,
+            "--snapshot-interval=0", "--fsync=never", "--log-level=off"});
+        Log.configure(storeOptions);
+
+        long start = System.nanoTime();
+        KeyValueStore store = KeyValueStores.create(storeOptions);
+        String wanted = key(ThreadLocalRandom.current().nextInt(count));
+        if (store.get(wanted) == null) {
+            throw new IllegalStateException("Key " + wanted + " missing after recovery");
+        }
+        long firstGet = System.nanoTime() - start;
+        store.size();
+        long fullyLoaded = System.nanoTime() - start;
+
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("%d,%s,%.1f,%.1f,%d%n", count, mode, firstGet / 1e6, fullyLoaded / 1e6,
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,141 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Compares store engines by memory per entry and by garbage collection while serving a read-heavy
+ * workload. Each engine runs in a fresh JVM with the same JVM options as this one.
+ *
+ * <pre>java -Xmx4g StoreMemoryBenchmark --engines=striped,offheap --keys=10000000 --seconds=30</pre>
+ *
+ * Memory per entry counts live heap after a full GC plus direct buffer memory. The workload is 90%
+ * GET and 10% DELETE followed by PUT of a random key, from one thread per CPU.
+ */
+public final class StoreMemoryBenchmark {
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = new ServerOptions(args);
+        if (options.getBoolean("single")) {
+            runSingle(options);
+            return;
+        }
+        System.out.println("engine,keys,bytes_per_entry,fill_ms,fill_gc_ms,ops_per_sec,gc_count,gc_ms,max_pause_ms");
+        for (String engine : options.getString("engines", "striped,offheap").split(",")) {
+            List<String> command = new ArrayList<>();
+            command.add(ProcessHandle.current().info().command().orElse("java"));
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(StoreMemoryBenchmark.class.getName());
+            command.add("--single");
+            command.add("--store=" + engine);
+            command.add("--keys=" + options.getInt("keys", 10_000_000));
+            command.add("--seconds=" + options.getInt("seconds", 30));
+            Process process = new ProcessBuilder(command).inheritIO().start();
+            if (process.waitFor() != 0) {
+                System.out.println(engine + ",failed,,,,,,,");
+            }
+        }
+    }
+
+    private static void runSingle(ServerOptions options) throws Exception {
+        int keys = options.getInt("keys", 10_000_000);
+        int seconds = options.getInt("seconds", 30);
+        GcRecorder gc = new GcRecorder();
+
+        long baseline = usedMemory();
+        long fillStart = System.nanoTime();
+        KeyValueStore store = KeyValueStores.create(options);
+        for (int i = 0; i < keys; i++) {
+            store.putIfAbsent("k" + i, "v" + (i % 1_000_000));
+        }
+        long fillMillis = (System.nanoTime() - fillStart) / 1_000_000;
+        long fillGcMillis = gc.totalMillis.get();
+        double bytesPerEntry = (double) (usedMemory() - baseline) / keys;
+
+        gc.reset();
+        int threads = Runtime.getRuntime().availableProcessors();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        long[] operations = new long[threads];
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                    String key = "k" + random.nextInt(keys);
+                    if (random.nextInt(10) == 0) {
+                        store.remove(key);
+                        store.putIfAbsent(key, "v" + random.nextInt(1_000_000));
+                    } else {
+                        store.get(key);
+                    }
+                    count++;
+                }
+                operations[index] = count;
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers.get(t).join();
+            total += operations[t];
+        }
+        System.out.printf("%s,%d,%.1f,%d,%d,%.0f,%d,%d,%d%n", options.getString("store", "striped"), keys, bytesPerEntry, fillMillis,
+                fillGcMillis, (double) total / seconds, gc.count.get(), gc.totalMillis.get(), gc.maxPauseMillis.get());
+        System.exit(0);
+    }
+
+    /**
+     * Live heap after a full collection plus memory held by direct buffers.
+     */
+    private static long usedMemory() {
+        System.gc();
+        System.gc();
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                used += pool.getMemoryUsed();
+            }
+        }
+        return used;
+    }
+
+    private static final class GcRecorder {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalMillis = new AtomicLong();
+        final AtomicLong maxPauseMillis = new AtomicLong();
+
+        GcRecorder() {
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                    if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                        return;
+                    }
+                    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    if (info.getGcCause().equals("System.gc()")) {
+                        return;
+                    }
+                    long duration = info.getGcInfo().getDuration();
+                    count.incrementAndGet();
+                    totalMillis.addAndGet(duration);
+                    maxPauseMillis.accumulateAndGet(duration, Math::max);
+                }, null, null);
+            }
+        }
+
+        void reset() {
+            count.set(0);
+            totalMillis.set(0);
+            maxPauseMillis.set(0);
+        }
+    }
+}
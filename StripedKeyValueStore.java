@@ -0,0 +1,338 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Hash-partitioned store: every key maps to one of a power-of-two number of stripes, each a
+ * plain {@link HashMap} guarded by its own {@link StampedLock}. Operations on different stripes
+ * never contend, and reads on the same stripe share the lock.
+ */
+public final class StripedKeyValueStore implements KeyValueStore {
+    private final Stripe[] stripes;
+    private final int mask;
+    private volatile MutationListener[] listeners = new MutationListener[0];
+
+    public StripedKeyValueStore(int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1) << 1);
+        stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+        mask = size - 1;
+    }
+
+    public static int defaultStripeCount() {
+        return Runtime.getRuntime().availableProcessors() * 16;
+    }
+
+    @Override
+    public String get(String key) {
+        Stripe stripe = stripeFor(key);
+        long stamp = stripe.lock.readLock();
+        try {
+            return stripe.map.get(key);
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        Stripe stripe = stripeFor(key);
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (stripe.map.putIfAbsent(key, value) != null) {
+                return false;
+            }
+            notifyPut(key, value);
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean setDeadline(String key, long deadlineMillis) {
+        Stripe stripe = stripeFor(key);
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (!stripe.map.containsKey(key)) {
+                return false;
+            }
+            for (MutationListener listener : listeners) {
+                listener.onDeadline(key, deadlineMillis);
+            }
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(String key) {
+        Stripe stripe = stripeFor(key);
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (stripe.map.remove(key) == null) {
+                return false;
+            }
+            notifyRemove(key);
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean removeIf(String key, BooleanSupplier condition) {
+        Stripe stripe = stripeFor(key);
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (!stripe.map.containsKey(key) || !condition.getAsBoolean()) {
+                return false;
+            }
+            stripe.map.remove(key);
+            notifyRemove(key);
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public String[] getAll(String[] keys) {
+        int[] indexes = stripeIndexes(keys);
+        long[] stamps = lockAll(indexes, false);
+        try {
+            String[] values = new String[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                values[i] = stripes[stripeIndex(keys[i])].map.get(keys[i]);
+            }
+            return values;
+        } finally {
+            unlockAll(indexes, stamps, false);
+        }
+    }
+
+    @Override
+    public boolean[] putAllIfAbsent(String[] keys, String[] values) {
+        int[] indexes = stripeIndexes(keys);
+        long[] stamps = lockAll(indexes, true);
+        try {
+            boolean[] stored = new boolean[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                stored[i] = stripes[stripeIndex(keys[i])].map.putIfAbsent(keys[i], values[i]) == null;
+                if (stored[i]) {
+                    notifyPut(keys[i], values[i]);
+                }
+            }
+            return stored;
+        } finally {
+            unlockAll(indexes, stamps, true);
+        }
+    }
+
+    @Override
+    public boolean[] removeAll(String[] keys) {
+        int[] indexes = stripeIndexes(keys);
+        long[] stamps = lockAll(indexes, true);
+        try {
+            boolean[] removed = new boolean[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                removed[i] = stripes[stripeIndex(keys[i])].map.remove(keys[i]) != null;
+                if (removed[i]) {
+                    notifyRemove(keys[i]);
+                }
+            }
+            return removed;
+        } finally {
+            unlockAll(indexes, stamps, true);
+        }
+    }
+
+    @Override
+    public List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                keys.addAll(stripe.map.keySet());
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                size += stripe.map.size();
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                stripe.map.forEach(action);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    @Override
+    public KeyScan.Page scan(long cursor, int count) {
+        List<String> keys = new ArrayList<>();
+        long start = KeyScan.start(cursor);
+        for (int index = KeyScan.stripe(cursor); index < stripes.length; index++, start = 0) {
+            Stripe stripe = stripes[index];
+            long end;
+            long stamp = stripe.lock.readLock();
+            try {
+                end = KeyScan.end(start, count - keys.size(), stripe.map.size());
+                for (String key : stripe.map.keySet()) {
+                    long position = KeyScan.position(key.hashCode());
+                    if (position >= start && position < end) {
+                        keys.add(key);
+                    }
+                }
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+            if (!KeyScan.done(end) || keys.size() >= count) {
+                return new KeyScan.Page(KeyScan.next(index, end, stripes.length), keys);
+            }
+        }
+        return new KeyScan.Page(0, keys);
+    }
+
+    @Override
+    public synchronized void addMutationListener(MutationListener listener) {
+        MutationListener[] grown = Arrays.copyOf(listeners, listeners.length + 1);
+        grown[listeners.length] = listener;
+        listeners = grown;
+    }
+
+    @Override
+    public void applyPut(String key, String value) {
+        Stripe stripe = stripeFor(key);
+        long stamp = stripe.lock.writeLock();
+        try {
+            stripe.map.put(key, value);
+            for (MutationListener listener : listeners) {
+                listener.onApplyPut(key, value);
+            }
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void applyRemove(String key) {
+        Stripe stripe = stripeFor(key);
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (stripe.map.remove(key) != null) {
+                for (MutationListener listener : listeners) {
+                    listener.onApplyRemove(key);
+                }
+            }
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void applyDeadline(String key, long deadlineMillis) {
+        Stripe stripe = stripeFor(key);
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (stripe.map.containsKey(key)) {
+                for (MutationListener listener : listeners) {
+                    listener.onApplyDeadline(key, deadlineMillis);
+                }
+            }
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    private void notifyPut(String key, String value) {
+        for (MutationListener listener : listeners) {
+            listener.onPut(key, value);
+        }
+    }
+
+    private void notifyRemove(String key) {
+        for (MutationListener listener : listeners) {
+            listener.onRemove(key);
+        }
+    }
+
+    private Stripe stripeFor(String key) {
+        return stripes[stripeIndex(key)];
+    }
+
+    private int stripeIndex(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Distinct stripes touched by a batch in ascending order, so that concurrent batches always
+     * acquire overlapping stripes in the same order and cannot deadlock.
+     */
+    private int[] stripeIndexes(String[] keys) {
+        int[] indexes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            indexes[i] = stripeIndex(keys[i]);
+        }
+        Arrays.sort(indexes);
+        int distinct = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            if (i == 0 || indexes[i] != indexes[i - 1]) {
+                indexes[distinct++] = indexes[i];
+            }
+        }
+        return Arrays.copyOf(indexes, distinct);
+    }
+
+    private long[] lockAll(int[] indexes, boolean exclusive) {
+        long[] stamps = new long[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            StampedLock lock = stripes[indexes[i]].lock;
+            stamps[i] = exclusive ? lock.writeLock() : lock.readLock();
+        }
+        return stamps;
+    }
+
+    private void unlockAll(int[] indexes, long[] stamps, boolean exclusive) {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            StampedLock lock = stripes[indexes[i]].lock;
+            if (exclusive) {
+                lock.unlockWrite(stamps[i]);
+            } else {
+                lock.unlockRead(stamps[i]);
+            }
+        }
+    }
+
+    private static final class Stripe {
+        final StampedLock lock = new StampedLock();
+        final HashMap<String, String> map = new HashMap<>();
+    }
+}
@@ -1,11 +1,10 @@
 import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.Socket;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public final class TCPClient {
     private static final String QUIT = "QUIT";
@@ -14,42 +13,83 @@ public final class TCPClient {
     private static final String DELETE = "DELETE";
     private static final String GET = "GET";
     private static final String STAT = "STATISTICS";
-    private DataOutputStream dataOut;
-    private DataInputStream dataIn;
-    private Socket socket;
+    private static final String MGET = "MGET";
+    private static final String MPUT = "MPUT";
+    private static final String MDELETE = "MDELETE";
+    private static final String SCAN = "SCAN";
+    private static final String EXPIRE = "EXPIRE";
+    private KVClient client;
     private BufferedReader consoleInput;
+    private final List<String> servers;
+    private boolean binary;
 
     public static void main(String[] args) {
-        TCPClient client = new TCPClient();
+        ServerOptions options = new ServerOptions(args);
+        if (options.getBoolean("load")) {
+            LoadGenerator.run(options, "tcp");
+            return;
+        }
+        TCPClient client = options.has("servers")
+                ? new TCPClient(Arrays.asList(options.getString("servers", "").split(",")))
+                : new TCPClient(options.getString("host", "localhost"), options.getInt("port", 8080));
+        // Routing keys to shards needs the binary protocol.
+        client.binary = client.servers.size() > 1 || "binary".equals(options.getString("protocol", "text"));
+        if (options.getBoolean("pipeline")) {
+            client.runPipelined();
+            return;
+        }
         client.start();
     }
 
-    public TCPClient() {
+    public TCPClient(String host, int port) {
+        this(Collections.singletonList(host + ":" + port));
+    }
+
+    /** A client that shards keys over the given {@code host:port} servers. */
+    public TCPClient(List<String> servers) {
+        this.servers = servers;
         consoleInput = new BufferedReader(new InputStreamReader(System.in));
     }
     private void start() {
         try {
-            socket = new Socket("localhost", 8080);
-            dataOut = new DataOutputStream(socket.getOutputStream());
-            dataIn = new DataInputStream(socket.getInputStream());
-
+            client = connect(binary);
             System.out.println("\u001B[32m" + getCurrentTimeStamp() + " Connection Successful!" + "\u001B[0m");
-
             handleRequests();
-
         } catch (IOException e){
             System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Error. Connection Refused from Server. Make sure port number and IP are correct and the Server is running!" + "\u001B[0m");
         }
     }
 
+    /** Opens the library client; falls back to text if the server does not speak the binary protocol. */
+    private KVClient connect(boolean preferBinary) throws IOException {
+        KVClient connected = new KVClient(servers, 1, preferBinary, 5000, 0);
+        try {
+            connected.connect();
+        } catch (IOException e) {
+            connected.close();
+            if (!preferBinary || servers.size() > 1 || !e.getMessage().contains("binary protocol")) {
+                throw e;
+            }
+            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Server does not support the binary protocol, using text" + "\u001B[0m");
+            binary = false;
+            return connect(false);
+        }
+        return connected;
+    }
+
     private void handleRequests() {
         try {
             while (true) {
                 System.out.println("Please Input Command in either of the following forms:");
-                System.out.println("    PUT <key> <value>");
+                System.out.println("    PUT <key> <value> [EX <seconds> | PX <milliseconds>]");
+                System.out.println("    EXPIRE <key> <seconds>");
                 System.out.println("    GET <key>");
                 System.out.println("    KEYS");
                 System.out.println("    DELETE <key>");
+                System.out.println("    MGET <key> [<key> ...]");
+                System.out.println("    MPUT <key> <value> [<key> <value> ...]");
+                System.out.println("    MDELETE <key> [<key> ...]");
+                System.out.println("    SCAN [MATCH <pattern>] [COUNT <count>]");
                 System.out.println("    STATISTICS");
                 System.out.println("    QUIT");
                 System.out.print("Enter Command: ");
@@ -63,21 +103,25 @@ public final class TCPClient {
 
                 switch (action) {
                     case QUIT:
-                        sendData(QUIT);
                         handleQuitRequest();
                         cleanUp();
                         return;
                     case PUT:
-                        if (parameters.length != 2) {
-                            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid input. Format: PUT <key> <value>"+ "\u001B[0m");
+                        if (parameters.length != 2 && (parameters.length != 4 || BinaryProtocol.parseTextTtl(parameters[2], parameters[3]) < 0)) {
+                            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid input. Format: PUT <key> <value> [EX <seconds> | PX <milliseconds>]"+ "\u001B[0m");
                             continue;
                         }
-                        handlePutRequest(parameters[0], parameters[1]);
+                        handlePutRequest(parameters);
+                        break;
+                    case EXPIRE:
+                        if (parameters.length != 2 || BinaryProtocol.parseTextTtl("EX", parameters[1]) < 0) {
+                            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid input. Format: EXPIRE <key> <seconds>"+ "\u001B[0m");
+                            continue;
+                        }
+                        handleExpireRequest(parameters[0], parameters[1]);
                         break;
                     case KEYS:
                         handleKeysRequest();
-                        String keysResponse = dataIn.readUTF();
-                        System.out.println(keysResponse);
                         break;
                     case DELETE:
                         if (parameters.length != 1) {
@@ -92,13 +136,36 @@ public final class TCPClient {
                             continue;
                         }
                         handleGetRequest(parameters[0]);
-                        String getResponse = dataIn.readUTF();
-                        System.out.println(getResponse);
                         break;
                     case STAT:
-                        sendData("STAT");
                         handleStatRequest();
                         break;
+                    case MGET:
+                    case MDELETE:
+                        if (parameters.length == 0) {
+                            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid input. Format: " + action + " <key> [<key> ...]"+ "\u001B[0m");
+                            continue;
+                        }
+                        handleBatchRequest(action, parameters, parameters);
+                        break;
+                    case MPUT:
+                        if (parameters.length == 0 || parameters.length % 2 != 0) {
+                            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid input. Format: MPUT <key> <value> [<key> <value> ...]"+ "\u001B[0m");
+                            continue;
+                        }
+                        String[] putKeys = new String[parameters.length / 2];
+                        for (int i = 0; i < putKeys.length; i++) {
+                            putKeys[i] = parameters[2 * i];
+                        }
+                        handleBatchRequest(action, putKeys, parameters);
+                        break;
+                    case SCAN:
+                        if (KeyScan.Request.parse(scanArguments(0, parameters)) == null) {
+                            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid input. Format: SCAN [MATCH <pattern>] [COUNT <count>]"+ "\u001B[0m");
+                            continue;
+                        }
+                        handleScanRequest(parameters);
+                        break;
                     default:
                         System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid action: " + action+ "\u001B[0m");
                 }
@@ -107,52 +174,169 @@ public final class TCPClient {
           e.printStackTrace();
         }
     }
-    private void sendData(String message) {
+    /**
+     * Reads commands until end of input and sends each one without waiting for the previous
+     * reply; replies are printed in order as they arrive.
+     */
+    private void runPipelined() {
+        try (KVClient connection = connect(binary)) {
+            CompletableFuture<Void> printed = CompletableFuture.completedFuture(null);
+            String input;
+            while ((input = consoleInput.readLine()) != null) {
+                String[] parts = input.trim().split("\\s+");
+                if (parts[0].isEmpty()) {
+                    continue;
+                }
+                CompletableFuture<String> reply;
+                if (connection.isBinary()) {
+                    String[] fields = binaryFields(parts[0], Arrays.copyOfRange(parts, 1, parts.length));
+                    reply = connection.send(new BinaryProtocol.Message(toOpcode(parts[0]), fields)).thenApply(BinaryProtocol::format);
+                } else {
+                    reply = connection.execute(STAT.equals(parts[0]) ? "STAT" : input.trim());
+                }
+                printed = printed.thenCombine(reply, (ignored, response) -> {
+                    System.out.println(response);
+                    return null;
+                });
+                if (QUIT.equals(parts[0])) {
+                    break;
+                }
+            }
+            printed.join();
+        } catch (IOException | CompletionException e) {
+            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Error. Pipelined session failed: " + e.getMessage() + "\u001B[0m");
+        }
+    }
+    private static byte toOpcode(String action) {
+        switch (action) {
+            case PUT:
+                return BinaryProtocol.OP_PUT;
+            case GET:
+                return BinaryProtocol.OP_GET;
+            case DELETE:
+                return BinaryProtocol.OP_DELETE;
+            case KEYS:
+                return BinaryProtocol.OP_KEYS;
+            case STAT:
+                return BinaryProtocol.OP_STAT;
+            case QUIT:
+                return BinaryProtocol.OP_QUIT;
+            case MGET:
+                return BinaryProtocol.OP_MGET;
+            case MPUT:
+                return BinaryProtocol.OP_MPUT;
+            case MDELETE:
+                return BinaryProtocol.OP_MDELETE;
+            case SCAN:
+                return BinaryProtocol.OP_SCAN;
+            case EXPIRE:
+                return BinaryProtocol.OP_EXPIRE;
+            default:
+                return 0;
+        }
+    }
+    /** Turns the text protocol's TTL words into the binary protocol's millisecond field; other requests are unchanged. */
+    private static String[] binaryFields(String action, String[] words) {
+        if (PUT.equals(action) && words.length == 4) {
+            return new String[] {words[0], words[1], Long.toString(BinaryProtocol.parseTextTtl(words[2], words[3]))};
+        } else if (EXPIRE.equals(action) && words.length == 2) {
+            return new String[] {words[0], Long.toString(BinaryProtocol.parseTextTtl("EX", words[1]))};
+        }
+        return words;
+    }
+    private String exchange(String textRequest, byte opcode, String... fields) throws IOException {
         try {
-            dataOut.writeUTF(message);
+            if (binary) {
+                return BinaryProtocol.format(client.send(new BinaryProtocol.Message(opcode, fields)).join());
+            }
+            return client.execute(textRequest).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+    private void sendAndPrint(String textRequest, byte opcode, String... fields) {
+        try {
+            System.out.println(exchange(textRequest, opcode, fields));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     private void handleGetRequest(String key) {
-        sendData(GET + " " + key);
+        sendAndPrint(GET + " " + key, BinaryProtocol.OP_GET, key);
     }
     private void handleStatRequest() {
-        try {
-            String putResponse = dataIn.readUTF();
-            System.out.println(putResponse);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        sendAndPrint("STAT", BinaryProtocol.OP_STAT);
+    }
+    private void handlePutRequest(String[] parameters) {
+        sendAndPrint(PUT + " " + String.join(" ", parameters), BinaryProtocol.OP_PUT, binaryFields(PUT, parameters));
+    }
+    private void handleExpireRequest(String key, String seconds) {
+        sendAndPrint(EXPIRE + " " + key + " " + seconds, BinaryProtocol.OP_EXPIRE, binaryFields(EXPIRE, new String[] {key, seconds}));
+    }
+    private void handleDelRequest(String key) {
+        sendAndPrint(DELETE + " " + key, BinaryProtocol.OP_DELETE, key);
+    }
+    private void handleKeysRequest() {
+        sendAndPrint(KEYS, BinaryProtocol.OP_KEYS);
     }
-    private void handlePutRequest(String key, String value) {
-        sendData(PUT + " " + key + " " + value);
+    private void handleBatchRequest(String action, String[] keys, String[] fields) {
         try {
-            String putResponse = dataIn.readUTF();
-            System.out.println(putResponse);
-        } catch (IOException e) {
-            e.printStackTrace();
+            if (binary) {
+                System.out.println(BinaryProtocol.formatBatch(keys, client.send(new BinaryProtocol.Message(toOpcode(action), fields)).join()));
+            } else {
+                System.out.println(client.execute(action + " " + String.join(" ", fields)).join());
+            }
+        } catch (CompletionException e) {
+            e.getCause().printStackTrace();
         }
     }
-    private void handleDelRequest(String key) {
-        sendData(DELETE + " " + key);
+    /** Pages through the keys with SCAN until the cursor comes back as 0, printing each page as it arrives. */
+    private void handleScanRequest(String[] parameters) {
+        long cursor = 0;
+        int pages = 0;
+        int keys = 0;
         try {
-            String delResponse = dataIn.readUTF();
-            System.out.println(delResponse);
-        } catch (IOException e) {
-            e.printStackTrace();
+            do {
+                String[] arguments = scanArguments(cursor, parameters);
+                KeyScan.Page page;
+                if (binary) {
+                    BinaryProtocol.Message reply = client.send(new BinaryProtocol.Message(BinaryProtocol.OP_SCAN, arguments)).join();
+                    page = KeyScan.parseReply(reply);
+                    if (page == null) {
+                        System.out.println(BinaryProtocol.format(reply));
+                        return;
+                    }
+                } else {
+                    String reply = client.execute(SCAN + " " + String.join(" ", arguments)).join();
+                    page = KeyScan.parseText(reply);
+                    if (page == null) {
+                        System.out.println(reply);
+                        return;
+                    }
+                }
+                if (!page.keys.isEmpty()) {
+                    System.out.println("\u001B[32m" + String.join(":", page.keys) + "\u001B[0m");
+                }
+                pages++;
+                keys += page.keys.size();
+                cursor = page.cursor;
+            } while (cursor != 0);
+            System.out.println("\u001B[32m" + getCurrentTimeStamp() + " Scanned " + keys + " keys in " + pages + " pages" + "\u001B[0m");
+        } catch (CompletionException e) {
+            e.getCause().printStackTrace();
         }
     }
-    private void handleKeysRequest() {
-        sendData(KEYS);
+    private static String[] scanArguments(long cursor, String[] parameters) {
+        String[] arguments = new String[parameters.length + 1];
+        arguments[0] = Long.toUnsignedString(cursor);
+        System.arraycopy(parameters, 0, arguments, 1, parameters.length);
+        return arguments;
     }
     private void handleQuitRequest() {
-        try {
-            String putResponse = dataIn.readUTF();
-            System.out.println(putResponse);
-        } catch (IOException e) {
-            e.printStackTrace();
+        sendAndPrint(QUIT, BinaryProtocol.OP_QUIT);
+        if (binary) {
+            System.out.println("You have disconnected from the server!");
         }
     }
 
@@ -161,12 +345,6 @@ public final class TCPClient {
         return "[" + dateFormat.format(new Date()) + "]";
     }
     private void cleanUp() {
-        try {
-            dataOut.close();
-            dataIn.close();
-            socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        client.close();
     }
 }
@@ -0,0 +1,369 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking front end for {@link TCPServer}. One acceptor thread hands sockets to a fixed
+ * set of event loops; each loop owns a {@link Selector} and parses writeUTF frames incrementally,
+ * so idle connections cost a key and a small read buffer instead of a thread stack. Invalidations
+ * for tracking connections are queued to the connection's loop, which writes them between replies.
+ *
+ * <p>A connection whose replies the socket cannot take yet is not read from until they are
+ * written, so a client that sends faster than it reads is slowed by TCP flow control. Each loop
+ * checks its connections once a second and closes those idle for longer than
+ * {@code --idle-timeout} or holding an incomplete request for longer than {@code --read-timeout}.
+ */
+public final class TCPReactor {
+    private static final int INITIAL_READ_BUFFER = 256;
+    private static final int INITIAL_WRITE_BUFFER = 1024;
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final TCPServer server;
+    private final int port;
+    private final EventLoop[] loops;
+    private final long idleTimeoutNanos;
+    private final long readTimeoutNanos;
+
+    public TCPReactor(TCPServer server, int port, int reactorCount) {
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, reactorCount)];
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(server.idleTimeoutMillis());
+        this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(server.readTimeoutMillis());
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "tcp-reactor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(port), 4096);
+            int next = 0;
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (ClosedChannelException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (!TCPServer.backOffAfterAcceptFailure(e)) {
+                        return;
+                    }
+                    continue;
+                }
+                if (!server.admitConnection(channel.socket())) {
+                    continue;
+                }
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pushes = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        void schedulePush(Connection connection) {
+            pushes.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            boolean sweeping = idleTimeoutNanos > 0 || readTimeoutNanos > 0;
+            long nextSweep = System.nanoTime();
+            while (true) {
+                try {
+                    selector.select(sweeping ? SWEEP_INTERVAL_MILLIS : 0);
+                    registerPending();
+                    writePushes();
+                    long now = System.nanoTime();
+                    if (sweeping && now - nextSweep >= 0) {
+                        closeExpired(now);
+                        nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                Connection connection = new Connection(this, channel);
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    connection.close();
+                }
+            }
+        }
+
+        private void closeExpired(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (key.isValid() && connection != null) {
+                    connection.closeIfExpired(now);
+                }
+            }
+        }
+
+        private void writePushes() {
+            Connection connection;
+            while ((connection = pushes.poll()) != null) {
+                connection.pushScheduled.set(false);
+                try {
+                    connection.writePushes();
+                } catch (IOException | RuntimeException e) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final TCPServer.Session session;
+        private SelectionKey key;
+        private ByteBuffer in;
+        private ByteBuffer out;
+        private boolean closing;
+        private boolean closed;
+        private long lastReadNanos = System.nanoTime();
+        /** When the oldest incomplete request in {@link #in} began to arrive, 0 if there is none. */
+        private long partialSinceNanos;
+        final AtomicBoolean pushScheduled = new AtomicBoolean();
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.channel = channel;
+            this.session = server.openSession(channel.socket().getRemoteSocketAddress());
+            this.in = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+            session.pushReady = () -> {
+                if (pushScheduled.compareAndSet(false, true)) {
+                    loop.schedulePush(this);
+                }
+            };
+        }
+
+        void onReadable() throws IOException {
+            int read = channel.read(in);
+            if (read < 0) {
+                close();
+                return;
+            }
+            server.metrics().addBytesIn(read);
+            lastReadNanos = System.nanoTime();
+            in.flip();
+            int needed = 0;
+            while (!closing) {
+                int frame = session.binary ? parseBinaryFrame() : parseTextFrame();
+                if (frame != 0) {
+                    needed = frame;
+                    break;
+                }
+                if (session.quit) {
+                    closing = true;
+                }
+            }
+            in.compact();
+            if (in.position() == 0) {
+                partialSinceNanos = 0;
+            } else if (partialSinceNanos == 0) {
+                partialSinceNanos = lastReadNanos;
+            }
+            if (needed > in.capacity()) {
+                in = grow(in, needed);
+            } else if (in.position() == 0 && in.capacity() > INITIAL_READ_BUFFER) {
+                in = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+            }
+            flush();
+        }
+
+        /**
+         * Consumes one complete writeUTF frame from {@code in} if available.
+         *
+         * @return 0 if a frame was consumed, otherwise the frame size still needed (or -1 if unknown)
+         */
+        private int parseTextFrame() throws IOException {
+            if (in.remaining() < 2) {
+                return -1;
+            }
+            int length = in.getShort(in.position()) & 0xFFFF;
+            if (in.remaining() < 2 + length) {
+                return 2 + length;
+            }
+            in.position(in.position() + 2);
+            ServerEvents.startRequest();
+            ServerEvents.RequestParse parse = new ServerEvents.RequestParse();
+            parse.begin();
+            String request = ModifiedUtf8.decode(in, length);
+            parse.recordText("tcp", request);
+            String response = server.processRequest(request, session);
+            if (response != null) {
+                ServerEvents.ResponseWrite write = new ServerEvents.ResponseWrite();
+                write.begin();
+                int encodedLength = ModifiedUtf8.encodedLength(response);
+                if (encodedLength > ModifiedUtf8.MAX_ENCODED_LENGTH) {
+                    throw new IOException("Response of " + encodedLength + " bytes does not fit in a UTF frame");
+                }
+                reserve(2 + encodedLength);
+                ModifiedUtf8.writeFrame(response, encodedLength, out);
+                write.recordText("tcp", request, response);
+            }
+            return 0;
+        }
+
+        private int parseBinaryFrame() throws IOException {
+            if (in.remaining() < 4) {
+                return -1;
+            }
+            int length = in.getInt(in.position());
+            if (length < 1 || length > BinaryProtocol.MAX_FRAME) {
+                throw new IOException("Invalid binary frame length: " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                return 4 + length;
+            }
+            in.position(in.position() + 4);
+            ServerEvents.startRequest();
+            ServerEvents.RequestParse parse = new ServerEvents.RequestParse();
+            parse.begin();
+            BinaryProtocol.Message request = BinaryProtocol.decodeBody(in, length);
+            parse.recordBinary("tcp", request);
+            BinaryProtocol.Message reply = server.processBinaryRequest(request, session);
+            ServerEvents.ResponseWrite write = new ServerEvents.ResponseWrite();
+            write.begin();
+            byte[] body = BinaryProtocol.encodeBody(reply);
+            reserve(4 + body.length);
+            out.putInt(body.length).put(body);
+            write.record("tcp", Command.fromOpcode(request.code), 4 + body.length);
+            return 0;
+        }
+
+        void closeIfExpired(long now) {
+            if (readTimeoutNanos > 0 && partialSinceNanos != 0 && now - partialSinceNanos > readTimeoutNanos) {
+                server.countReadTimeout();
+                Log.warn("Client[", session.clientAddress, "] Closed: request not completed within ", server.readTimeoutMillis(), " ms");
+                close();
+            } else if (idleTimeoutNanos > 0 && now - lastReadNanos > idleTimeoutNanos) {
+                server.countIdleTimeout();
+                Log.info("Client[", session.clientAddress, "] Closed after ", server.idleTimeoutMillis(), " ms without a request");
+                close();
+            }
+        }
+
+        void writePushes() throws IOException {
+            if (closed || closing) {
+                return;
+            }
+            for (BinaryProtocol.Message push : InvalidationTracker.drain(session)) {
+                byte[] body = BinaryProtocol.encodeBody(push);
+                reserve(4 + body.length);
+                out.putInt(body.length).put(body);
+            }
+            flush();
+        }
+
+        private void reserve(int bytes) {
+            if (out == null) {
+                out = ByteBuffer.allocate(Math.max(INITIAL_WRITE_BUFFER, bytes));
+            } else if (out.remaining() < bytes) {
+                out = grow(out, out.position() + bytes);
+            }
+        }
+
+        void flush() throws IOException {
+            if (out != null) {
+                out.flip();
+                ServerEvents.SocketWrite write = new ServerEvents.SocketWrite();
+                write.begin();
+                int written = channel.write(out);
+                write.record("tcp", written);
+                server.metrics().addBytesOut(written);
+                if (out.hasRemaining()) {
+                    out.compact();
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                out = null;
+            }
+            if (closing) {
+                close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            server.closeSession(session);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minimumCapacity) {
+        int capacity = buffer.capacity();
+        while (capacity < minimumCapacity) {
+            capacity *= 2;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
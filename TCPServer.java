@@ -1,176 +1,681 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 public final class TCPServer {
    private ServerSocket serverSocket;
+   private final ServerOptions options;
+   private final KeyValueStore store;
+   private final int port;
    private static final String QUIT = "QUIT";
    private static final String KEYS = "KEYS";
    private static final String PUT = "PUT";
    private static final String DELETE = "DELETE";
    private static final String GET = "GET";
    private static final String STAT = "STAT";
-   private List<String> commandList;
-   public TCPServer() {
-      commandList = new ArrayList<>();
+   private static final String MGET = "MGET";
+   private static final String MPUT = "MPUT";
+   private static final String MDELETE = "MDELETE";
+   private static final String SCAN = "SCAN";
+   private static final String EXPIRE = "EXPIRE";
+   private static final int STREAM_BUFFER = 16 * 1024;
+   private static final long ACCEPT_BACKOFF_MILLIS = 100;
+   private final Metrics metrics;
+   private final boolean readOnly;
+   private final InvalidationTracker tracker;
+   private final String threadMode;
+   private final int maxConnections;
+   private final AtomicInteger openConnections = new AtomicInteger();
+   private final int idleTimeoutMillis;
+   private final int readTimeoutMillis;
+   private final Semaphore admission;
+   private final LongAdder rejectedConnections;
+   private final LongAdder idleTimeouts;
+   private final LongAdder readTimeouts;
+   private final LongAdder throttledRequests;
+   /**
+    * Overload options: {@code --max-connections} (0, the default, accepts all),
+    * {@code --idle-timeout} and {@code --read-timeout} in milliseconds (0, the default, waits
+    * forever), and in {@code thread} mode {@code --max-in-flight}, the requests executed at once
+    * (0 for no limit).
+    */
+   public TCPServer(ServerOptions options, KeyValueStore store) {
+      this.options = options;
+      this.store = store;
+      this.port = options.getInt("port", 8080);
+      this.metrics = new Metrics("tcp");
+      this.readOnly = options.has("replica-of");
+      store.registerMetrics(metrics);
+      this.tracker = InvalidationTracker.fromOptions(options, metrics);
+      this.threadMode = ServerThreads.mode(options);
+      store.addMutationListener(tracker);
+      this.maxConnections = options.getInt("max-connections", 0);
+      this.idleTimeoutMillis = options.getInt("idle-timeout", 0);
+      this.readTimeoutMillis = options.getInt("read-timeout", 0);
+      int maxInFlight = options.getInt("max-in-flight", 0);
+      this.admission = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+      this.rejectedConnections = metrics.counter("rejectedConnections");
+      this.idleTimeouts = metrics.counter("idleTimeouts");
+      this.readTimeouts = metrics.counter("readTimeouts");
+      this.throttledRequests = metrics.counter("throttledRequests");
    }
 
    public static void main(String[] args) {
-      TCPServer server = new TCPServer();
+      ServerOptions options = new ServerOptions(args);
+      Log.configure(options);
+      ServerEvents.configure(options);
+      TCPServer server = new TCPServer(options, KeyValueStores.create(options));
       server.startServer();
    }
 
-   private void startServer() {
+   void startServer() {
       try {
-         serverSocket = new ServerSocket(8080);
-         System.out.println("\u001B[34m" + getCurrentTimeStamp() + " Server started. Listening on port " + serverSocket.getLocalPort());
+         metrics.startPeriodicDump(options);
+         startReplication();
+         if ("nio".equals(options.getString("mode", "thread"))) {
+            int reactors = options.getInt("reactors", Runtime.getRuntime().availableProcessors());
+            Log.info(" Server started in NIO mode with ", reactors, " reactor threads. Listening on port ", port);
+            new TCPReactor(this, port, reactors).run();
+            return;
+         }
+         String threads = threadMode;
+         Executor connectionExecutor = ServerThreads.perTaskExecutor(threads);
+         serverSocket = new ServerSocket(port, options.getInt("backlog", 4096));
+         Log.info(" Server started with ", threads, " threads. Listening on port ", serverSocket.getLocalPort());
          while (true) {
-            Socket clientSocket = serverSocket.accept();
-            Thread clientThread = new Thread(() -> handleClientRequest(clientSocket));
-            clientThread.start();
+            Socket clientSocket;
+            try {
+               clientSocket = serverSocket.accept();
+            } catch (IOException e) {
+               if (serverSocket.isClosed() || !backOffAfterAcceptFailure(e)) {
+                  throw e;
+               }
+               continue;
+            }
+            if (admitConnection(clientSocket)) {
+               connectionExecutor.execute(() -> handleClientRequest(clientSocket));
+            }
          }
       } catch (IOException e) {
          e.printStackTrace();
       }
    }
+   /**
+    * Logs a failed accept, out of file descriptors for instance, and waits a little before the
+    * acceptor tries again, so the open connections keep being served. Used by both modes; it lives
+    * here because loading another class needs a descriptor too.
+    *
+    * @return {@code false} if the acceptor was interrupted while waiting
+    */
+   static boolean backOffAfterAcceptFailure(IOException failure) {
+      Log.error(" Accept failed: ", failure);
+      try {
+         Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+         return true;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return false;
+      }
+   }
+   /**
+    * {@code --replication-port} makes this server a primary that streams its writes to followers;
+    * {@code --replica-of=host:port} makes it a read-only follower of such a primary.
+    */
+   private void startReplication() throws IOException {
+      if (options.has("replication-port") && readOnly) {
+         throw new IllegalArgumentException("A replica cannot also be a replication primary");
+      }
+      if (options.has("replication-port")) {
+         ReplicationPrimary.fromOptions(store, metrics, options).start(options.getInt("replication-port", 9090));
+      } else if (readOnly) {
+         ReplicationFollower.fromOptions(store, metrics, options).start();
+      }
+   }
+   /**
+    * Counts the connection against {@code --max-connections}; one over the limit is told so in a
+    * text reply and closed. Every admitted connection must end in {@link #closeSession}.
+    */
+   boolean admitConnection(Socket clientSocket) {
+      ServerEvents.ConnectionAccept event = new ServerEvents.ConnectionAccept();
+      event.begin();
+      int open = openConnections.incrementAndGet();
+      if (maxConnections <= 0 || open <= maxConnections) {
+         event.record(clientSocket.getRemoteSocketAddress(), true, open);
+         return true;
+      }
+      openConnections.decrementAndGet();
+      rejectedConnections.increment();
+      Log.warn("Client[", clientSocket.getRemoteSocketAddress(), "] Connection refused, ", maxConnections, " connections are open");
+      try (clientSocket) {
+         DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+         out.writeUTF("\u001B[31m" + getCurrentTimeStamp() + " Error. Server busy: too many connections, try again later." + "\u001B[0m");
+         out.flush();
+      } catch (IOException ignored) {
+      }
+      event.record(clientSocket.getRemoteSocketAddress(), false, open - 1);
+      return false;
+   }
    private void handleClientRequest(Socket clientSocket){
-      try (DataInputStream dataIn = new DataInputStream(clientSocket.getInputStream());
-           DataOutputStream dataOut = new DataOutputStream(clientSocket.getOutputStream())) {
+      Session session = openSession(clientSocket.getRemoteSocketAddress());
+      try (DataInputStream dataIn = new DataInputStream(new BufferedInputStream(metrics.countingInput(clientSocket.getInputStream()), STREAM_BUFFER));
+           DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(metrics.countingOutput(clientSocket.getOutputStream()), STREAM_BUFFER))) {
 
-         HashMap<String, String> clientData = new HashMap<>();
-         commandList = new ArrayList<>();
-         System.out.println("\u001B[32m" + getCurrentTimeStamp() + "Client["+clientSocket.getRemoteSocketAddress() + "]" + " Client Connection Successful!"+ "\u001B[0m");
-
-         while (true) {
-            String request = dataIn.readUTF();
-            String[] parts = request.split(" ");
-            String command = parts[0];
-            String key = parts.length > 1 ? parts[1] : null;
-            String value = parts.length > 2 ? parts[2] : null;
-
-            commandList.add(command);
-
-            switch (command) {
-               case PUT:
-                  handlePutRequest(clientSocket,dataOut, clientData, key, value);
-                  break;
-               case DELETE:
-                  handleDelRequest(clientSocket,dataOut, clientData, key);
-                  break;
-               case GET:
-                  handleGetRequest(clientSocket,dataOut, clientData, key);
-                  break;
-               case KEYS:
-                  handleKeysRequest(clientSocket,dataOut, clientData);
-                  break;
-               case QUIT:
-                  handleQuitRequest(clientSocket, dataOut);
-                  return;
-               case STAT:
-                  handleStatRequest(dataOut, clientSocket);
-               default:
-                  break;
+         int flushed = 0;
+         while (!session.quit) {
+            if (dataIn.available() == 0 && !awaitRequest(clientSocket, dataIn, session)) {
+               break;
+            }
+            ServerEvents.startRequest();
+            ServerEvents.RequestParse parse = new ServerEvents.RequestParse();
+            parse.begin();
+            BinaryProtocol.Message request = null;
+            BinaryProtocol.Message reply = null;
+            String textRequest = null;
+            String response = null;
+            if (session.binary) {
+               request = BinaryProtocol.readFrame(dataIn);
+               parse.recordBinary("tcp", request);
+               enterRequest();
+               try {
+                  reply = processBinaryRequest(request, session);
+               } finally {
+                  exitRequest();
+               }
+            } else {
+               textRequest = dataIn.readUTF();
+               parse.recordText("tcp", textRequest);
+               enterRequest();
+               try {
+                  response = processRequest(textRequest, session);
+               } finally {
+                  exitRequest();
+               }
+            }
+            // The pusher of a tracking connection writes to the same stream, between whole frames.
+            // Without one the stream is this thread's alone and is written without locking.
+            ReentrantLock outputLock = session.pushReady != null ? session.outputLock : null;
+            if (outputLock != null) {
+               outputLock.lock();
+            }
+            try {
+               ServerEvents.ResponseWrite write = new ServerEvents.ResponseWrite();
+               write.begin();
+               if (reply != null) {
+                  BinaryProtocol.writeFrame(dataOut, reply);
+                  write.recordBinary("tcp", request, reply);
+               } else if (response != null) {
+                  dataOut.writeUTF(response);
+                  write.recordText("tcp", textRequest, response);
+               }
+               // Pipelined requests already in the buffer are answered before one flush for the batch.
+               if (dataIn.available() == 0 || session.quit) {
+                  ServerEvents.SocketWrite socketWrite = new ServerEvents.SocketWrite();
+                  socketWrite.begin();
+                  dataOut.flush();
+                  socketWrite.record("tcp", dataOut.size() - flushed);
+                  flushed = dataOut.size();
+               }
+            } finally {
+               if (outputLock != null) {
+                  outputLock.unlock();
+               }
+            }
+            if (session.tracking && session.pushReady == null) {
+               startPusher(session, clientSocket, dataOut);
             }
          }
+      } catch (SocketTimeoutException e) {
+         readTimeouts.increment();
+         Log.warn("Client[", session.clientAddress, "] Closed: request not completed within ", readTimeoutMillis, " ms");
       } catch (IOException e) {
          e.printStackTrace();
+      } finally {
+         closeSession(session);
+      }
+   }
+
+   /**
+    * Waits up to {@code --idle-timeout} for the next request to start, then gives the rest of it
+    * {@code --read-timeout}.
+    *
+    * @return {@code false} if the client closed the connection or stayed idle too long
+    */
+   private boolean awaitRequest(Socket clientSocket, DataInputStream dataIn, Session session) throws IOException {
+      clientSocket.setSoTimeout(idleTimeoutMillis);
+      dataIn.mark(1);
+      try {
+         if (dataIn.read() < 0) {
+            return false;
+         }
+      } catch (SocketTimeoutException e) {
+         idleTimeouts.increment();
+         Log.info("Client[", session.clientAddress, "] Closed after ", idleTimeoutMillis, " ms without a request");
+         return false;
+      }
+      dataIn.reset();
+      clientSocket.setSoTimeout(readTimeoutMillis);
+      return true;
+   }
+
+   /**
+    * Takes one of the {@code --max-in-flight} permits. While none is free the connection's thread
+    * waits without reading, so its client is slowed by TCP flow control rather than refused.
+    */
+   private void enterRequest() {
+      if (admission != null && !admission.tryAcquire()) {
+         throttledRequests.increment();
+         admission.acquireUninterruptibly();
+      }
+   }
+
+   private void exitRequest() {
+      if (admission != null) {
+         admission.release();
+      }
+   }
+
+   /**
+    * Writes the invalidations queued for a tracking connection from a thread of its own, since
+    * the connection's thread spends its time blocked reading the next request. The thread follows
+    * {@code --threads}, and the stream is shared under {@link Session#outputLock}, which unlike a
+    * monitor does not pin a virtual thread's carrier while the write blocks.
+    */
+   private void startPusher(Session session, Socket clientSocket, DataOutputStream dataOut) throws IOException {
+      // Pushes and replies are separate small writes; Nagle would hold one back for the other's ACK.
+      clientSocket.setTcpNoDelay(true);
+      Thread pusher = ServerThreads.newThread(threadMode, "tracking-pusher", () -> {
+         try {
+            while (!session.closed) {
+               List<BinaryProtocol.Message> pushes = InvalidationTracker.drain(session);
+               if (!pushes.isEmpty()) {
+                  session.outputLock.lock();
+                  try {
+                     for (BinaryProtocol.Message push : pushes) {
+                        BinaryProtocol.writeFrame(dataOut, push);
+                     }
+                     dataOut.flush();
+                  } finally {
+                     session.outputLock.unlock();
+                  }
+               }
+               LockSupport.park(this);
+            }
+         } catch (IOException e) {
+            // The connection's own thread sees the failure too and closes the session.
+         }
+      });
+      session.pushReady = () -> LockSupport.unpark(pusher);
+      pusher.start();
+   }
+
+   Session openSession(SocketAddress clientAddress) {
+      Log.info("Client[", clientAddress, "] Client Connection Successful!");
+      metrics.connectionOpened();
+      Session session = new Session(clientAddress);
+      session.event.begin();
+      return session;
+   }
+
+   void closeSession(Session session) {
+      if (!session.closed) {
+         session.closed = true;
+         openConnections.decrementAndGet();
+         metrics.connectionClosed();
+         session.event.record(session);
+         Runnable pushReady = session.pushReady;
+         if (pushReady != null) {
+            pushReady.run();
+         }
       }
    }
-   private synchronized void handlePutRequest(Socket clientSocket, DataOutputStream dataOut, HashMap<String, String> clientData, String key, String value) throws IOException {
-      if (!key.matches("[a-zA-Z0-9]+")) {
-         System.out.println("\u001B[31m" + getCurrentTimeStamp() + "Client[" + clientSocket.getRemoteSocketAddress() + "]" + " PUT request failed. Key: " + key + " contains invalid characters." + "\u001B[0m");
-         dataOut.writeUTF("\u001B[31m" + getCurrentTimeStamp() + " Error: Key contains invalid characters. Only letters and digits are allowed." + "\u001B[0m");
-      } else if (clientData.containsKey(key)) {
-         System.out.println("\u001B[31m" + getCurrentTimeStamp() + "Client[" + clientSocket.getRemoteSocketAddress() + "]" + " PUT request failed. Key: " + key + " already exists." + "\u001B[0m");
-         dataOut.writeUTF("\u001B[31m" + getCurrentTimeStamp() + " PUT request failed. Key: " + key + " already exists." + "\u001B[0m");
+
+   Metrics metrics() {
+      return metrics;
+   }
+
+   int idleTimeoutMillis() {
+      return idleTimeoutMillis;
+   }
+
+   int readTimeoutMillis() {
+      return readTimeoutMillis;
+   }
+
+   void countIdleTimeout() {
+      idleTimeouts.increment();
+   }
+
+   void countReadTimeout() {
+      readTimeouts.increment();
+   }
+
+   String processRequest(String request, Session session) {
+      if (BinaryProtocol.HANDSHAKE.equals(request)) {
+         session.binary = true;
+         Log.info("Client[", session.clientAddress, "] Switched to the binary protocol");
+         return BinaryProtocol.HANDSHAKE;
+      }
+      long start = System.nanoTime();
+      ServerEvents.RequestExecute event = new ServerEvents.RequestExecute();
+      event.begin();
+      String[] parts = request.split(" ");
+      String command = parts[0];
+      String key = parts.length > 1 ? parts[1] : null;
+      String value = parts.length > 2 ? parts[2] : null;
+
+      String response;
+      if (readOnly && Command.fromName(command).isWrite()) {
+         Log.warn("Client[", session.clientAddress, "] ", command, " refused by a read-only replica");
+         metrics.record(Command.fromName(command), start);
+         event.record("tcp", Command.fromName(command), key == null ? 0 : key.length());
+         return "\u001B[31m" + getCurrentTimeStamp() + " Error. This server is a read-only replica, send writes to the primary." + "\u001B[0m";
+      }
+      try {
+         switch (command) {
+            case PUT:
+               response = handlePutRequest(session.clientAddress, key, value, Arrays.copyOfRange(parts, Math.min(3, parts.length), parts.length));
+               break;
+            case DELETE:
+               response = handleDelRequest(session.clientAddress, key);
+               break;
+            case GET:
+               response = handleGetRequest(session.clientAddress, key);
+               break;
+            case KEYS:
+               response = handleKeysRequest(session.clientAddress);
+               break;
+            case QUIT:
+               session.quit = true;
+               response = handleQuitRequest(session.clientAddress);
+               break;
+            case STAT:
+               response = handleStatRequest(session.clientAddress);
+               break;
+            case MGET:
+               response = handleMultiGetRequest(session.clientAddress, Arrays.copyOfRange(parts, 1, parts.length));
+               break;
+            case MPUT:
+               response = handleMultiPutRequest(session.clientAddress, Arrays.copyOfRange(parts, 1, parts.length));
+               break;
+            case MDELETE:
+               response = handleMultiDelRequest(session.clientAddress, Arrays.copyOfRange(parts, 1, parts.length));
+               break;
+            case SCAN:
+               response = handleScanRequest(session.clientAddress, Arrays.copyOfRange(parts, 1, parts.length));
+               break;
+            case EXPIRE:
+               response = handleExpireRequest(session.clientAddress, key, parts.length == 3 ? value : null);
+               break;
+            default:
+               // Pipelined clients pair replies with requests in order, so every request gets one.
+               Log.warn("Client[", session.clientAddress, "] Invalid command: ", command);
+               response = "\u001B[31m" + getCurrentTimeStamp() + " Error. Invalid command: " + command + "\u001B[0m";
+               break;
+         }
+      } catch (UncheckedIOException e) {
+         response = "\u001B[31m" + getCurrentTimeStamp() + " Error. " + storeFailure(session.clientAddress, e) + "\u001B[0m";
+      }
+      metrics.record(Command.fromName(command), start);
+      event.record("tcp", Command.fromName(command), key == null ? 0 : key.length());
+      return response;
+   }
+   /**
+    * Logs a request the store could not carry out, such as a write refused because the
+    * write-ahead log has failed, so the client gets an error reply and the connection stays open.
+    *
+    * @return the reason for a text reply
+    */
+   private static String storeFailure(SocketAddress clientAddress, UncheckedIOException e) {
+      Log.error("Client[", clientAddress, "] Request failed: ", e);
+      return "The server could not execute the request: " + e.getMessage();
+   }
+   BinaryProtocol.Message processBinaryRequest(BinaryProtocol.Message request, Session session) {
+      long start = System.nanoTime();
+      ServerEvents.RequestExecute event = new ServerEvents.RequestExecute();
+      event.begin();
+      if (request.code == BinaryProtocol.OP_QUIT) {
+         session.quit = true;
+         Log.info("Client[", session.clientAddress, "] Client disconnected from the server!");
+      }
+      BinaryProtocol.Message reply;
+      if (request.code == BinaryProtocol.OP_TRACKING) {
+         reply = handleTrackingRequest(session, request.field(0));
+      } else if (readOnly && Command.fromOpcode(request.code).isWrite()) {
+         reply = new BinaryProtocol.Message(BinaryProtocol.STATUS_READ_ONLY);
+      } else {
+         if (session.tracking && request.code == BinaryProtocol.OP_GET && request.fields.length > 0) {
+            tracker.track(request.field(0), session);
+         }
+         try {
+            reply = BinaryProtocol.execute(store, request, metrics::statistics);
+         } catch (UncheckedIOException e) {
+            storeFailure(session.clientAddress, e);
+            reply = new BinaryProtocol.Message(BinaryProtocol.STATUS_SERVER_ERROR);
+         }
+      }
+      metrics.record(Command.fromOpcode(request.code), start);
+      event.record("tcp", Command.fromOpcode(request.code), ServerEvents.keyLength(request));
+      return reply;
+   }
+   /**
+    * Turns client tracking on or off for the connection. A replica refuses it: replicated writes
+    * bypass the store's listeners, so it could not send invalidations.
+    */
+   private BinaryProtocol.Message handleTrackingRequest(Session session, String mode) {
+      boolean on = "ON".equalsIgnoreCase(mode);
+      if (readOnly || !(on || "OFF".equalsIgnoreCase(mode))) {
+         Log.warn("Client[", session.clientAddress, "] TRACKING ", mode, " refused");
+         return new BinaryProtocol.Message(BinaryProtocol.STATUS_BAD_REQUEST);
+      }
+      if (on && session.invalidated == null) {
+         session.invalidated = new LinkedBlockingQueue<>(InvalidationTracker.MAX_QUEUED);
+      }
+      session.tracking = on;
+      Log.info("Client[", session.clientAddress, "] Client tracking ", on ? "on" : "off");
+      return new BinaryProtocol.Message(BinaryProtocol.STATUS_OK);
+   }
+   /** {@code ttl} holds the words after the value: empty, or {@code EX <seconds>} / {@code PX <milliseconds>}. */
+   private String handlePutRequest(SocketAddress clientAddress, String key, String value, String[] ttl) {
+      long ttlMillis = ttl.length == 2 ? BinaryProtocol.parseTextTtl(ttl[0], ttl[1]) : ttl.length == 0 ? 0 : -1;
+      if (key == null || value == null || ttlMillis < 0) {
+         return "\u001B[31m" + getCurrentTimeStamp() + " Error. Format: PUT <key> <value> [EX <seconds> | PX <milliseconds>]" + "\u001B[0m";
+      } else if (!key.matches("[a-zA-Z0-9]+")) {
+         Log.warn("Client[", clientAddress, "] PUT request failed. Key: ", key, " contains invalid characters.");
+         return "\u001B[31m" + getCurrentTimeStamp() + " Error: Key contains invalid characters. Only letters and digits are allowed." + "\u001B[0m";
       } else if (key.length() > 10 || value.length() > 10) {
-         System.out.println("\u001B[31m" + getCurrentTimeStamp() + "Client[" + clientSocket.getRemoteSocketAddress() + "]" + "Key or Value length exceeds the limit of 10 characters" + "\u001B[0m");
-         dataOut.writeUTF("\u001B[31m" + getCurrentTimeStamp() + "Error. Key and Value can not be long (max. 10 characters)" + "\u001B[0m");
+         Log.warn("Client[", clientAddress, "] Key or Value length exceeds the limit of 10 characters");
+         return "\u001B[31m" + getCurrentTimeStamp() + "Error. Key and Value can not be long (max. 10 characters)" + "\u001B[0m";
+      } else if (!(ttlMillis > 0 ? store.putIfAbsent(key, value, ttlMillis) : store.putIfAbsent(key, value))) {
+         Log.warn("Client[", clientAddress, "] PUT request failed. Key: ", key, " already exists.");
+         return "\u001B[31m" + getCurrentTimeStamp() + " PUT request failed. Key: " + key + " already exists." + "\u001B[0m";
       } else {
-         clientData.put(key, value);
-         System.out.println("\u001B[32m" + getCurrentTimeStamp() + "Client[" + clientSocket.getRemoteSocketAddress() + "]" + " Key-Value Pair saved on the server. Key: " + key + ", Value: " + value + "\u001B[0m");
-         dataOut.writeUTF("\u001B[32m" + getCurrentTimeStamp() + " Success: Key-Value Pair saved on the server. Key: " + key + ", Value: " + value + "\u001B[0m");
+         Log.debug("Client[", clientAddress, "] Key-Value Pair saved on the server. Key: ", key, ", Value: ", value);
+         return "\u001B[32m" + getCurrentTimeStamp() + " Success: Key-Value Pair saved on the server. Key: " + key + ", Value: " + value + "\u001B[0m";
       }
    }
-   private synchronized void handleGetRequest(Socket clientSocket ,DataOutputStream dataOut, HashMap<String, String> clientData, String key) throws IOException {
-      String value = clientData.getOrDefault(key, "Key not found");
-      if (value.equals("Key not found")){
-         System.out.println("\u001B[31m" + getCurrentTimeStamp() + "Client["+ clientSocket.getRemoteSocketAddress() + "]"+ " Error. Key Not Found On Server"+ "\u001B[0m");
-         dataOut.writeUTF("\u001B[31m" + getCurrentTimeStamp() + " Key not found"+ "\u001B[0m");
+   private String handleGetRequest(SocketAddress clientAddress, String key) {
+      if (key == null) {
+         return "\u001B[31m" + getCurrentTimeStamp() + " Error. Format: GET <key>" + "\u001B[0m";
+      }
+      String value = store.get(key);
+      if (value == null){
+         Log.warn("Client[", clientAddress, "] Error. Key Not Found On Server");
+         return "\u001B[31m" + getCurrentTimeStamp() + " Key not found"+ "\u001B[0m";
       }else {
-         System.out.println("\u001B[32m" +getCurrentTimeStamp() + "Client["+ clientSocket.getRemoteSocketAddress() + "]"+ " Success. Key found in the Server. Key: " + key + ", Value: " + value+ "\u001B[0m");
-         dataOut.writeUTF( "\u001B[32m" +getCurrentTimeStamp() + " Success: Key found in the store. Key: " + key + ", Value: " + value+ "\u001B[0m");
+         Log.debug("Client[", clientAddress, "] Success. Key found in the Server. Key: ", key, ", Value: ", value);
+         return "\u001B[32m" +getCurrentTimeStamp() + " Success: Key found in the store. Key: " + key + ", Value: " + value+ "\u001B[0m";
+      }
+   }
+   private String handleExpireRequest(SocketAddress clientAddress, String key, String seconds) {
+      long ttlMillis = BinaryProtocol.parseTextTtl("EX", seconds);
+      if (key == null || ttlMillis < 0) {
+         return "\u001B[31m" + getCurrentTimeStamp() + " Error. Format: EXPIRE <key> <seconds>" + "\u001B[0m";
+      } else if (store.expire(key, ttlMillis)) {
+         Log.debug("Client[", clientAddress, "] Key ", key, " expires in ", seconds, " seconds");
+         return "\u001B[32m" + getCurrentTimeStamp() + " Success: Key " + key + " expires in " + seconds + " seconds" + "\u001B[0m";
+      } else {
+         Log.warn("Client[", clientAddress, "] EXPIRE failed. Key ", key, " not found");
+         return "\u001B[31m" + getCurrentTimeStamp() + " Key not found in the store." + "\u001B[0m";
       }
    }
-   private synchronized void handleDelRequest(Socket clientSocket ,DataOutputStream dataOut, HashMap<String, String> clientData, String key) throws IOException {
-      if (clientData.containsKey(key)) {
-         clientData.remove(key);
-         System.out.println("\u001B[32m" +getCurrentTimeStamp() + "Client["+ clientSocket.getRemoteSocketAddress() + "]"+ " Success: Key " + key + " removed"+ "\u001B[0m");
-         dataOut.writeUTF("\u001B[32m" +getCurrentTimeStamp() + " Success: Key " + key + " removed from the store"+ "\u001B[0m");
+   private String handleDelRequest(SocketAddress clientAddress, String key) {
+      if (key == null) {
+         return "\u001B[31m" + getCurrentTimeStamp() + " Error. Format: DELETE <key>" + "\u001B[0m";
+      } else if (store.remove(key)) {
+         Log.debug("Client[", clientAddress, "] Success: Key ", key, " removed");
+         return "\u001B[32m" +getCurrentTimeStamp() + " Success: Key " + key + " removed from the store"+ "\u001B[0m";
       } else {
-         System.out.println("\u001B[31m" + getCurrentTimeStamp() + "Client["+ clientSocket.getRemoteSocketAddress() + "]"+ " Error. Key not found"+ "\u001B[0m");
-         dataOut.writeUTF("\u001B[31m" + getCurrentTimeStamp() + " Key not found in the store."+ "\u001B[0m");
+         Log.warn("Client[", clientAddress, "] Error. Key not found");
+         return "\u001B[31m" + getCurrentTimeStamp() + " Key not found in the store."+ "\u001B[0m";
       }
    }
-   private synchronized void handleKeysRequest(Socket clientSocket ,DataOutputStream dataOut, HashMap<String, String> clientData) throws IOException {
+   private String handleKeysRequest(SocketAddress clientAddress) {
+      List<String> storedKeys = store.keys();
       StringBuilder keys = new StringBuilder();
-      for (String key : clientData.keySet()) {
+      for (String key : storedKeys) {
          keys.append(key).append(":");
       }
-      if (clientData.keySet().size() > 1) {
+      if (storedKeys.size() > 1) {
          keys.setLength(keys.length() - 1);
-         System.out.println("\u001B[32m" +getCurrentTimeStamp() + "Client["+ clientSocket.getRemoteSocketAddress() + "]"+ " Success! Keys: " + keys.toString()+ "\u001B[0m");
-         dataOut.writeUTF( "\u001B[32m" +getCurrentTimeStamp() + " Success! Keys: " + keys.toString()+ "\u001B[0m");
+         Log.debug("Client[", clientAddress, "] Success! Keys: ", keys);
+         return "\u001B[32m" +getCurrentTimeStamp() + " Success! Keys: " + keys.toString()+ "\u001B[0m";
       }
-      else if(clientData.keySet().size() == 1) {
+      else if(storedKeys.size() == 1) {
          keys.setLength(keys.length()-1);
-         System.out.println("\u001B[32m" +getCurrentTimeStamp() + "Client["+ clientSocket.getRemoteSocketAddress() + "]"+ " Success! Keys: " + keys.toString()+ "\u001B[0m");
-         dataOut.writeUTF("\u001B[32m" +getCurrentTimeStamp() + " Success! Keys:" + keys.toString()+ "\u001B[0m");
+         Log.debug("Client[", clientAddress, "] Success! Keys: ", keys);
+         return "\u001B[32m" +getCurrentTimeStamp() + " Success! Keys:" + keys.toString()+ "\u001B[0m";
       }else {
-         System.out.println( "\u001B[31m" + getCurrentTimeStamp() + "Client["+ clientSocket.getRemoteSocketAddress() + "]"+ " Error. There are no keys on Server"+ "\u001B[0m");
-         dataOut.writeUTF("\u001B[31m" + getCurrentTimeStamp() + " There are no keys in the store."+ "\u001B[0m");
+         Log.warn("Client[", clientAddress, "] Error. There are no keys on Server");
+         return "\u001B[31m" + getCurrentTimeStamp() + " There are no keys in the store."+ "\u001B[0m";
       }
    }
-   private synchronized void handleStatRequest(DataOutputStream dataOut, Socket clientSocket) throws IOException {
-      dataOut.writeUTF("\u001B[32m" + getCommandStatistics() + "\u001B[0m");
-      System.out.println("\u001B[32m" +getCurrentTimeStamp() + "Client["+ clientSocket.getRemoteSocketAddress() + "]"+ " Statistics Handled" + "\u001B[0m");
+   private String handleMultiGetRequest(SocketAddress clientAddress, String[] keys) {
+      if (keys.length == 0) {
+         return "\u001B[31m" + getCurrentTimeStamp() + " Error. Format: MGET <key> [<key> ...]" + "\u001B[0m";
+      }
+      String[] values = store.getAll(keys);
+      StringBuilder response = new StringBuilder("\u001B[32m" + getCurrentTimeStamp() + " MGET results:");
+      for (int i = 0; i < keys.length; i++) {
+         response.append("\n   Key: ").append(keys[i]).append(values[i] == null ? " not found" : ", Value: " + values[i]);
+      }
+      Log.debug("Client[", clientAddress, "] MGET handled for ", keys.length, " keys");
+      return response.append("\u001B[0m").toString();
    }
-   private synchronized void handleQuitRequest(Socket clientSocket, DataOutputStream dataOut) throws IOException {
-      dataOut.writeUTF("You have disconnected from the server!");
-      System.out.println("\u001B[34m" + getCurrentTimeStamp() + "Client["+ clientSocket.getRemoteSocketAddress() + "]" +" Client disconnected from the server!" + "\u001B[0m");
+   private String handleMultiPutRequest(SocketAddress clientAddress, String[] keysAndValues) {
+      if (keysAndValues.length == 0 || keysAndValues.length % 2 != 0) {
+         return "\u001B[31m" + getCurrentTimeStamp() + " Error. Format: MPUT <key> <value> [<key> <value> ...]" + "\u001B[0m";
+      }
+      String[] results = BinaryProtocol.multiPut(store, keysAndValues);
+      StringBuilder response = new StringBuilder("\u001B[32m" + getCurrentTimeStamp() + " MPUT results:");
+      for (int i = 0; i < results.length; i++) {
+         response.append("\n   Key: ").append(keysAndValues[2 * i]).append(' ').append(describeBatchStatus(BinaryProtocol.batchStatus(results[i])));
+      }
+      Log.debug("Client[", clientAddress, "] MPUT handled for ", results.length, " keys");
+      return response.append("\u001B[0m").toString();
    }
-   private String getCurrentTimeStamp() {
-      SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-      return "[" + dateFormat.format(new Date()) + "]";
-   }
-   public int getCommandCount(String command) {
-      if(commandList.isEmpty()){
-         return 0;
-      }else{
-      int count = 0;
-      for (String cmd : commandList) {
-         if (cmd.equals(command)) {
-            count++;
-         }
+   private String handleMultiDelRequest(SocketAddress clientAddress, String[] keys) {
+      if (keys.length == 0) {
+         return "\u001B[31m" + getCurrentTimeStamp() + " Error. Format: MDELETE <key> [<key> ...]" + "\u001B[0m";
+      }
+      boolean[] removed = store.removeAll(keys);
+      StringBuilder response = new StringBuilder("\u001B[32m" + getCurrentTimeStamp() + " MDELETE results:");
+      for (int i = 0; i < keys.length; i++) {
+         response.append("\n   Key: ").append(keys[i]).append(removed[i] ? " removed" : " not found");
       }
-      return count;
+      Log.debug("Client[", clientAddress, "] MDELETE handled for ", keys.length, " keys");
+      return response.append("\u001B[0m").toString();
+   }
+   /** Answers {@code Cursor: <next> Keys: a:b:c}; a client repeats the request with the cursor until it is 0. */
+   private String handleScanRequest(SocketAddress clientAddress, String[] arguments) {
+      KeyScan.Request request = KeyScan.Request.parse(arguments);
+      if (request == null) {
+         return "\u001B[31m" + getCurrentTimeStamp() + " Error. Format: SCAN <cursor> [MATCH <pattern>] [COUNT <count>]" + "\u001B[0m";
+      }
+      KeyScan.Page page = request.execute(store);
+      Log.debug("Client[", clientAddress, "] SCAN returned ", page.keys.size(), " keys, next cursor ", Long.toUnsignedString(page.cursor));
+      return "\u001B[32m" + getCurrentTimeStamp() + " Cursor: " + Long.toUnsignedString(page.cursor) + " Keys: " + String.join(":", page.keys) + "\u001B[0m";
+   }
+   private static String describeBatchStatus(byte status) {
+      switch (status) {
+         case BinaryProtocol.STATUS_OK:
+            return "saved";
+         case BinaryProtocol.STATUS_EXISTS:
+            return "already exists";
+         case BinaryProtocol.STATUS_INVALID_KEY:
+            return "contains invalid characters";
+         default:
+            return "exceeds the limit of 10 characters";
       }
    }
+   private String handleStatRequest(SocketAddress clientAddress) {
+      Log.debug("Client[", clientAddress, "] Statistics Handled");
+      return "\u001B[32m" + getCommandStatistics() + "\u001B[0m";
+   }
+   private String handleQuitRequest(SocketAddress clientAddress) {
+      Log.info("Client[", clientAddress, "] Client disconnected from the server!");
+      return "You have disconnected from the server!";
+   }
+   private String getCurrentTimeStamp() {
+      return CachedClock.timestamp();
+   }
+   public long getCommandCount(String command) {
+      return metrics.count(Command.fromName(command));
+   }
    public String getCommandStatistics() {
-      StringBuilder statistics = new StringBuilder();
-      statistics.append("Command statistics:\n");
-      statistics.append("PUT: ").append(getCommandCount(PUT)).append("\n");
-      statistics.append("GET: ").append(getCommandCount(GET)).append("\n");
-      statistics.append("DELETE: ").append(getCommandCount(DELETE)).append("\n");
-      statistics.append("KEYS: ").append(getCommandCount(KEYS)).append("\n");
-      statistics.append("QUIT: ").append(getCommandCount(QUIT)).append("\n");
-      return statistics.toString();
+      return metrics.statistics();
+   }
+
+   static final class Session {
+      final SocketAddress clientAddress;
+      boolean binary;
+      boolean quit;
+      boolean tracking;
+      volatile boolean closed;
+      /** Keys to push to a tracking client, created when tracking is first turned on. */
+      volatile BlockingQueue<String> invalidated;
+      /** Set when {@link #invalidated} was full, so the client must drop everything it cached. */
+      volatile boolean invalidationsLost;
+      /** Wakes whoever writes this connection's pushes. */
+      volatile Runnable pushReady;
+      /** Serializes replies and pushes on a thread-mode connection once it has a pusher. */
+      final ReentrantLock outputLock = new ReentrantLock();
+      /** Times the connection for the flight recorder, from {@link #openSession} to {@link #closeSession}. */
+      final ServerEvents.Connection event = new ServerEvents.Connection();
+
+      Session(SocketAddress clientAddress) {
+         this.clientAddress = clientAddress;
+      }
+
+      /** Called by {@link InvalidationTracker}; @return whether the key was queued for this connection */
+      boolean invalidate(String key) {
+         if (closed) {
+            return false;
+         }
+         if (!invalidated.offer(key)) {
+            invalidationsLost = true;
+         }
+         Runnable ready = pushReady;
+         if (ready != null) {
+            ready.run();
+         }
+         return true;
+      }
    }
 }
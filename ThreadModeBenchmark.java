@@ -0,0 +1,169 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Compares TCPServer's blocking handler on platform threads and on virtual threads. Every
+ * (mode, connection count) pair runs in a fresh JVM; the client side drives all connections from
+ * one selector so only the server's threading model varies.
+ *
+ * <pre>java ThreadModeBenchmark --connections=1000,10000,100000 --modes=platform,virtual --rounds=5</pre>
+ *
+ * Large connection counts need a raised file descriptor limit (ulimit -n). Client sockets are
+ * spread across 127.0.0.x source addresses to stay clear of the ephemeral port range.
+ */
+public final class ThreadModeBenchmark {
+    private static final int CONNECTIONS_PER_SOURCE_ADDRESS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = new ServerOptions(args);
+        if (options.getBoolean("single")) {
+            runSingle(options);
+            return;
+        }
+        System.out.println("mode,connections,connect_ms,ops_per_sec,server_threads,heap_mb,rss_mb");
+        for (String mode : options.getString("modes", "platform,virtual").split(",")) {
+            for (String connections : options.getString("connections", "1000,10000,100000").split(",")) {
+                List<String> command = new ArrayList<>();
+                command.add(ProcessHandle.current().info().command().orElse("java"));
+                command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(ThreadModeBenchmark.class.getName());
+                command.add("--single");
+                command.add("--threads=" + mode);
+                command.add("--connections=" + connections);
+                command.add("--rounds=" + options.getInt("rounds", 5));
+                command.add("--port=" + options.getInt("port", 9080));
+                Process process = new ProcessBuilder(command).inheritIO().start();
+                if (process.waitFor() != 0) {
+                    System.out.println(mode + "," + connections + ",failed,,,,");
+                }
+            }
+        }
+    }
+
+    private static void runSingle(ServerOptions options) throws Exception {
+        String mode = ServerThreads.mode(options);
+        int connections = options.getInt("connections", 1000);
+        int rounds = options.getInt("rounds", 5);
+        int port = options.getInt("port", 9080);
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ServerOptions serverOptions = new ServerOptions(new String[] {"--port=" + port, "--threads=" + mode, "--log-level=off"});
+        Log.configure(serverOptions);
+        TCPServer server = new TCPServer(serverOptions, KeyValueStores.create(serverOptions));
+        Thread serverThread = new Thread(server::startServer, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        awaitListening(port);
+
+        Selector selector = Selector.open();
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open();
+            byte[] source = {127, 0, 0, (byte) (1 + i / CONNECTIONS_PER_SOURCE_ADDRESS)};
+            channel.bind(new InetSocketAddress(InetAddress.getByAddress(source), 0));
+            channel.connect(new InetSocketAddress("127.0.0.1", port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(512));
+        }
+        long connectMillis = (System.nanoTime() - connectStart) / 1_000_000;
+
+        roundTrip(selector, frame("PUT bench 1"), 1);
+        ByteBuffer get = frame("GET bench");
+        roundTrip(selector, get, connections);
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            roundTrip(selector, get, connections);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long heapMb = (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+        out.printf("%s,%d,%d,%.0f,%d,%d,%d%n", mode, connections, connectMillis, (double) connections * rounds / seconds,
+                ManagementFactory.getThreadMXBean().getThreadCount(), heapMb, residentSetMb());
+        System.exit(0);
+    }
+
+    private static void roundTrip(Selector selector, ByteBuffer request, int connections) throws IOException {
+        int sent = 0;
+        for (SelectionKey key : selector.keys()) {
+            if (sent++ == connections) {
+                break;
+            }
+            ByteBuffer copy = request.duplicate();
+            SocketChannel channel = (SocketChannel) key.channel();
+            while (copy.hasRemaining()) {
+                channel.write(copy);
+            }
+        }
+        int received = 0;
+        while (received < connections) {
+            selector.select();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                ByteBuffer buffer = (ByteBuffer) key.attachment();
+                if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                    throw new IOException("Server closed a benchmark connection");
+                }
+                buffer.flip();
+                while (buffer.remaining() >= 2 && buffer.remaining() >= 2 + (buffer.getShort(buffer.position()) & 0xFFFF)) {
+                    buffer.position(buffer.position() + 2 + (buffer.getShort(buffer.position()) & 0xFFFF));
+                    received++;
+                }
+                buffer.compact();
+            }
+        }
+    }
+
+    private static ByteBuffer frame(String request) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(request);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                SocketChannel.open(new InetSocketAddress("127.0.0.1", port)).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start listening on port " + port);
+    }
+
+    private static long residentSetMb() throws IOException {
+        Path status = Path.of("/proc/self/status");
+        if (!Files.exists(status)) {
+            return -1;
+        }
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", "")) >> 10;
+            }
+        }
+        return -1;
+    }
+}
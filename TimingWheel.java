@@ -0,0 +1,132 @@
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel (Varghese and Lauck) for key expiry. Time advances in ticks of
+ * {@code tickNanos}; level {@code n} has 64 slots of {@code 64^n} ticks each, so five levels
+ * cover 2^30 ticks (124 days at 10 ms). A timer goes into the lowest level whose range holds its
+ * deadline and is moved one level down each time the wheel reaches its slot, so scheduling and
+ * cancelling are O(1) and every timer is moved at most four times before it fires.
+ *
+ * <p>Timers further out than the top level are parked in its last slot and fire early; owners
+ * check {@link Timer#deadlineNanos} when a timer fires and schedule it again if it is not due.
+ * A timer never fires before its deadline otherwise. All methods synchronize on the wheel.
+ */
+public final class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 5;
+    private static final long SPAN = 1L << (SLOT_BITS * LEVELS);
+
+    /** A scheduled key; linked into one slot's list while it is pending. */
+    public static final class Timer {
+        public final String key;
+        public final long deadlineNanos;
+        private Timer previous;
+        private Timer next;
+
+        public Timer(String key, long deadlineNanos) {
+            this.key = key;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /** @return whether the deadline has passed at {@code nowNanos} */
+        public boolean isDue(long nowNanos) {
+            return nowNanos - deadlineNanos >= 0;
+        }
+    }
+
+    private final long originNanos;
+    private final long tickNanos;
+    /** Sentinel heads of circular lists, level by level. */
+    private final Timer[] slots = new Timer[LEVELS * SLOTS];
+    /** The next tick to process. */
+    private long now;
+    private int size;
+
+    public TimingWheel(long tickNanos, long originNanos) {
+        this.tickNanos = Math.max(1, tickNanos);
+        this.originNanos = originNanos;
+        for (int i = 0; i < slots.length; i++) {
+            Timer head = new Timer(null, 0);
+            head.previous = head;
+            head.next = head;
+            slots[i] = head;
+        }
+    }
+
+    public synchronized void schedule(Timer timer) {
+        if (timer.next != null) {
+            throw new IllegalStateException("Timer for " + timer.key + " is already scheduled");
+        }
+        add(timer);
+        size++;
+    }
+
+    /** @return whether the timer was pending and has been removed */
+    public synchronized boolean cancel(Timer timer) {
+        if (timer.next == null) {
+            return false;
+        }
+        unlink(timer);
+        size--;
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Processes every tick that has ended by {@code nowNanos} and moves their timers to
+     * {@code expired}; the caller acts on them after this returns, outside the wheel's lock.
+     */
+    public synchronized void advance(long nowNanos, List<Timer> expired) {
+        long target = Math.floorDiv(nowNanos - originNanos, tickNanos);
+        while (now <= target) {
+            int index = (int) (now & (SLOTS - 1));
+            // Refill the lower levels before their first slot comes round; a level is only
+            // cascaded when the one below it has wrapped too.
+            for (int level = 1; index == 0 && level < LEVELS; level++) {
+                index = (int) ((now >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                cascade(level * SLOTS + index);
+            }
+            Timer head = slots[(int) (now & (SLOTS - 1))];
+            now++;
+            while (head.next != head) {
+                Timer timer = head.next;
+                unlink(timer);
+                size--;
+                expired.add(timer);
+            }
+        }
+    }
+
+    private void cascade(int slot) {
+        Timer head = slots[slot];
+        while (head.next != head) {
+            Timer timer = head.next;
+            unlink(timer);
+            add(timer);
+        }
+    }
+
+    private void add(Timer timer) {
+        // Round up so that a timer only fires once its whole deadline has passed.
+        long tick = Math.max(now, -Math.floorDiv(originNanos - timer.deadlineNanos, tickNanos));
+        long delta = Math.min(tick - now, SPAN - 1);
+        tick = now + delta;
+        int level = delta == 0 ? 0 : (63 - Long.numberOfLeadingZeros(delta)) / SLOT_BITS;
+        Timer head = slots[level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1))];
+        timer.previous = head.previous;
+        timer.next = head;
+        head.previous.next = timer;
+        head.previous = timer;
+    }
+
+    private static void unlink(Timer timer) {
+        timer.previous.next = timer.next;
+        timer.next.previous = timer.previous;
+        timer.previous = null;
+        timer.next = null;
+    }
+}
@@ -0,0 +1,147 @@
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Records a {@link ServerEvents.StoreOperation} for every request-path call into another store,
+ * so a flight recording shows store time, lock waits included, apart from parsing and formatting.
+ * Replays ({@link #applyPut}, {@link #applyRemove}, {@link #applyDeadline}), {@link #size},
+ * {@link #forEach} and {@link #forEachDeadline} pass through unrecorded.
+ */
+public final class TracingKeyValueStore implements KeyValueStore {
+    private final KeyValueStore delegate;
+
+    public TracingKeyValueStore(KeyValueStore delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public String get(String key) {
+        ServerEvents.StoreOperation event = new ServerEvents.StoreOperation();
+        event.begin();
+        String value = delegate.get(key);
+        event.record("get", key.length(), 1);
+        return value;
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        ServerEvents.StoreOperation event = new ServerEvents.StoreOperation();
+        event.begin();
+        boolean stored = delegate.putIfAbsent(key, value);
+        event.record("putIfAbsent", key.length(), 1);
+        return stored;
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value, long ttlMillis) {
+        ServerEvents.StoreOperation event = new ServerEvents.StoreOperation();
+        event.begin();
+        boolean stored = delegate.putIfAbsent(key, value, ttlMillis);
+        event.record("putIfAbsent", key.length(), 1);
+        return stored;
+    }
+
+    @Override
+    public boolean expire(String key, long ttlMillis) {
+        ServerEvents.StoreOperation event = new ServerEvents.StoreOperation();
+        event.begin();
+        boolean present = delegate.expire(key, ttlMillis);
+        event.record("expire", key.length(), 1);
+        return present;
+    }
+
+    @Override
+    public boolean remove(String key) {
+        ServerEvents.StoreOperation event = new ServerEvents.StoreOperation();
+        event.begin();
+        boolean removed = delegate.remove(key);
+        event.record("remove", key.length(), 1);
+        return removed;
+    }
+
+    @Override
+    public String[] getAll(String[] keys) {
+        ServerEvents.StoreOperation event = new ServerEvents.StoreOperation();
+        event.begin();
+        String[] values = delegate.getAll(keys);
+        event.record("getAll", keys.length == 0 ? 0 : keys[0].length(), keys.length);
+        return values;
+    }
+
+    @Override
+    public boolean[] putAllIfAbsent(String[] keys, String[] values) {
+        ServerEvents.StoreOperation event = new ServerEvents.StoreOperation();
+        event.begin();
+        boolean[] stored = delegate.putAllIfAbsent(keys, values);
+        event.record("putAllIfAbsent", keys.length == 0 ? 0 : keys[0].length(), keys.length);
+        return stored;
+    }
+
+    @Override
+    public boolean[] removeAll(String[] keys) {
+        ServerEvents.StoreOperation event = new ServerEvents.StoreOperation();
+        event.begin();
+        boolean[] removed = delegate.removeAll(keys);
+        event.record("removeAll", keys.length == 0 ? 0 : keys[0].length(), keys.length);
+        return removed;
+    }
+
+    @Override
+    public List<String> keys() {
+        ServerEvents.StoreOperation event = new ServerEvents.StoreOperation();
+        event.begin();
+        List<String> keys = delegate.keys();
+        event.record("keys", 0, keys.size());
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        delegate.forEach(action);
+    }
+
+    @Override
+    public KeyScan.Page scan(long cursor, int count) {
+        ServerEvents.StoreOperation event = new ServerEvents.StoreOperation();
+        event.begin();
+        KeyScan.Page page = delegate.scan(cursor, count);
+        event.record("scan", 0, page.keys.size());
+        return page;
+    }
+
+    @Override
+    public void addMutationListener(MutationListener listener) {
+        delegate.addMutationListener(listener);
+    }
+
+    @Override
+    public void registerMetrics(Metrics metrics) {
+        delegate.registerMetrics(metrics);
+    }
+
+    @Override
+    public void applyPut(String key, String value) {
+        delegate.applyPut(key, value);
+    }
+
+    @Override
+    public void applyRemove(String key) {
+        delegate.applyRemove(key);
+    }
+
+    @Override
+    public void applyDeadline(String key, long deadlineMillis) {
+        delegate.applyDeadline(key, deadlineMillis);
+    }
+
+    @Override
+    public void forEachDeadline(ObjLongConsumer<String> action) {
+        delegate.forEachDeadline(action);
+    }
+}
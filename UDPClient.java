@@ -1,28 +1,31 @@
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.net.*;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
 public final class UDPClient {
-    private DatagramSocket clientSocket;
-    private InetAddress serverAddress;
-    private int serverPort;
-    private byte[] receiveData;
+    private ReliableUdpClient clientSocket;
     private byte[] sendData;
     private final String quit = "QUIT";
     private final String put = "PUT";
     private final String delete = "DELETE";
     private final String get = "GET";
     private  final String keys = "KEYS";
+    private final String mget = "MGET";
+    private final String mput = "MPUT";
+    private final String mdelete = "MDELETE";
+    private final String scan = "SCAN";
+    private final String expire = "EXPIRE";
+    private final String stat = "STATISTICS";
     BufferedReader consoleInput;
-    public UDPClient(String serverHost, int serverPort) {
+    private boolean binary;
+    private String[] batchKeys;
+    public UDPClient(String serverHost, int serverPort, int attempts) {
         try {
-            this.clientSocket = new DatagramSocket();
-            this.serverAddress = InetAddress.getByName(serverHost);
-            this.serverPort = serverPort;
-            this.receiveData = new byte[1024];
+            this.clientSocket = new ReliableUdpClient(new InetSocketAddress(serverHost, serverPort), 1, attempts);
             this.sendData = new byte[1024];
             consoleInput = new BufferedReader(new InputStreamReader(System.in));
         } catch (IOException e) {
@@ -31,7 +34,13 @@ public final class UDPClient {
     }
 
     public static void main(String[] args) {
-        UDPClient client = new UDPClient("localhost", 8081);
+        ServerOptions options = new ServerOptions(args);
+        if (options.getBoolean("load")) {
+            LoadGenerator.run(options, "udp");
+            return;
+        }
+        UDPClient client = new UDPClient(options.getString("host", "localhost"), options.getInt("port", 8081), options.getInt("attempts", 6));
+        client.binary = "binary".equals(options.getString("protocol", "text"));
         client.startClient();
     }
 
@@ -40,14 +49,20 @@ public final class UDPClient {
         handleRequests(clientSocket);
     }
 
-    private void handleRequests(DatagramSocket clientSocket) {
+    private void handleRequests(ReliableUdpClient clientSocket) {
         try {
             while (true) {
                 System.out.println("Please Input Command in either of the following forms:");
-                System.out.println("    PUT <key> <value>");
+                System.out.println("    PUT <key> <value> [EX <seconds> | PX <milliseconds>]");
+                System.out.println("    EXPIRE <key> <seconds>");
                 System.out.println("    GET <key>");
                 System.out.println("    KEYS");
                 System.out.println("    DELETE <key>");
+                System.out.println("    MGET <key> [<key> ...]");
+                System.out.println("    MPUT <key> <value> [<key> <value> ...]");
+                System.out.println("    MDELETE <key> [<key> ...]");
+                System.out.println("    SCAN [MATCH <pattern>] [COUNT <count>]");
+                System.out.println("    STATISTICS");
                 System.out.println("    QUIT");
                 System.out.print("Enter Command: ");
                 String input = consoleInput.readLine();
@@ -57,39 +72,79 @@ public final class UDPClient {
                 String[] parts = input.trim().split("\\s+", 2);
                 String action = parts[0];
                 String[] parameters = parts.length > 1 ? parts[1].split("\\s+") : new String[0];
+                batchKeys = null;
 
                 switch (action) {
                     case quit:
-                        sendData(quit, clientSocket);
-                        receiveDataPacket(clientSocket);
+                        exchange(quit, clientSocket, BinaryProtocol.OP_QUIT);
                         return;
                     case put:
+                        if (parameters.length == 4 && BinaryProtocol.parseTextTtl(parameters[2], parameters[3]) > 0) {
+                            String ttlMillis = Long.toString(BinaryProtocol.parseTextTtl(parameters[2], parameters[3]));
+                            exchange(put + " " + String.join(" ", parameters), clientSocket, BinaryProtocol.OP_PUT, parameters[0], parameters[1], ttlMillis);
+                            break;
+                        }
                         if (parameters.length != 2) {
-                            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid input. Format: PUT <key> <value>"+ "\u001B[0m");
+                            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid input. Format: PUT <key> <value> [EX <seconds> | PX <milliseconds>]"+ "\u001B[0m");
                             continue;
                         }
-                        sendData(put + " " + parameters[0] + " " + parameters[1], clientSocket);
-                        receiveDataPacket(clientSocket);
+                        exchange(put + " " + parameters[0] + " " + parameters[1], clientSocket, BinaryProtocol.OP_PUT, parameters[0], parameters[1]);
+                        break;
+                    case expire:
+                        if (parameters.length != 2 || BinaryProtocol.parseTextTtl("EX", parameters[1]) < 0) {
+                            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid input. Format: EXPIRE <key> <seconds>"+ "\u001B[0m");
+                            continue;
+                        }
+                        exchange(expire + " " + parameters[0] + " " + parameters[1], clientSocket, BinaryProtocol.OP_EXPIRE, parameters[0],
+                                Long.toString(BinaryProtocol.parseTextTtl("EX", parameters[1])));
                         break;
                     case delete:
                         if (parameters.length != 1) {
                             System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid input. Format: DELETE <key>"+ "\u001B[0m");
                             continue;
                         }
-                        sendData(delete + " " + parameters[0], clientSocket);
-                        receiveDataPacket(clientSocket);
+                        exchange(delete + " " + parameters[0], clientSocket, BinaryProtocol.OP_DELETE, parameters[0]);
                         break;
                     case get:
                         if (parameters.length != 1) {
                             System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid input. Format: GET <key>"+ "\u001B[0m");
                             continue;
                         }
-                        sendData(get + " " + parameters[0], clientSocket);
-                        receiveDataPacket(clientSocket);
+                        exchange(get + " " + parameters[0], clientSocket, BinaryProtocol.OP_GET, parameters[0]);
                         break;
                     case keys:
-                        sendData(keys , clientSocket);
-                       receiveDataPacket(clientSocket);
+                        exchange(keys, clientSocket, BinaryProtocol.OP_KEYS);
+                        break;
+                    case stat:
+                        exchange("STAT", clientSocket, BinaryProtocol.OP_STAT);
+                        break;
+                    case mget:
+                    case mdelete:
+                        if (parameters.length == 0) {
+                            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid input. Format: " + action + " <key> [<key> ...]"+ "\u001B[0m");
+                            continue;
+                        }
+                        batchKeys = parameters;
+                        exchange(action + " " + String.join(" ", parameters), clientSocket,
+                                mget.equals(action) ? BinaryProtocol.OP_MGET : BinaryProtocol.OP_MDELETE, parameters);
+                        break;
+                    case mput:
+                        if (parameters.length == 0 || parameters.length % 2 != 0) {
+                            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid input. Format: MPUT <key> <value> [<key> <value> ...]"+ "\u001B[0m");
+                            continue;
+                        }
+                        batchKeys = new String[parameters.length / 2];
+                        for (int i = 0; i < batchKeys.length; i++) {
+                            batchKeys[i] = parameters[2 * i];
+                        }
+                        exchange(mput + " " + String.join(" ", parameters), clientSocket, BinaryProtocol.OP_MPUT, parameters);
+                        break;
+                    case scan:
+                        if (KeyScan.Request.parse(scanArguments(0, parameters)) == null) {
+                            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid input. Format: SCAN [MATCH <pattern>] [COUNT <count>]"+ "\u001B[0m");
+                            continue;
+                        }
+                        handleScanRequest(parameters, clientSocket);
                         break;
                     default:
                         System.out.println("\u001B[31m" + getCurrentTimeStamp() + " Invalid action: " + action+ "\u001B[0m");
@@ -100,15 +155,69 @@ public final class UDPClient {
             e.printStackTrace();
         }
     }
-    private void sendData(String message, DatagramSocket clientSocket) throws IOException {
-        sendData = message.getBytes();
-        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, serverPort);
-        clientSocket.send(sendPacket);
+    private void exchange(String textRequest, ReliableUdpClient clientSocket, byte opcode, String... fields) throws IOException {
+        byte[] reply = request(textRequest, clientSocket, opcode, fields);
+        if (reply != null) {
+            receiveDataPacket(reply);
+        }
+    }
+    /** @return the reply, or {@code null} after reporting that none arrived */
+    private byte[] request(String textRequest, ReliableUdpClient clientSocket, byte opcode, String... fields) throws IOException {
+        if (binary) {
+            sendData = BinaryProtocol.encodeDatagram(new BinaryProtocol.Message(opcode, fields));
+        } else {
+            sendData = textRequest.getBytes();
+        }
+        try {
+            return clientSocket.request(sendData);
+        } catch (SocketTimeoutException e) {
+            System.out.println("\u001B[31m" + getCurrentTimeStamp() + " No reply from the server after " + clientSocket.maxAttempts() + " attempts"+ "\u001B[0m");
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
     }
-    private void receiveDataPacket(DatagramSocket clientSocket) throws IOException {
-        DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-        clientSocket.receive(receivePacket);
-        String receivedMessage = new String(receivePacket.getData(), 0, receivePacket.getLength());
+    /** Pages through the keys with SCAN until the cursor comes back as 0, one datagram per page. */
+    private void handleScanRequest(String[] parameters, ReliableUdpClient clientSocket) throws IOException {
+        long cursor = 0;
+        int pages = 0;
+        int keyCount = 0;
+        do {
+            String[] arguments = scanArguments(cursor, parameters);
+            byte[] reply = request(scan + " " + String.join(" ", arguments), clientSocket, BinaryProtocol.OP_SCAN, arguments);
+            if (reply == null) {
+                return;
+            }
+            KeyScan.Page page = binary
+                    ? KeyScan.parseReply(BinaryProtocol.decodeDatagram(reply, 0, reply.length))
+                    : KeyScan.parseText(new String(reply, 0, reply.length));
+            if (page == null) {
+                receiveDataPacket(reply);
+                return;
+            }
+            if (!page.keys.isEmpty()) {
+                System.out.println("\u001B[32m" + String.join(":", page.keys) + "\u001B[0m");
+            }
+            pages++;
+            keyCount += page.keys.size();
+            cursor = page.cursor;
+        } while (cursor != 0);
+        System.out.println("\u001B[32m" + getCurrentTimeStamp() + " Scanned " + keyCount + " keys in " + pages + " pages" + "\u001B[0m");
+    }
+    private static String[] scanArguments(long cursor, String[] parameters) {
+        String[] arguments = new String[parameters.length + 1];
+        arguments[0] = Long.toUnsignedString(cursor);
+        System.arraycopy(parameters, 0, arguments, 1, parameters.length);
+        return arguments;
+    }
+    private void receiveDataPacket(byte[] reply) throws IOException {
+        if (binary) {
+            BinaryProtocol.Message message = BinaryProtocol.decodeDatagram(reply, 0, reply.length);
+            System.out.println(batchKeys != null ? BinaryProtocol.formatBatch(batchKeys, message) : BinaryProtocol.format(message));
+            return;
+        }
+        String receivedMessage = new String(reply, 0, reply.length);
         System.out.println(receivedMessage);
     }
     private String getCurrentTimeStamp() {
@@ -1,162 +1,710 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
+/**
+ * Datagram front end for the store. A receiver thread reads each packet into a pooled
+ * {@link Datagram} and hands the whole object to a worker; the worker owns it until the reply is
+ * sent and then returns it to the pool, so no packet is ever overwritten while it is parsed.
+ * Commands are matched against the received bytes and replies are encoded into the datagram's
+ * own output buffer, so a GET allocates little beyond the key and value strings the store needs.
+ *
+ * <p>With platform threads a fixed set of workers take datagrams from a {@link HandoffQueue};
+ * with virtual threads every datagram gets its own thread. {@code --udp-sockets=N} binds N
+ * channels to the port with {@code SO_REUSEPORT}, each with its own receiver, workers and pool,
+ * so receiving scales past what one socket and one receiver thread can drain.
+ *
+ * <p>A request sent behind {@link BinaryProtocol#RELIABLE_MAGIC} carries an ID that is echoed in
+ * the reply; its reply is kept in a {@link ReplyCache} so a retransmitted PUT or DELETE is
+ * answered again rather than applied twice.
+ *
+ * <p>The pool bounds the datagrams in flight. One that arrives while every pooled datagram is
+ * taken is read into a spare one and answered BUSY by the receiver, and one that waited in the
+ * queue for longer than {@code --udp-queue-timeout} is answered BUSY by its worker instead of
+ * being executed, since its sender has likely given up on it; neither reply is recorded for
+ * retransmissions.
+ */
 public final class UDPServer {
-    private DatagramSocket serverSocket;
+    private static final int MAX_DATAGRAM = 65507;
+    private static final Command[] COMMANDS = Command.values();
+    private static final String[] NO_TOKENS = new String[0];
+
     private int port;
-    private byte[] receiveData;
-    private byte[] sendData;
-    private final String quit = "QUIT";
-    private final String put = "PUT";
-    private final String delete = "DELETE";
-    private final String get = "GET";
-    private final String keys = "KEYS";
-    private ExecutorService executor;
-    private HashMap<String, String> clientData;
-
-    public UDPServer(int port) {
+    private final String threadMode;
+    private final int workers;
+    private final int bufferCount;
+    private final int sockets;
+    private final KeyValueStore store;
+    private final Metrics metrics;
+    private final Supplier<String> statistics;
+    private final ReplyCache replies;
+    private final LongAdder duplicates;
+    private final long queueTimeoutNanos;
+    private final LongAdder rejectedDatagrams;
+    private final LongAdder expiredDatagrams;
+    private final LongAdder failedRequests;
+
+    public UDPServer(int port, KeyValueStore store, String threadMode, int workers, int bufferCount) {
+        this(port, store, threadMode, workers, bufferCount, 1);
+    }
+
+    public UDPServer(int port, KeyValueStore store, String threadMode, int workers, int bufferCount, int sockets) {
+        this(port, store, threadMode, workers, bufferCount, sockets, new ReplyCache(ReplyCache.DEFAULT_ENTRIES, ReplyCache.DEFAULT_BYTES));
+    }
+
+    public UDPServer(int port, KeyValueStore store, String threadMode, int workers, int bufferCount, int sockets, ReplyCache replies) {
+        this(port, store, threadMode, workers, bufferCount, sockets, replies, 1000);
+    }
+
+    /**
+     * @param sockets channels bound to the port with {@code SO_REUSEPORT}; workers and buffers
+     *        are divided between them
+     * @param queueTimeoutMillis how long a datagram may wait for a worker before it is answered
+     *        BUSY instead, 0 for no limit
+     */
+    public UDPServer(int port, KeyValueStore store, String threadMode, int workers, int bufferCount, int sockets, ReplyCache replies,
+            long queueTimeoutMillis) {
         this.port = port;
-        receiveData = new byte[1024];
-        sendData = new byte[1024];
-        executor = Executors.newFixedThreadPool(10);
-        clientData = new HashMap<>();
+        this.store = store;
+        this.threadMode = threadMode;
+        this.workers = workers;
+        this.bufferCount = bufferCount;
+        this.sockets = Math.max(1, sockets);
+        this.metrics = new Metrics("udp");
+        this.statistics = metrics::statistics;
+        this.replies = replies;
+        this.duplicates = metrics.counter("duplicateRequests");
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        this.rejectedDatagrams = metrics.counter("rejectedDatagrams");
+        this.expiredDatagrams = metrics.counter("expiredDatagrams");
+        this.failedRequests = metrics.counter("failedRequests");
+        store.registerMetrics(metrics);
     }
 
     public static void main(String[] args) {
-        UDPServer server = new UDPServer(8081);
+        ServerOptions options = new ServerOptions(args);
+        Log.configure(options);
+        ServerEvents.configure(options);
+        int workers = options.getInt("workers", 10);
+        int buffers = options.getInt("udp-buffers", workers * 4);
+        int sockets = options.getInt("udp-sockets", 1);
+        UDPServer server = new UDPServer(options.getInt("port", 8081), KeyValueStores.create(options), ServerThreads.mode(options), workers,
+                buffers, sockets, ReplyCache.fromOptions(options), options.getLong("udp-queue-timeout", 1000));
+        try {
+            server.metrics.startPeriodicDump(options);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         server.startServer();
     }
 
-    private void startServer() {
+    void startServer() {
+        Endpoint[] endpoints = new Endpoint[sockets];
         try {
-            serverSocket = new DatagramSocket(port);
-            System.out.println("\u001B[34m" + getCurrentTimeStamp() + " Server started. Listening on port " + port);
-            while (true) {
-                DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-                serverSocket.receive(receivePacket);
-                executor.execute(() -> handleClientRequest(receivePacket));
+            for (int i = 0; i < sockets; i++) {
+                endpoints[i] = new Endpoint(i, ceilDiv(workers, sockets), ceilDiv(bufferCount, sockets));
             }
+            if (sockets == 1) {
+                Log.info(" Server started. Listening on port ", port);
+            } else {
+                Log.info(" Server started. Listening on port ", port, " with ", sockets, " sockets");
+            }
+            Executor perDatagram = ServerThreads.VIRTUAL.equals(threadMode) ? ServerThreads.perTaskExecutor(threadMode) : null;
+            for (int i = 1; i < sockets; i++) {
+                Endpoint endpoint = endpoints[i];
+                Thread receiver = new Thread(() -> endpoint.receive(perDatagram), "udp-receiver-" + i);
+                receiver.setDaemon(true);
+                receiver.start();
+            }
+            endpoints[0].receive(perDatagram);
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint != null) {
+                    endpoint.close();
+                }
+            }
+        }
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return Math.max(1, (value + divisor - 1) / divisor);
+    }
+
+    private void handleClientRequest(Datagram datagram) {
+        long start = System.nanoTime();
+        ServerEvents.startRequest();
+        datagram.command = Command.UNKNOWN;
+        try {
+            metrics.addBytesIn(datagram.in.remaining());
+            if (queueTimeoutNanos > 0 && start - datagram.receivedNanos > queueTimeoutNanos) {
+                expiredDatagrams.increment();
+                replyBusy(datagram);
+                return;
+            }
+            datagram.out.clear();
+            if (datagram.in.remaining() >= BinaryProtocol.RELIABLE_HEADER && datagram.in.get(datagram.in.position()) == BinaryProtocol.RELIABLE_MAGIC
+                    && !beginReliableRequest(datagram)) {
+                return;
+            }
+            if (datagram.in.hasRemaining() && datagram.in.get(datagram.in.position()) == BinaryProtocol.UDP_MAGIC) {
+                handleBinaryRequest(datagram, start);
+            } else {
+                handleTextRequest(datagram, start);
+            }
+        } catch (BufferOverflowException e) {
+            Log.warn("Client[", datagram.sender, "] Response does not fit in a datagram");
+        } catch (RuntimeException e) {
+            // A failed store, for instance; answer and keep the worker alive.
+            Log.error("Client[", datagram.sender, "] Request failed: ", e);
+            failedRequests.increment();
+            replyServerError(datagram);
+        } finally {
+            if (datagram.tracked) {
+                replies.abandon(datagram.sender, datagram.requestId);
+                datagram.tracked = false;
             }
-            if (executor != null) {
-                executor.shutdown();
+            datagram.endpoint.free.offer(datagram);
+        }
+    }
+
+    /**
+     * Strips the request ID header and starts the reply with it. A retransmission of a request
+     * already answered gets the recorded reply again instead of being executed twice.
+     *
+     * @return {@code false} if the datagram has been dealt with
+     */
+    private boolean beginReliableRequest(Datagram datagram) {
+        int position = datagram.in.position();
+        long requestId = datagram.in.getLong(position + 1);
+        byte[] recorded = replies.begin(datagram.sender, requestId);
+        if (recorded != null) {
+            duplicates.increment();
+            if (recorded != ReplyCache.IN_PROGRESS) {
+                datagram.out.put(recorded);
+                sendResponse(datagram);
             }
+            return false;
+        }
+        datagram.tracked = true;
+        datagram.requestId = requestId;
+        datagram.in.position(position + BinaryProtocol.RELIABLE_HEADER);
+        datagram.out.put(BinaryProtocol.RELIABLE_MAGIC).putLong(requestId);
+        return true;
+    }
+
+    /** Answers BUSY in the request's own protocol, echoing its request ID, without executing it. */
+    private void replyBusy(Datagram datagram) {
+        replyStatus(datagram, BinaryProtocol.STATUS_BUSY, " Error. Server busy, try again later.");
+    }
+
+    /** Like BUSY, the error is not recorded for retransmissions, which are executed again. */
+    private void replyServerError(Datagram datagram) {
+        if (datagram.tracked) {
+            replies.abandon(datagram.sender, datagram.requestId);
+            datagram.tracked = false;
+        }
+        datagram.in.position(0);
+        replyStatus(datagram, BinaryProtocol.STATUS_SERVER_ERROR, " Error. The server could not execute the request.");
+    }
+
+    /** Answers a request that has not been read yet with {@code status}, or {@code text} for a text request. */
+    private void replyStatus(Datagram datagram, byte status, String text) {
+        datagram.out.clear();
+        int position = datagram.in.position();
+        if (datagram.in.remaining() >= BinaryProtocol.RELIABLE_HEADER && datagram.in.get(position) == BinaryProtocol.RELIABLE_MAGIC) {
+            datagram.out.put(BinaryProtocol.RELIABLE_MAGIC).putLong(datagram.in.getLong(position + 1));
+            position += BinaryProtocol.RELIABLE_HEADER;
+        }
+        if (position < datagram.in.limit() && datagram.in.get(position) == BinaryProtocol.UDP_MAGIC) {
+            BinaryProtocol.encodeDatagram(new BinaryProtocol.Message(status), datagram.out);
+        } else {
+            datagram.append("\u001B[31m").append(getCurrentTimeStamp()).append(text).append("\u001B[0m");
         }
+        sendResponse(datagram);
     }
-    private void handleClientRequest(DatagramPacket receivePacket) {
-        InetAddress clientAddress = receivePacket.getAddress();
-        int clientPort = receivePacket.getPort();
 
-        String request = new String(receivePacket.getData(), 0, receivePacket.getLength());
-        String[] parts = request.split(" ");
-        String command = parts[0];
-        String key = parts.length > 1 ? parts[1] : null;
-        String value = parts.length > 2 ? parts[2] : null;
+    private void handleTextRequest(Datagram datagram, long start) {
+        ServerEvents.RequestParse parse = new ServerEvents.RequestParse();
+        parse.begin();
+        int bytes = datagram.in.remaining();
+        datagram.tokenize();
+        Command command = Command.UNKNOWN;
+        for (Command candidate : COMMANDS) {
+            if (datagram.tokenEquals(0, candidate.name())) {
+                command = candidate;
+                break;
+            }
+        }
+        datagram.command = command;
+        int keyLength = datagram.tokenCount > 1 ? datagram.tokenEnds[1] - datagram.tokenStarts[1] : 0;
+        parse.record("udp", command, keyLength, bytes);
+        // The reply is sent from inside the handler, so this also spans its ResponseWrite.
+        ServerEvents.RequestExecute execute = new ServerEvents.RequestExecute();
+        execute.begin();
+        String key = datagram.tokenCount > 1 ? datagram.token(1) : null;
+        String value = datagram.tokenCount > 2 ? datagram.token(2) : null;
 
         switch (command) {
-            case put:
-                handlePutRequest(key, value, clientAddress, clientPort);
+            case PUT:
+                handlePutRequest(key, value, datagram.tokenCount > 3 ? datagram.tokensFrom(3) : NO_TOKENS, datagram);
                 break;
-            case delete:
-                handleDelRequest(key, clientAddress, clientPort);
+            case DELETE:
+                handleDelRequest(key, datagram);
                 break;
-            case get:
-                handleGetRequest(key, clientAddress, clientPort);
+            case GET:
+                handleGetRequest(key, datagram);
                 break;
-            case keys:
-                handleKeysRequest(clientAddress, clientPort);
+            case KEYS:
+                handleKeysRequest(datagram);
+                break;
+            case MGET:
+                handleMultiGetRequest(datagram.tokensFrom(1), datagram);
+                break;
+            case MPUT:
+                handleMultiPutRequest(datagram.tokensFrom(1), datagram);
+                break;
+            case MDELETE:
+                handleMultiDelRequest(datagram.tokensFrom(1), datagram);
+                break;
+            case SCAN:
+                handleScanRequest(datagram.tokensFrom(1), datagram);
+                break;
+            case EXPIRE:
+                handleExpireRequest(key, datagram.tokenCount == 3 ? value : null, datagram);
+                break;
+            case STAT:
+                handleStatRequest(datagram);
+                break;
+            case QUIT:
+                handleQuitRequest(datagram);
                 break;
-            case quit:
-                handleQuitRequest(clientAddress, clientPort);
-                return;
             default:
+                Log.warn("Client[", datagram.sender, "] Invalid command");
+                datagram.append("\u001B[31m").append(getCurrentTimeStamp()).append(" Error. Invalid command").append("\u001B[0m");
+                sendResponse(datagram);
                 break;
         }
+        metrics.record(command, start);
+        execute.record("udp", command, keyLength);
+    }
+    private void handleBinaryRequest(Datagram datagram, long start) {
+        BinaryProtocol.Message reply;
+        try {
+            ServerEvents.RequestParse parse = new ServerEvents.RequestParse();
+            parse.begin();
+            int bytes = datagram.in.remaining();
+            BinaryProtocol.Message request = BinaryProtocol.decodeDatagram(datagram.heapCopy());
+            datagram.command = Command.fromOpcode(request.code);
+            parse.record("udp", datagram.command, ServerEvents.keyLength(request), bytes);
+            ServerEvents.RequestExecute execute = new ServerEvents.RequestExecute();
+            execute.begin();
+            reply = BinaryProtocol.execute(store, request, statistics);
+            metrics.record(datagram.command, start);
+            execute.record("udp", datagram.command, ServerEvents.keyLength(request));
+        } catch (IOException e) {
+            Log.warn("Client[", datagram.sender, "] Malformed binary request: ", e.getMessage());
+            reply = new BinaryProtocol.Message(BinaryProtocol.STATUS_BAD_REQUEST);
+        }
+        BinaryProtocol.encodeDatagram(reply, datagram.out);
+        sendResponse(datagram);
     }
-    private void handlePutRequest(String key, String value, InetAddress clientAddress, int clientPort) {
-        if (!key.matches("[a-zA-Z0-9]+")) {
-            System.out.println("\u001B[31m" +  getCurrentTimeStamp() + getClientAddress(clientAddress, clientPort) +  " PUT request failed. Key: " + key + " contains invalid characters." + "\u001B[0m");
-            sendResponse("\u001B[31m" + getCurrentTimeStamp() + " Error: Key contains invalid characters. Only letters and digits are allowed." + "\u001B[0m", clientAddress, clientPort);
-        } else if (clientData.containsKey(key)) {
-            System.out.println("\u001B[31m" + getCurrentTimeStamp() + getClientAddress(clientAddress, clientPort) +  " PUT request failed. Key: " + key + " already exists." + "\u001B[0m");
-            sendResponse("\u001B[31m" + getCurrentTimeStamp() + " PUT request failed. Key: " + key + " already exists." + "\u001B[0m", clientAddress, clientPort);
+    /** {@code ttl} holds the words after the value: empty, or {@code EX <seconds>} / {@code PX <milliseconds>}. */
+    private void handlePutRequest(String key, String value, String[] ttl, Datagram datagram) {
+        long ttlMillis = ttl.length == 2 ? BinaryProtocol.parseTextTtl(ttl[0], ttl[1]) : ttl.length == 0 ? 0 : -1;
+        if (key == null || value == null || ttlMillis < 0) {
+            datagram.append("\u001B[31m").append(getCurrentTimeStamp()).append(" Error. Format: PUT <key> <value> [EX <seconds> | PX <milliseconds>]").append("\u001B[0m");
+        } else if (!BinaryProtocol.isValidKey(key)) {
+            Log.warn("Client[", datagram.sender, "] PUT request failed. Key: ", key, " contains invalid characters.");
+            datagram.append("\u001B[31m").append(getCurrentTimeStamp()).append(" Error: Key contains invalid characters. Only letters and digits are allowed.").append("\u001B[0m");
         } else if (key.length() > 10 || value.length() > 10) {
-            sendResponse("\u001B[31m" + getCurrentTimeStamp() + "Error. Key and Value can not be long (max. 10 characters)" + "\u001B[0m", clientAddress, clientPort);
-            System.out.println("\u001B[31m" + getCurrentTimeStamp() + getClientAddress(clientAddress, clientPort) +" Key or Value length exceeds the limit of 10 characters" + "\u001B[0m");
+            datagram.append("\u001B[31m").append(getCurrentTimeStamp()).append("Error. Key and Value can not be long (max. 10 characters)").append("\u001B[0m");
+            Log.warn("Client[", datagram.sender, "] Key or Value length exceeds the limit of 10 characters");
+        } else if (!(ttlMillis > 0 ? store.putIfAbsent(key, value, ttlMillis) : store.putIfAbsent(key, value))) {
+            Log.warn("Client[", datagram.sender, "] PUT request failed. Key: ", key, " already exists.");
+            datagram.append("\u001B[31m").append(getCurrentTimeStamp()).append(" PUT request failed. Key: ").append(key).append(" already exists.").append("\u001B[0m");
+        } else {
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("Client[", datagram.sender, "] Key-Value Pair saved on the server. Key: ", key, ", Value: ", value);
+            }
+            datagram.append("\u001B[32m").append(getCurrentTimeStamp()).append(" Success: Key-Value Pair saved on the server. Key: ").append(key).append(", Value: ").append(value).append("\u001B[0m");
+        }
+        sendResponse(datagram);
+    }
+    private void handleGetRequest(String key, Datagram datagram) {
+        String value = key == null ? null : store.get(key);
+        if (value == null) {
+            Log.warn("Client[", datagram.sender, "] Error. Key ", key, " Not Found On Server");
+            datagram.append("\u001B[31m").append("Error. Key ").append(String.valueOf(key)).append(" not found").append("\u001B[0m");
         } else {
-            clientData.put(key, value);
-            System.out.println("\u001B[32m" + getCurrentTimeStamp() + getClientAddress(clientAddress, clientPort) +" Key-Value Pair saved on the server. Key: " + key + ", Value: " + value + "\u001B[0m");
-            sendResponse("\u001B[32m" + getCurrentTimeStamp() + " Success: Key-Value Pair saved on the server. Key: " + key + ", Value: " + value + "\u001B[0m", clientAddress, clientPort);
-        }
-    }
-    private void handleGetRequest(String key, InetAddress clientAddress, int clientPort) {
-        String value = clientData.getOrDefault(key, "Key not found");
-        if (value.equals("Key not found")) {
-            String response = value.equals("Key not found") ?"\u001B[31m" + "Error. Key "+ key +" not found" + "\u001B[0m" : "\u001B[32m" +"Success. Key found in the Server. Key: " + key + ", Value: " + value+ "\u001B[0m";
-            System.out.println("\u001B[31m" + getCurrentTimeStamp() + getClientAddress(clientAddress, clientPort) +  " Error. Key " + key +" Not Found On Server"+ "\u001B[0m");
-            sendResponse(response, clientAddress, clientPort);
-        }else{
-        String response = getCurrentTimeStamp()+ getClientAddress(clientAddress, clientPort)+"\u001B[32m" + " Success. Key found in the Server. Key: " + key + ", Value: " + value+ "\u001B[0m";
-        System.out.println("\u001B[32m" + getCurrentTimeStamp() + " Success. Key found in the Server. Key: " + key + ", Value: " + value+ "\u001B[0m");
-        sendResponse(response, clientAddress, clientPort);
-        }
-    }
-    private void handleDelRequest(String key, InetAddress clientAddress, int clientPort) {
-        if (clientData.containsKey(key)) {
-            clientData.remove(key);
-            sendResponse("\u001B[32m" + "Success: Key " + key + " removed from the store"+ "\u001B[0m", clientAddress, clientPort);
-            System.out.println("\u001B[32m" + getCurrentTimeStamp() + getClientAddress(clientAddress, clientPort)+ " Success: Key " + key + " removed" + "\u001B[0m");
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("Client[", datagram.sender, "] Success. Key found in the Server. Key: ", key, ", Value: ", value);
+            }
+            datagram.append(getCurrentTimeStamp()).append("Client[").appendAddress(datagram.sender).append("]")
+                    .append("\u001B[32m").append(" Success. Key found in the Server. Key: ").append(key).append(", Value: ").append(value).append("\u001B[0m");
+        }
+        sendResponse(datagram);
+    }
+    private void handleExpireRequest(String key, String seconds, Datagram datagram) {
+        long ttlMillis = BinaryProtocol.parseTextTtl("EX", seconds);
+        if (key == null || ttlMillis < 0) {
+            datagram.append("\u001B[31m").append(getCurrentTimeStamp()).append(" Error. Format: EXPIRE <key> <seconds>").append("\u001B[0m");
+        } else if (store.expire(key, ttlMillis)) {
+            Log.debug("Client[", datagram.sender, "] Key ", key, " expires in ", seconds, " seconds");
+            datagram.append("\u001B[32m").append("Success: Key ").append(key).append(" expires in ").append(seconds).append(" seconds").append("\u001B[0m");
         } else {
-            sendResponse("\u001B[31m" + "Key not found in the store" + "\u001B[0m", clientAddress, clientPort);
-            System.out.println("\u001B[31m" + getCurrentTimeStamp() +  getClientAddress(clientAddress, clientPort)+" Error. Key not found" + "\u001B[0m");
+            Log.warn("Client[", datagram.sender, "] EXPIRE failed. Key ", key, " not found");
+            datagram.append("\u001B[31m").append("Key not found in the store").append("\u001B[0m");
         }
+        sendResponse(datagram);
     }
-    private void handleKeysRequest(InetAddress clientAddress, int clientPort) {
+    private void handleDelRequest(String key, Datagram datagram) {
+        if (key != null && store.remove(key)) {
+            datagram.append("\u001B[32m").append("Success: Key ").append(key).append(" removed from the store").append("\u001B[0m");
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("Client[", datagram.sender, "] Success: Key ", key, " removed");
+            }
+        } else {
+            datagram.append("\u001B[31m").append("Key not found in the store").append("\u001B[0m");
+            Log.warn("Client[", datagram.sender, "] Error. Key not found");
+        }
+        sendResponse(datagram);
+    }
+    private void handleKeysRequest(Datagram datagram) {
         StringBuilder keys = new StringBuilder();
-        for (String key : clientData.keySet()) {
+        List<String> storedKeys = store.keys();
+        for (String key : storedKeys) {
             keys.append(key).append(":");
         }
-        String response;
         if (keys.length() > 0) {
             keys.setLength(keys.length() - 1);
-            response = "\u001B[32m" + "Success! Keys: " + keys.toString() + "\u001B[0m";
-            System.out.println("\u001B[32m" + getCurrentTimeStamp() + getClientAddress(clientAddress, clientPort) +  " Success! Keys: " + keys.toString()+ "\u001B[0m");
-            sendResponse(response, clientAddress, clientPort);
+            Log.debug("Client[", datagram.sender, "] Success! Keys: ", keys);
+            datagram.append("\u001B[32m").append("Success! Keys: ").append(keys.toString()).append("\u001B[0m");
         } else {
-            response = "\u001B[31m" + "There are no keys in the store." + "\u001B[0m";
-            System.out.println( "\u001B[31m" + getCurrentTimeStamp()+ getClientAddress(clientAddress, clientPort) + "There are no keys in the store." + "\u001B[0m");
-            sendResponse(response, clientAddress, clientPort);
+            Log.warn("Client[", datagram.sender, "] There are no keys in the store.");
+            datagram.append("\u001B[31m").append("There are no keys in the store.").append("\u001B[0m");
+        }
+        sendResponse(datagram);
+    }
+    private void handleMultiGetRequest(String[] keys, Datagram datagram) {
+        if (keys.length == 0) {
+            datagram.append("\u001B[31m").append("Error. Format: MGET <key> [<key> ...]").append("\u001B[0m");
+            sendResponse(datagram);
+            return;
+        }
+        String[] values = store.getAll(keys);
+        datagram.append("\u001B[32m").append("MGET results:");
+        for (int i = 0; i < keys.length; i++) {
+            datagram.append("\n   Key: ").append(keys[i]);
+            if (values[i] == null) {
+                datagram.append(" not found");
+            } else {
+                datagram.append(", Value: ").append(values[i]);
+            }
+        }
+        Log.debug("Client[", datagram.sender, "] MGET handled for ", keys.length, " keys");
+        datagram.append("\u001B[0m");
+        sendResponse(datagram);
+    }
+    private void handleMultiPutRequest(String[] keysAndValues, Datagram datagram) {
+        if (keysAndValues.length == 0 || keysAndValues.length % 2 != 0) {
+            datagram.append("\u001B[31m").append("Error. Format: MPUT <key> <value> [<key> <value> ...]").append("\u001B[0m");
+            sendResponse(datagram);
+            return;
+        }
+        String[] results = BinaryProtocol.multiPut(store, keysAndValues);
+        datagram.append("\u001B[32m").append("MPUT results:");
+        for (int i = 0; i < results.length; i++) {
+            datagram.append("\n   Key: ").append(keysAndValues[2 * i]).append(" ").append(describeBatchStatus(BinaryProtocol.batchStatus(results[i])));
+        }
+        Log.debug("Client[", datagram.sender, "] MPUT handled for ", results.length, " keys");
+        datagram.append("\u001B[0m");
+        sendResponse(datagram);
+    }
+    private static String describeBatchStatus(byte status) {
+        switch (status) {
+            case BinaryProtocol.STATUS_OK:
+                return "saved";
+            case BinaryProtocol.STATUS_EXISTS:
+                return "already exists";
+            case BinaryProtocol.STATUS_INVALID_KEY:
+                return "contains invalid characters";
+            default:
+                return "exceeds the limit of 10 characters";
+        }
+    }
+    private void handleMultiDelRequest(String[] keys, Datagram datagram) {
+        if (keys.length == 0) {
+            datagram.append("\u001B[31m").append("Error. Format: MDELETE <key> [<key> ...]").append("\u001B[0m");
+            sendResponse(datagram);
+            return;
+        }
+        boolean[] removed = store.removeAll(keys);
+        datagram.append("\u001B[32m").append("MDELETE results:");
+        for (int i = 0; i < keys.length; i++) {
+            datagram.append("\n   Key: ").append(keys[i]).append(removed[i] ? " removed" : " not found");
+        }
+        Log.debug("Client[", datagram.sender, "] MDELETE handled for ", keys.length, " keys");
+        datagram.append("\u001B[0m");
+        sendResponse(datagram);
+    }
+    private void handleScanRequest(String[] arguments, Datagram datagram) {
+        KeyScan.Request request = KeyScan.Request.parse(arguments);
+        if (request == null) {
+            datagram.append("\u001B[31m").append("Error. Format: SCAN <cursor> [MATCH <pattern>] [COUNT <count>]").append("\u001B[0m");
+            sendResponse(datagram);
+            return;
+        }
+        KeyScan.Page page = request.execute(store);
+        datagram.append("\u001B[32m").append("Cursor: ").append(Long.toUnsignedString(page.cursor)).append(" Keys: ");
+        for (int i = 0; i < page.keys.size(); i++) {
+            if (i > 0) {
+                datagram.append(":");
+            }
+            datagram.append(page.keys.get(i));
         }
+        Log.debug("Client[", datagram.sender, "] SCAN returned ", page.keys.size(), " keys");
+        datagram.append("\u001B[0m");
+        sendResponse(datagram);
+    }
+    private void handleStatRequest(Datagram datagram) {
+        Log.debug("Client[", datagram.sender, "] Statistics Handled");
+        datagram.append("\u001B[32m").append(metrics.statistics()).append("\u001B[0m");
+        sendResponse(datagram);
     }
-    private void handleQuitRequest(InetAddress clientAddress, int clientPort) {
-        sendResponse("You have disconnected from the server!", clientAddress, clientPort);
-        System.out.println("\u001B[34m" + getCurrentTimeStamp() + getClientAddress(clientAddress, clientPort) +" Client disconnected from the server!" + "\u001B[0m");
+    private void handleQuitRequest(Datagram datagram) {
+        datagram.append("You have disconnected from the server!");
+        sendResponse(datagram);
+        Log.info("Client[", datagram.sender, "] Client disconnected from the server!");
     }
-    private void sendResponse(String message, InetAddress clientAddress, int clientPort) {
+    private void sendResponse(Datagram datagram) {
+        ServerEvents.ResponseWrite write = new ServerEvents.ResponseWrite();
+        write.begin();
         try {
-            byte[] sendData = message.getBytes();
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, clientAddress, clientPort);
-            serverSocket.send(sendPacket);
+            datagram.out.flip();
+            if (datagram.tracked) {
+                replies.complete(datagram.sender, datagram.requestId, datagram.out);
+                datagram.tracked = false;
+            }
+            int sent = datagram.endpoint.channel.send(datagram.out, datagram.sender);
+            metrics.addBytesOut(sent);
+            write.record("udp", datagram.command, sent);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
     private String getCurrentTimeStamp() {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-        return "[" + dateFormat.format(new Date()) + "]";
+        return CachedClock.timestamp();
     }
-    private String getClientAddress(InetAddress clientAddress, int clientPort){
-        return "Client" +"[" + clientAddress + ":" + clientPort +"]";
+
+    /**
+     * A pooled request slot: the received packet, its sender, the reply being built and the
+     * token offsets of a text command. Owned by the receiver until it is submitted, then by one
+     * worker until {@link #handleClientRequest} returns it to the pool.
+     */
+    private final class Datagram implements Runnable {
+        final Endpoint endpoint;
+        final ByteBuffer in = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        final ByteBuffer out = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        final byte[] scratch = new byte[MAX_DATAGRAM];
+        final ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+        SocketAddress sender;
+        long receivedNanos;
+        /** The request's command once parsed, for the flight recorder. */
+        Command command = Command.UNKNOWN;
+        boolean tracked;
+        long requestId;
+        int[] tokenStarts = new int[8];
+        int[] tokenEnds = new int[8];
+        int tokenCount;
+        SocketAddress cachedAddress;
+        String cachedAddressText;
+
+        Datagram(Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void run() {
+            handleClientRequest(this);
+        }
+
+        /** Records the offsets of the space-separated words of a text request. */
+        void tokenize() {
+            tokenCount = 0;
+            int limit = in.limit();
+            int position = in.position();
+            while (position < limit) {
+                while (position < limit && in.get(position) == ' ') {
+                    position++;
+                }
+                if (position == limit) {
+                    break;
+                }
+                int start = position;
+                while (position < limit && in.get(position) != ' ') {
+                    position++;
+                }
+                if (tokenCount == tokenStarts.length) {
+                    tokenStarts = Arrays.copyOf(tokenStarts, tokenCount * 2);
+                    tokenEnds = Arrays.copyOf(tokenEnds, tokenCount * 2);
+                }
+                tokenStarts[tokenCount] = start;
+                tokenEnds[tokenCount++] = position;
+            }
+        }
+
+        boolean tokenEquals(int index, String expected) {
+            if (index >= tokenCount || tokenEnds[index] - tokenStarts[index] != expected.length()) {
+                return false;
+            }
+            for (int i = 0; i < expected.length(); i++) {
+                if (in.get(tokenStarts[index] + i) != expected.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String token(int index) {
+            int length = tokenEnds[index] - tokenStarts[index];
+            in.get(tokenStarts[index], scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /** Copies the packet into {@link #scratch} so field strings are decoded straight from a heap array. */
+        ByteBuffer heapCopy() {
+            int length = in.remaining();
+            in.get(in.position(), scratch, 0, length);
+            scratchBuffer.clear().limit(length);
+            return scratchBuffer;
+        }
+
+        String[] tokensFrom(int first) {
+            String[] tokens = new String[Math.max(0, tokenCount - first)];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = token(first + i);
+            }
+            return tokens;
+        }
+
+        Datagram append(String text) {
+            Utf8.put(out, text);
+            return this;
+        }
+
+        /** Appends the sender as {@code /address:port}; the text is cached while the sender repeats. */
+        Datagram appendAddress(SocketAddress address) {
+            if (address != cachedAddress) {
+                cachedAddress = address;
+                cachedAddressText = address.toString();
+            }
+            return append(cachedAddressText);
+        }
+    }
+
+    /**
+     * One bound channel with its own receiver, workers and datagram pool. With a single socket
+     * the channel is bound plainly; with several, each is bound with {@code SO_REUSEPORT} and the
+     * kernel spreads senders across them by address hash, so receivers never share a queue.
+     */
+    private final class Endpoint {
+        final int index;
+        final DatagramChannel channel;
+        final HandoffQueue<Datagram> free;
+        final HandoffQueue<Datagram> ready;
+        /** Receives the datagrams that find the pool empty, to answer them BUSY. */
+        final Datagram spare;
+
+        Endpoint(int index, int workerCount, int buffers) throws IOException {
+            this.index = index;
+            this.channel = DatagramChannel.open();
+            if (sockets > 1) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    channel.close();
+                    throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform; use --udp-sockets=1");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            this.free = new HandoffQueue<>(buffers, 1);
+            this.ready = new HandoffQueue<>(buffers, workerCount);
+            this.spare = new Datagram(this);
+            for (int i = 0; i < buffers; i++) {
+                free.offer(new Datagram(this));
+            }
+            if (!ServerThreads.VIRTUAL.equals(threadMode)) {
+                for (int i = 0; i < workerCount; i++) {
+                    String name = sockets == 1 ? "udp-worker-" + i : "udp-worker-" + index + "-" + i;
+                    Thread worker = new Thread(this::runWorker, name);
+                    worker.setDaemon(true);
+                    worker.start();
+                }
+            }
+        }
+
+        void receive(Executor perDatagram) {
+            try {
+                while (true) {
+                    Datagram datagram = free.poll();
+                    if (datagram == null) {
+                        rejectBusy();
+                        continue;
+                    }
+                    datagram.in.clear();
+                    datagram.sender = channel.receive(datagram.in);
+                    datagram.receivedNanos = System.nanoTime();
+                    datagram.in.flip();
+                    if (perDatagram != null) {
+                        perDatagram.execute(datagram);
+                    } else {
+                        ready.offer(datagram);
+                    }
+                }
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void rejectBusy() throws IOException {
+            spare.in.clear();
+            spare.sender = channel.receive(spare.in);
+            spare.in.flip();
+            spare.command = Command.UNKNOWN;
+            rejectedDatagrams.increment();
+            metrics.addBytesIn(spare.in.remaining());
+            replyBusy(spare);
+        }
+
+        private void runWorker() {
+            try {
+                while (true) {
+                    handleClientRequest(ready.take());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 }
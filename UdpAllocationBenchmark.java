@@ -0,0 +1,149 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives UDPServer with an open-loop stream of GETs at a fixed packet rate and reports how many
+ * bytes the server's threads allocate per request, using the per-thread allocation counters of
+ * HotSpot's {@code com.sun.management.ThreadMXBean}.
+ *
+ * <pre>java UdpAllocationBenchmark --rate=500000 --seconds=10 --clients=4 --workers=4</pre>
+ *
+ * Packets the server drops because its socket buffer overflowed show up as the gap between the
+ * sent and received rates; the allocation figure is per request actually served.
+ */
+public final class UdpAllocationBenchmark {
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = new ServerOptions(args);
+        int port = options.getInt("port", 9081);
+        int rate = options.getInt("rate", 500_000);
+        int seconds = options.getInt("seconds", 10);
+        int clients = options.getInt("clients", 4);
+        int workers = options.getInt("workers", 4);
+
+        ServerOptions serverOptions = new ServerOptions(new String[] {"--log-level=info"});
+        Log.configure(serverOptions);
+        KeyValueStore store = KeyValueStores.create(serverOptions);
+        store.putIfAbsent("bench", "value");
+        UDPServer server = new UDPServer(port, store, ServerThreads.PLATFORM, workers, workers * 4);
+        Thread serverThread = new Thread(server::startServer, "udp-receiver");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        System.out.println("request,target_pps,sent_pps,served_pps,server_bytes_per_request,gc_count");
+        for (String request : new String[] {"text", "binary"}) {
+            ByteBuffer packet = "text".equals(request)
+                    ? ByteBuffer.wrap("GET bench".getBytes(StandardCharsets.UTF_8))
+                    : ByteBuffer.wrap(BinaryProtocol.encodeDatagram(new BinaryProtocol.Message(BinaryProtocol.OP_GET, "bench")));
+            run(port, packet, rate, 2, clients);
+            Set<Long> excluded = new HashSet<>();
+            excluded.add(Thread.currentThread().getId());
+            long before = serverAllocations(excluded);
+            long gcBefore = gcCount();
+            long[] counts = run(port, packet, rate, seconds, clients);
+            long allocated = serverAllocations(excluded) - before;
+            System.out.printf("%s,%d,%.0f,%.0f,%.1f,%d%n", request, rate, (double) counts[0] / seconds, (double) counts[1] / seconds,
+                    counts[1] == 0 ? 0.0 : (double) allocated / counts[1], gcCount() - gcBefore);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return packets sent and replies received
+     */
+    private static long[] run(int port, ByteBuffer packet, int rate, int seconds, int clients) throws Exception {
+        LongAdder sent = new LongAdder();
+        LongAdder received = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        List<DatagramChannel> channels = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.connect(new InetSocketAddress("127.0.0.1", port));
+            channels.add(channel);
+            double interval = 1e9 * clients / rate;
+            Thread sender = new Thread(() -> {
+                ByteBuffer request = ByteBuffer.allocateDirect(packet.remaining()).put(packet.duplicate()).flip();
+                long start = System.nanoTime();
+                long count = 0;
+                try {
+                    for (long now = start; now < deadline; now = System.nanoTime()) {
+                        long due = (long) ((now - start) / interval);
+                        if (count >= due) {
+                            LockSupport.parkNanos(20_000);
+                            continue;
+                        }
+                        for (; count < due; count++) {
+                            request.rewind();
+                            channel.write(request);
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                sent.add(count);
+            }, "bench-sender-" + c);
+            Thread receiver = new Thread(() -> {
+                ByteBuffer reply = ByteBuffer.allocateDirect(65507);
+                try {
+                    while (true) {
+                        reply.clear();
+                        channel.read(reply);
+                        received.increment();
+                    }
+                } catch (Exception closed) {
+                    // the channel is closed once the sender is done
+                }
+            }, "bench-receiver-" + c);
+            threads.add(sender);
+            sender.start();
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Thread.sleep(200);
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+        return new long[] {sent.sum(), received.sum()};
+    }
+
+    /**
+     * Sum of bytes allocated so far by every live thread except benchmark threads and those in
+     * {@code excluded}.
+     */
+    private static long serverAllocations(Set<Long> excluded) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (excluded.contains(thread.getId()) || thread.getName().startsWith("bench-")) {
+                continue;
+            }
+            long bytes = threads.getThreadAllocatedBytes(thread.getId());
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += collector.getCollectionCount();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,137 @@
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures UDP throughput as the number of {@code SO_REUSEPORT} sockets grows. For each socket
+ * count a UDPServer is started in a fresh JVM with one worker per socket, and closed-loop clients
+ * each keep a window of GETs in flight from their own source port so the kernel spreads them
+ * across the sockets.
+ *
+ * <pre>java UdpScalingBenchmark --sockets=1,2,4,8 --clients=32 --window=16 --seconds=10 --pin</pre>
+ *
+ * {@code --pin} confines each server to as many CPUs as it has sockets with {@code taskset}, so
+ * the socket count is also the core count.
+ */
+public final class UdpScalingBenchmark {
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = new ServerOptions(args);
+        int port = options.getInt("port", 9082);
+        int clients = options.getInt("clients", 32);
+        int window = options.getInt("window", 16);
+        int seconds = options.getInt("seconds", 10);
+        boolean pin = options.getBoolean("pin");
+
+        System.out.println("sockets,cpus,clients,ops_per_sec,timeouts");
+        for (String value : options.getString("sockets", defaultSockets()).split(",")) {
+            int sockets = Integer.parseInt(value.trim());
+            List<String> command = new ArrayList<>();
+            if (pin) {
+                command.add("taskset");
+                command.add("-c");
+                command.add("0-" + (sockets - 1));
+            }
+            command.add(ProcessHandle.current().info().command().orElse("java"));
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(UDPServer.class.getName());
+            command.add("--port=" + port);
+            command.add("--udp-sockets=" + sockets);
+            command.add("--workers=" + sockets);
+            command.add("--log-level=error");
+            Process server = new ProcessBuilder(command).inheritIO().start();
+            try {
+                InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+                awaitServer(address);
+                run(address, clients, window, 2);
+                long[] counts = run(address, clients, window, seconds);
+                System.out.printf("%d,%s,%d,%.0f,%d%n", sockets, pin ? Integer.toString(sockets) : "all", clients,
+                        (double) counts[0] / seconds, counts[1]);
+            } finally {
+                server.destroy();
+                server.waitFor(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static String defaultSockets() {
+        StringBuilder sockets = new StringBuilder("1");
+        for (int n = 2; n <= Runtime.getRuntime().availableProcessors(); n *= 2) {
+            sockets.append(',').append(n);
+        }
+        return sockets.toString();
+    }
+
+    private static void awaitServer(InetSocketAddress address) throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(200);
+            byte[] reply = new byte[65507];
+            for (int attempt = 0; attempt < 100; attempt++) {
+                byte[] request = "PUT bench value".getBytes(StandardCharsets.UTF_8);
+                socket.send(new DatagramPacket(request, request.length, address));
+                try {
+                    socket.receive(new DatagramPacket(reply, reply.length));
+                    return;
+                } catch (SocketTimeoutException notYet) {
+                    // the server JVM is still starting
+                }
+            }
+        }
+        throw new IllegalStateException("UDP server did not start on " + address);
+    }
+
+    /**
+     * @return replies received and windows re-sent after a timeout
+     */
+    private static long[] run(InetSocketAddress address, int clients, int window, int seconds) throws Exception {
+        LongAdder received = new LongAdder();
+        LongAdder timeouts = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            Thread client = new Thread(() -> {
+                byte[] request = "GET bench".getBytes(StandardCharsets.UTF_8);
+                byte[] reply = new byte[65507];
+                DatagramPacket requestPacket = new DatagramPacket(request, request.length, address);
+                DatagramPacket replyPacket = new DatagramPacket(reply, reply.length);
+                try (DatagramSocket socket = new DatagramSocket()) {
+                    socket.setSoTimeout(100);
+                    for (int i = 0; i < window; i++) {
+                        socket.send(requestPacket);
+                    }
+                    long count = 0;
+                    while (System.nanoTime() < deadline) {
+                        try {
+                            replyPacket.setLength(reply.length);
+                            socket.receive(replyPacket);
+                            count++;
+                            socket.send(requestPacket);
+                        } catch (SocketTimeoutException lost) {
+                            timeouts.increment();
+                            for (int i = 0; i < window; i++) {
+                                socket.send(requestPacket);
+                            }
+                        }
+                    }
+                    received.add(count);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, "bench-client-" + c);
+            threads.add(client);
+            client.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new long[] {received.sum(), timeouts.sum()};
+    }
+}
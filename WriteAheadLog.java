@@ -0,0 +1,393 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of PUT, DELETE and EXPIRE records, split into numbered segment files.
+ *
+ * <p>Mutations are encoded into an in-memory batch under a short lock; a single flusher thread
+ * writes whole batches and calls {@link FileChannel#force} according to the {@link FsyncPolicy},
+ * so concurrent writers share one fsync (group commit). Each record is
+ * {@code [u32 crc32c][u8 type][u16 key length][key]} followed by {@code [u16 value length][value]}
+ * for PUT or {@code [u64 deadline]} in epoch milliseconds for EXPIRE; replay stops at the first
+ * record whose checksum does not match, which is how a torn write at the tail after a crash is
+ * detected.
+ *
+ * <p>If the flusher fails to write or force a batch, the log stops accepting records:
+ * {@link #checkWritable}, which stores call before they mutate anything, and every later
+ * {@link #awaitDurable}, under any policy, throw, so writes are refused instead of being applied
+ * in memory and lost on restart.
+ */
+public final class WriteAheadLog implements MutationListener, Closeable {
+    public enum FsyncPolicy {
+        /** Writers wait until their record has been forced to disk. */
+        ALWAYS,
+        /** The log is forced every interval; a crash loses at most one interval of writes. */
+        INTERVAL,
+        /** The log is written every interval and left to the operating system to flush. */
+        NEVER
+    }
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final byte TYPE_EXPIRE = 3;
+    private static final int HEADER = 4 + 1 + 2;
+    /** Replay buffer; larger than the largest record, two 64 KiB strings and their header. */
+    private static final int REPLAY_BUFFER = 256 * 1024;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final FsyncPolicy policy;
+    private final long intervalMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock ioLock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+    private final Thread flusher;
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private long appendedSequence;
+    private long durableSequence;
+    private FileChannel channel;
+    private long segment;
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    public WriteAheadLog(Path directory, long segment, FsyncPolicy policy, long intervalMillis) throws IOException {
+        this.directory = directory;
+        this.policy = policy;
+        this.intervalMillis = Math.max(1, intervalMillis);
+        this.segment = segment;
+        this.channel = openSegment(segment);
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public void onPut(String key, String value) {
+        append(TYPE_PUT, key, value);
+    }
+
+    @Override
+    public void onRemove(String key) {
+        append(TYPE_DELETE, key, null);
+    }
+
+    @Override
+    public void onDeadline(String key, long deadlineMillis) {
+        append(TYPE_EXPIRE, key, null, deadlineMillis);
+    }
+
+    /**
+     * @throws UncheckedIOException if the flusher has failed, so a write must not be applied
+     */
+    public void checkWritable() {
+        IOException failed = failure;
+        if (failed != null) {
+            throw new UncheckedIOException("Write-ahead log failed", failed);
+        }
+    }
+
+    /**
+     * Blocks until every record appended by the calling thread is on disk, if the policy is
+     * {@link FsyncPolicy#ALWAYS}; returns immediately otherwise.
+     *
+     * @throws UncheckedIOException if the flusher has failed
+     */
+    public void awaitDurable() {
+        if (policy != FsyncPolicy.ALWAYS) {
+            checkWritable();
+            return;
+        }
+        long target = lastAppended.get()[0];
+        lock.lock();
+        try {
+            while (durableSequence < target && failure == null) {
+                durable.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes everything appended so far durable in the current segment and starts a new one.
+     *
+     * @return the id of the new segment; every mutation applied after this call is logged there
+     *         or in a later segment
+     */
+    public long rotate() throws IOException {
+        ioLock.lock();
+        try {
+            lock.lock();
+            try {
+                writeBatch();
+                channel.close();
+                segment++;
+                channel = openSegment(segment);
+                return segment;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    private void append(byte type, String key, String value) {
+        append(type, key, value, 0);
+    }
+
+    private void append(byte type, String key, String value, long deadlineMillis) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER + keyBytes.length + (valueBytes == null ? 0 : 2 + valueBytes.length) + (type == TYPE_EXPIRE ? 8 : 0);
+        lock.lock();
+        try {
+            if (failure != null) {
+                // Only a write that passed checkWritable just before the failure gets here; nothing
+                // will write the record, and the writer's awaitDurable reports the failure.
+                return;
+            }
+            if (pending.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + length));
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            int start = pending.position();
+            pending.position(start + 4);
+            pending.put(type).putShort((short) keyBytes.length).put(keyBytes);
+            if (valueBytes != null) {
+                pending.putShort((short) valueBytes.length).put(valueBytes);
+            }
+            if (type == TYPE_EXPIRE) {
+                pending.putLong(deadlineMillis);
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(pending.array(), start + 4, length - 4);
+            pending.putInt(start, (int) crc.getValue());
+            lastAppended.get()[0] = ++appendedSequence;
+            if (policy == FsyncPolicy.ALWAYS) {
+                dataAvailable.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            lock.lock();
+            try {
+                if (policy == FsyncPolicy.ALWAYS) {
+                    while (pending.position() == 0 && !closed) {
+                        dataAvailable.awaitUninterruptibly();
+                    }
+                } else {
+                    dataAvailable.awaitNanos(TimeUnit.MILLISECONDS.toNanos(intervalMillis));
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            ioLock.lock();
+            try {
+                ByteBuffer batch;
+                long sequence;
+                FileChannel target;
+                lock.lock();
+                try {
+                    if (pending.position() == 0) {
+                        continue;
+                    }
+                    batch = pending;
+                    pending = spare;
+                    sequence = appendedSequence;
+                    target = channel;
+                } finally {
+                    lock.unlock();
+                }
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    target.write(batch);
+                }
+                if (policy != FsyncPolicy.NEVER) {
+                    target.force(false);
+                }
+                lock.lock();
+                try {
+                    spare = batch.clear();
+                    durableSequence = sequence;
+                    durable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            } catch (IOException e) {
+                fail(e);
+                return;
+            } finally {
+                ioLock.unlock();
+            }
+        }
+    }
+
+    /** Writes and forces the pending batch synchronously; caller holds both locks. */
+    private void writeBatch() throws IOException {
+        pending.flip();
+        while (pending.hasRemaining()) {
+            channel.write(pending);
+        }
+        pending.clear();
+        channel.force(false);
+        durableSequence = appendedSequence;
+        durable.signalAll();
+    }
+
+    private void fail(IOException e) {
+        lock.lock();
+        try {
+            failure = e;
+            durable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        Log.error(" Write-ahead log failed, refusing writes: ", e);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        lock.lock();
+        try {
+            dataAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        ioLock.lock();
+        try {
+            lock.lock();
+            try {
+                writeBatch();
+                channel.close();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    private FileChannel openSegment(long id) throws IOException {
+        return FileChannel.open(segmentPath(directory, id), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    static Path segmentPath(Path directory, long id) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * @return the ids of all segment files in the directory, ascending
+     */
+    static List<Long> listSegments(Path directory) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    /**
+     * Applies every intact record of a segment to the store, read through a fixed buffer, and
+     * truncates a torn tail.
+     *
+     * @return the number of records applied
+     */
+    static long replay(Path segmentFile, KeyValueStore store) throws IOException {
+        long records = 0;
+        try (FileChannel file = FileChannel.open(segmentFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.allocate(REPLAY_BUFFER);
+            CRC32C crc = new CRC32C();
+            long valid = 0;
+            boolean end = false;
+            records:
+            while (!end) {
+                while (data.hasRemaining() && !end) {
+                    end = file.read(data) < 0;
+                }
+                data.flip();
+                while (data.remaining() >= HEADER) {
+                    int start = data.position();
+                    int checksum = data.getInt();
+                    byte type = data.get();
+                    if (type != TYPE_PUT && type != TYPE_DELETE && type != TYPE_EXPIRE) {
+                        break records;
+                    }
+                    String key = readString(data);
+                    String value = key != null && type == TYPE_PUT ? readString(data) : null;
+                    if (key == null || (type == TYPE_PUT && value == null) || (type == TYPE_EXPIRE && data.remaining() < 8)) {
+                        // Cut off by the end of the buffer: read on, or a torn tail if the file has ended.
+                        data.position(start);
+                        break;
+                    }
+                    long deadlineMillis = type == TYPE_EXPIRE ? data.getLong() : 0;
+                    crc.reset();
+                    crc.update(data.array(), start + 4, data.position() - start - 4);
+                    if ((int) crc.getValue() != checksum) {
+                        break records;
+                    }
+                    if (type == TYPE_PUT) {
+                        store.applyPut(key, value);
+                    } else if (type == TYPE_DELETE) {
+                        store.applyRemove(key);
+                    } else {
+                        store.applyDeadline(key, deadlineMillis);
+                    }
+                    valid += data.position() - start;
+                    records++;
+                }
+                data.compact();
+            }
+            if (valid < file.size()) {
+                file.truncate(valid);
+            }
+        }
+        return records;
+    }
+
+    private static String readString(ByteBuffer data) {
+        if (data.remaining() < 2) {
+            return null;
+        }
+        int length = data.getShort() & 0xFFFF;
+        if (data.remaining() < length) {
+            return null;
+        }
+        String value = new String(data.array(), data.position(), length, StandardCharsets.UTF_8);
+        data.position(data.position() + length);
+        return value;
+    }
+}
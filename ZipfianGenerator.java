@@ -0,0 +1,62 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Draws integers in {@code [0, items)} with a Zipfian distribution, item rank {@code r} having
+ * probability proportional to {@code 1 / (r + 1)^theta}. Uses the constant-time method of Gray et
+ * al., "Quickly Generating Billion-Record Synthetic Databases", as YCSB does; the O(items) zeta
+ * sum is computed once up front. With {@code scrambled} the ranks are hashed so the popular items
+ * are spread over the key space instead of being the lowest numbers.
+ */
+public final class ZipfianGenerator {
+    public static final double DEFAULT_THETA = 0.99;
+
+    private final int items;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+    private final boolean scrambled;
+
+    public ZipfianGenerator(int items, double theta, boolean scrambled) {
+        if (items < 1 || theta <= 0 || theta >= 1) {
+            throw new IllegalArgumentException("Zipfian needs items >= 1 and 0 < theta < 1");
+        }
+        this.items = items;
+        this.theta = theta;
+        this.scrambled = scrambled;
+        this.zetaN = zeta(items, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+    }
+
+    public int next() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        double uz = u * zetaN;
+        int rank;
+        if (uz < 1.0) {
+            rank = 0;
+        } else if (uz < 1.0 + Math.pow(0.5, theta)) {
+            rank = Math.min(1, items - 1);
+        } else {
+            rank = (int) Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+        }
+        return scrambled ? scramble(rank) : rank;
+    }
+
+    private int scramble(int rank) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < 4; i++) {
+            hash ^= (rank >>> (8 * i)) & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+        return (int) Long.remainderUnsigned(hash, items);
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
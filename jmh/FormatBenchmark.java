@@ -0,0 +1,57 @@
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Formatting a GET reply with its timestamp: a new {@link SimpleDateFormat} per reply, as
+ * {@code getCurrentTimeStamp()} used to do, against {@link CachedClock}, which it uses now, and
+ * against encoding the reply straight into a buffer with {@link Utf8}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FormatBenchmark {
+    public String key = "bench1234";
+    public String value = "value12345";
+
+    private final ByteBuffer out = ByteBuffer.allocateDirect(1024);
+
+    @Benchmark
+    public String simpleDateFormat() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        String stamp = "[" + dateFormat.format(new Date()) + "]";
+        return "\u001B[32m" + stamp + " Success: Key found in the store. Key: " + key + ", Value: " + value + "\u001B[0m";
+    }
+
+    @Benchmark
+    public String cachedClock() {
+        return "\u001B[32m" + CachedClock.timestamp() + " Success: Key found in the store. Key: " + key + ", Value: " + value + "\u001B[0m";
+    }
+
+    @Benchmark
+    public ByteBuffer cachedClockUtf8() {
+        out.clear();
+        Utf8.put(out, "\u001B[32m");
+        Utf8.put(out, CachedClock.timestamp());
+        Utf8.put(out, " Success: Key found in the store. Key: ");
+        Utf8.put(out, key);
+        Utf8.put(out, ", Value: ");
+        Utf8.put(out, value);
+        Utf8.put(out, "\u001B[0m");
+        return out;
+    }
+}
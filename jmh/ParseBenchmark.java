@@ -0,0 +1,85 @@
+import java.nio.charset.StandardCharsets;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Ways of splitting a text request into its words: the servers' {@code split(" ")} against a
+ * regular expression, {@link StringTokenizer}, {@code indexOf} and the UDP server's token offsets
+ * over the received bytes. The request is a field so the JIT cannot fold it into a constant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParseBenchmark {
+    public String request = "PUT bench1234 value12345";
+
+    private byte[] bytes;
+    private final int[] ends = new int[8];
+
+    @Setup
+    public void encode() {
+        bytes = request.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String[] splitLiteral() {
+        return request.split(" ");
+    }
+
+    @Benchmark
+    public String[] splitRegex() {
+        return request.split("\\s+");
+    }
+
+    @Benchmark
+    public String[] stringTokenizer() {
+        StringTokenizer tokens = new StringTokenizer(request, " ");
+        String[] parts = new String[tokens.countTokens()];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = tokens.nextToken();
+        }
+        return parts;
+    }
+
+    @Benchmark
+    public String[] indexOf() {
+        int first = request.indexOf(' ');
+        if (first < 0) {
+            return new String[] {request};
+        }
+        int second = request.indexOf(' ', first + 1);
+        if (second < 0) {
+            return new String[] {request.substring(0, first), request.substring(first + 1)};
+        }
+        return new String[] {request.substring(0, first), request.substring(first + 1, second), request.substring(second + 1)};
+    }
+
+    /** The UDP server's approach: token offsets over the received bytes, no strings. */
+    @Benchmark
+    public void bytesInPlace(Blackhole blackhole) {
+        int count = 0;
+        for (int position = 0; position < bytes.length && count < ends.length; position++) {
+            while (position < bytes.length && bytes[position] != ' ') {
+                position++;
+            }
+            ends[count++] = position;
+        }
+        blackhole.consume(count);
+        blackhole.consume(ends);
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loopback GET round trips through a {@link TCPServer} in thread or NIO mode, or a
+ * {@link UDPServer}, with one client connection per benchmark thread: {@code -t 1}, {@code -t 4}
+ * and {@code -t 16} give as many concurrent clients. Reports throughput and the sampled latency
+ * distribution; a lost datagram is sent again and the retry shows up in the UDP percentiles.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RoundTripBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"tcp-thread", "tcp-nio", "udp"})
+        public String server;
+
+        int port;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            ServerOptions options = new ServerOptions(new String[] {"--log-level=off"});
+            Log.configure(options);
+            KeyValueStore store = KeyValueStores.create(options);
+            store.putIfAbsent("bench", "value");
+            if (isUdp()) {
+                try (DatagramSocket probe = new DatagramSocket(0)) {
+                    port = probe.getLocalPort();
+                }
+                UDPServer udp = new UDPServer(port, store, ServerThreads.PLATFORM, 4, 64);
+                startDaemon(udp::startServer, "bench-udp-server");
+            } else {
+                try (ServerSocket probe = new ServerSocket(0)) {
+                    port = probe.getLocalPort();
+                }
+                ServerOptions tcpOptions = new ServerOptions(new String[] {"--port=" + port, "--mode=" + server.substring("tcp-".length()),
+                        "--log-level=off"});
+                TCPServer tcp = new TCPServer(tcpOptions, store);
+                startDaemon(tcp::startServer, "bench-tcp-server");
+            }
+        }
+
+        boolean isUdp() {
+            return server.equals("udp");
+        }
+
+        private static void startDaemon(Runnable task, String name) {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private final byte[] reply = new byte[65507];
+        private final DatagramPacket replyPacket = new DatagramPacket(reply, reply.length);
+        private Socket socket;
+        private DataOutputStream out;
+        private DataInputStream in;
+        private DatagramSocket datagrams;
+        private DatagramPacket requestPacket;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException, InterruptedException {
+            if (server.isUdp()) {
+                datagrams = new DatagramSocket();
+                datagrams.setSoTimeout(200);
+                byte[] request = "GET bench".getBytes(StandardCharsets.UTF_8);
+                requestPacket = new DatagramPacket(request, request.length, new InetSocketAddress("127.0.0.1", server.port));
+                return;
+            }
+            for (int attempt = 0; socket == null; attempt++) {
+                try {
+                    socket = new Socket("127.0.0.1", server.port);
+                } catch (IOException e) {
+                    if (attempt == 50) {
+                        throw e;
+                    }
+                    Thread.sleep(100);
+                }
+            }
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(socket.getOutputStream());
+            in = new DataInputStream(socket.getInputStream());
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            if (socket != null) {
+                socket.close();
+            }
+            if (datagrams != null) {
+                datagrams.close();
+            }
+        }
+
+        int get() throws IOException {
+            if (datagrams == null) {
+                out.writeUTF("GET bench");
+                return in.readUTF().length();
+            }
+            while (true) {
+                datagrams.send(requestPacket);
+                try {
+                    replyPacket.setLength(reply.length);
+                    datagrams.receive(replyPacket);
+                    return replyPacket.getLength();
+                } catch (SocketTimeoutException lost) {
+                    // sent again
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public int get(Client client) throws IOException {
+        return client.get();
+    }
+}
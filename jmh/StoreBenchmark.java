@@ -0,0 +1,82 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The store operations behind {@code handleGetRequest} and {@code handlePutRequest}, on each
+ * engine and through the layers {@link KeyValueStores#create} builds for the server. {@code get}
+ * and {@code put} run on {@code -t} threads that all hit the same store; the {@code mixed} group
+ * runs three readers against one writer, so reads contend with writes on the same stripes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class StoreBenchmark {
+    private static final int KEYS = 10_000;
+
+    @Param({"striped", "offheap"})
+    public String engine;
+
+    private KeyValueStore store;
+    private String[] keys;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        Log.configure(new ServerOptions(new String[] {"--log-level=off"}));
+        store = KeyValueStores.create(new ServerOptions(new String[] {"--store=" + engine}));
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "k" + i;
+            store.putIfAbsent(keys[i], "value");
+        }
+    }
+
+    @Benchmark
+    public String get() {
+        return store.get(randomKey());
+    }
+
+    /** A DELETE then PUT of a random key, so every PUT inserts as {@code handlePutRequest} does. */
+    @Benchmark
+    public void put(Blackhole blackhole) {
+        String key = randomKey();
+        blackhole.consume(store.remove(key));
+        blackhole.consume(store.putIfAbsent(key, "value"));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public String mixedGet() {
+        return get();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedPut(Blackhole blackhole) {
+        put(blackhole);
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(KEYS)];
+    }
+}